@@ -0,0 +1,289 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aggregate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The aggregates that <i>pig/pigTest.pig</i> computes over the appender's tab delimited
+ * <i>%date\t%p\t%m</i> lines: the number of messages that end in a number, their average, and how often each number
+ * occurs.
+ * <p>
+ * Lines are scanned in place in a reusable buffer, so nothing is allocated per line. Lines with fewer than three
+ * fields, such as stack trace lines, and messages that don't end in a digit are skipped, as the script's
+ * <i>REGEX_EXTRACT</i> and <i>IS NULL</i> filter skip them. The whole trailing number is counted, where the script's
+ * greedy <i>.*(\d+)$</i> captures only its last digit; the two agree for the single digit guesses that
+ * <i>com.logpig.mweagle.Main</i> logs. Aggregates of separate inputs are combined with {@link #merge}.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class GuessAggregate
+{
+	/**
+	 * Values below this are counted in an array. Larger values are counted in a map.
+	 */
+	private static final int DENSE_VALUE_COUNT = 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private long lineCount;
+
+	private long guessCount;
+
+	private long guessSum;
+
+	private final long[] denseCounts = new long[DENSE_VALUE_COUNT];
+
+	private final Map<Long, long[]> sparseCounts = new HashMap<Long, long[]>();
+
+	/**
+	 * Add every line of a decompressed stream. A line that doesn't fit in the buffer grows it.
+	 *
+	 * @param input
+	 *            Log lines. It is not closed.
+	 * @throws IOException
+	 *             If the stream can't be read
+	 */
+	public void scan(InputStream input) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int length = 0;
+		int n;
+		while (-1 != (n = input.read(buffer, length, buffer.length - length)))
+		{
+			length += n;
+			int lineStart = 0;
+			for (int i = length - n; i < length; ++i)
+			{
+				if ('\n' == buffer[i])
+				{
+					this.addLine(buffer, lineStart, i);
+					lineStart = i + 1;
+				}
+			}
+			// Carry the partial line over to the next read
+			length -= lineStart;
+			System.arraycopy(buffer, lineStart, buffer, 0, length);
+			if (length == buffer.length)
+			{
+				final byte[] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+		}
+		if (length > 0)
+		{
+			this.addLine(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Add a line
+	 *
+	 * @param line
+	 *            Buffer that holds the line
+	 * @param start
+	 *            Offset of the line's first byte
+	 * @param end
+	 *            Offset just past the line's last byte, excluding the newline
+	 */
+	public void addLine(byte[] line, int start, int end)
+	{
+		this.lineCount += 1;
+		int messageStart = -1;
+		int tabCount = 0;
+		for (int i = start; i < end; ++i)
+		{
+			if ('\t' == line[i])
+			{
+				tabCount += 1;
+				if (2 == tabCount)
+				{
+					messageStart = i + 1;
+				}
+				else if (3 == tabCount)
+				{
+					// PigStorage drops any fields after the declared ones
+					end = i;
+					break;
+				}
+			}
+		}
+		if (-1 == messageStart)
+		{
+			return;
+		}
+		if (end > messageStart && '\r' == line[end - 1])
+		{
+			end -= 1;
+		}
+		int digitStart = end;
+		while (digitStart > messageStart && end - digitStart < 18 && line[digitStart - 1] >= '0'
+				&& line[digitStart - 1] <= '9')
+		{
+			digitStart -= 1;
+		}
+		if (digitStart == end)
+		{
+			return;
+		}
+		long value = 0;
+		for (int i = digitStart; i < end; ++i)
+		{
+			value = value * 10 + (line[i] - '0');
+		}
+		this.addGuess(value, 1);
+	}
+
+	/**
+	 * Add another aggregate's counts to this one
+	 *
+	 * @param other
+	 *            Aggregate to add
+	 */
+	public void merge(GuessAggregate other)
+	{
+		this.lineCount += other.lineCount;
+		for (int i = 0; i < DENSE_VALUE_COUNT; ++i)
+		{
+			if (0 != other.denseCounts[i])
+			{
+				this.addGuess(i, other.denseCounts[i]);
+			}
+		}
+		for (final Map.Entry<Long, long[]> eachValue : other.sparseCounts.entrySet())
+		{
+			this.addGuess(eachValue.getKey(), eachValue.getValue()[0]);
+		}
+	}
+
+	/**
+	 * @return Number of lines read, including the ones that were skipped
+	 */
+	public long getLineCount()
+	{
+		return this.lineCount;
+	}
+
+	/**
+	 * @return Number of messages that end in a number
+	 */
+	public long getGuessCount()
+	{
+		return this.guessCount;
+	}
+
+	/**
+	 * @return Average of the numbers, or NaN if there are none
+	 */
+	public double getAverage()
+	{
+		return (0 == this.guessCount) ? Double.NaN : (double) this.guessSum / (double) this.guessCount;
+	}
+
+	/**
+	 * @return <i>{value, count}</i> pairs, most frequent first and then by value
+	 */
+	public List<long[]> getDistribution()
+	{
+		final List<long[]> distribution = new ArrayList<long[]>();
+		for (int i = 0; i < DENSE_VALUE_COUNT; ++i)
+		{
+			if (0 != this.denseCounts[i])
+			{
+				distribution.add(new long[] { i, this.denseCounts[i] });
+			}
+		}
+		for (final Map.Entry<Long, long[]> eachValue : this.sparseCounts.entrySet())
+		{
+			distribution.add(new long[] { eachValue.getKey(), eachValue.getValue()[0] });
+		}
+		Collections.sort(distribution, new Comparator<long[]>()
+		{
+			@Override
+			public int compare(long[] left, long[] right)
+			{
+				if (left[1] != right[1])
+				{
+					return (left[1] > right[1]) ? -1 : 1;
+				}
+				return (left[0] < right[0]) ? -1 : ((left[0] == right[0]) ? 0 : 1);
+			}
+		});
+		return distribution;
+	}
+
+	/**
+	 * Write the distribution in the layout of the script's <i>guesses</i> output
+	 *
+	 * @param writer
+	 *            Target. It is not closed.
+	 * @throws IOException
+	 *             If the target can't be written
+	 */
+	public void writeGuesses(Writer writer) throws IOException
+	{
+		for (final long[] eachValue : this.getDistribution())
+		{
+			writer.write("Guess:\t" + eachValue[0] + "\twas guessed:\t" + eachValue[1] + "\t, percentage: \t"
+					+ ((double) eachValue[1] / (double) this.guessCount) + "\n");
+		}
+	}
+
+	/**
+	 * Write the count and average in the layout of the script's <i>totals</i> output
+	 *
+	 * @param writer
+	 *            Target. It is not closed.
+	 * @throws IOException
+	 *             If the target can't be written
+	 */
+	public void writeTotals(Writer writer) throws IOException
+	{
+		writer.write("Total guesses:\t" + this.guessCount + "\twith an average value of:\t" + this.getAverage()
+				+ "\n");
+	}
+
+	private void addGuess(long value, long count)
+	{
+		this.guessCount += count;
+		this.guessSum += value * count;
+		if (value < DENSE_VALUE_COUNT)
+		{
+			this.denseCounts[(int) value] += count;
+		}
+		else
+		{
+			final long[] valueCount = this.sparseCounts.get(value);
+			if (null == valueCount)
+			{
+				this.sparseCounts.put(value, new long[] { count });
+			}
+			else
+			{
+				valueCount[0] += count;
+			}
+		}
+	}
+}
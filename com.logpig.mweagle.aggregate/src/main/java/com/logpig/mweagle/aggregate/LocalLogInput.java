@@ -0,0 +1,147 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aggregate;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+
+/**
+ * A rolled log file on local disk
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class LocalLogInput extends LogInput
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+
+	/**
+	 * Ctor
+	 *
+	 * @param file
+	 *            Log file
+	 */
+	public LocalLogInput(File file)
+	{
+		this.file = file;
+	}
+
+	@Override
+	public String getName()
+	{
+		return this.file.getPath();
+	}
+
+	@Override
+	public InputStream open() throws IOException
+	{
+		return new BufferedInputStream(new FileInputStream(this.file), BUFFER_SIZE);
+	}
+
+	@Override
+	public InputStream openRange(long offset, long length) throws IOException
+	{
+		final FileInputStream input = new FileInputStream(this.file);
+		try
+		{
+			input.getChannel().position(offset);
+		}
+		catch (IOException ex)
+		{
+			input.close();
+			throw ex;
+		}
+		return new BufferedInputStream(new BoundedInputStream(input, length), BUFFER_SIZE);
+	}
+
+	@Override
+	protected InputStream openIndex() throws IOException
+	{
+		final File index = new File(this.file.getPath() + BlockGzipOutputStream.INDEX_SUFFIX);
+		return index.isFile() ? new FileInputStream(index) : null;
+	}
+
+	/**
+	 * Reads no more than a fixed number of bytes
+	 */
+	private static class BoundedInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+		public BoundedInputStream(InputStream in, long length)
+		{
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (this.remaining <= 0)
+			{
+				return -1;
+			}
+			final int b = super.read();
+			if (-1 != b)
+			{
+				this.remaining -= 1;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (this.remaining <= 0)
+			{
+				return -1;
+			}
+			final int n = super.read(bytes, offset, (int) Math.min(length, this.remaining));
+			if (n > 0)
+			{
+				this.remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			final long skipped = super.skip(Math.min(n, this.remaining));
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(super.available(), this.remaining);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,637 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aggregate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.logpig.mweagle.aws.S3TokenSearch;
+import com.logpig.mweagle.rolling.PeriodManifest;
+import com.logpig.mweagle.rolling.S3Settings;
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+
+/**
+ * Computes the aggregates of <i>pig/pigTest.pig</i> without a Pig or Hadoop install, by decompressing and scanning
+ * the rolled log files on a fork-join pool.
+ * <p>
+ * Each file is a task. Files written with <i>splittableGzip</i> are split further into one task per gzip member, as
+ * listed in their index sidecar, so that a single large file is spread across every thread. Each task scans its
+ * lines into its own {@link GuessAggregate}, and the results are merged as the tasks join.
+ * <p>
+ * Can be run from the command line:
+ *
+ * <pre>
+ * java -jar aggregate.jar [-threads n] [-output dir] [-accessKey key -secretKey secret] [-proxy host:port] input...
+ * </pre>
+ *
+ * where each input is a local file, a local directory, <i>s3://bucket/keyPrefix</i> or the
+ * <i>s3://bucket/key.manifest</i> of a {@link PeriodManifest}. Files and keys that start with "." or "_", and
+ * sidecars, are skipped. The totals and the distribution are printed in the layout of the script's output, and also
+ * written to <i>dir/totals/part-00000</i> and <i>dir/guesses/part-00000</i> when <i>-output</i> is given. Gzip, zip and
+ * uncompressed files are read; files in the other compression formats are skipped with a warning.
+ * <p>
+ * <i>-proxy</i> sends S3 requests through an HTTP proxy, such as the benchmarks' S3 stand-in.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class LogAggregator
+{
+	private static final String S3_SCHEME = "s3://";
+
+	private static final String[] UNSUPPORTED_SUFFIXES = { ".lz4", ".sz", ".zst" };
+
+	private final ForkJoinPool pool;
+
+	private final AtomicInteger failureCount = new AtomicInteger();
+
+	private final AtomicInteger fileCount = new AtomicInteger();
+
+	/**
+	 * Ctor
+	 *
+	 * @param threadCount
+	 *            Number of threads that decompress and scan
+	 */
+	public LogAggregator(int threadCount)
+	{
+		this.pool = new ForkJoinPool(threadCount);
+	}
+
+	/**
+	 * Aggregate the inputs
+	 *
+	 * @param inputs
+	 *            Log files
+	 * @return Merged aggregates of every file that could be read
+	 */
+	public GuessAggregate aggregate(List<LogInput> inputs)
+	{
+		return this.pool.invoke(new InputsTask(inputs));
+	}
+
+	/**
+	 * @return Number of files that were read
+	 */
+	public int getFileCount()
+	{
+		return this.fileCount.get();
+	}
+
+	/**
+	 * @return Number of files, or file blocks, that could not be read
+	 */
+	public int getFailureCount()
+	{
+		return this.failureCount.get();
+	}
+
+	/**
+	 * Stop the pool's threads
+	 */
+	public void shutdown()
+	{
+		this.pool.shutdown();
+	}
+
+	/**
+	 * @param directory
+	 *            Local directory to search
+	 * @param inputs
+	 *            Receives the log files in the directory and its subdirectories
+	 */
+	public static void addLocalInputs(File directory, List<LogInput> inputs)
+	{
+		final File[] children = directory.listFiles();
+		if (null == children)
+		{
+			getLogger().warn("Cannot list {}", directory);
+			return;
+		}
+		Arrays.sort(children);
+		for (final File eachChild : children)
+		{
+			if (isHidden(eachChild.getName()))
+			{
+				continue;
+			}
+			if (eachChild.isDirectory())
+			{
+				addLocalInputs(eachChild, inputs);
+			}
+			else if (!S3TokenSearch.isSidecar(eachChild.getName()))
+			{
+				inputs.add(new LocalLogInput(eachChild));
+			}
+		}
+	}
+
+	/**
+	 * @param s3Settings
+	 *            S3Settings with the credentials and bucket
+	 * @param keyPrefix
+	 *            Prefix to list
+	 * @param inputs
+	 *            Receives the log objects under the prefix
+	 */
+	public static void addS3Inputs(S3Settings s3Settings, String keyPrefix, List<LogInput> inputs)
+	{
+		final List<String> objectKeys = new ArrayList<String>();
+		final Set<String> indexKeys = new HashSet<String>();
+		listKeys(s3Settings, keyPrefix, objectKeys, indexKeys);
+		for (final String eachKey : objectKeys)
+		{
+			inputs.add(new S3LogInput(s3Settings, eachKey,
+					indexKeys.contains(eachKey + BlockGzipOutputStream.INDEX_SUFFIX)));
+		}
+	}
+
+	/**
+	 * @param s3Settings
+	 *            S3Settings with the credentials and bucket
+	 * @param manifestKey
+	 *            Key of a {@link PeriodManifest}
+	 * @param inputs
+	 *            Receives the objects that the manifest lists
+	 * @throws IOException
+	 *             If the manifest can't be read
+	 */
+	public static void addManifestInputs(S3Settings s3Settings, String manifestKey, List<LogInput> inputs)
+			throws IOException
+	{
+		final InputStream manifest;
+		try
+		{
+			manifest = s3Settings.getS3Client().getObject(s3Settings.bucketName, manifestKey).getObjectContent();
+		}
+		catch (AmazonClientException ex)
+		{
+			throw new IOException(String.format("Failed to get %s", manifestKey), ex);
+		}
+		final List<String> objectKeys = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, "UTF-8"));
+		try
+		{
+			String line;
+			while (null != (line = reader.readLine()))
+			{
+				final int keyEnd = line.indexOf('\t');
+				if (keyEnd > 0)
+				{
+					objectKeys.add(line.substring(0, keyEnd));
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		// Manifests don't list sidecars, so the index keys come from one listing per directory instead of a GET
+		// per object
+		final Set<String> prefixes = new HashSet<String>();
+		final Set<String> indexKeys = new HashSet<String>();
+		for (final String eachKey : objectKeys)
+		{
+			final String prefix = eachKey.substring(0, eachKey.lastIndexOf('/') + 1);
+			if (prefixes.add(prefix))
+			{
+				listKeys(s3Settings, prefix, null, indexKeys);
+			}
+		}
+		for (final String eachKey : objectKeys)
+		{
+			inputs.add(new S3LogInput(s3Settings, eachKey,
+					indexKeys.contains(eachKey + BlockGzipOutputStream.INDEX_SUFFIX)));
+		}
+	}
+
+	/**
+	 * @param s3Settings
+	 *            S3Settings with the credentials and bucket
+	 * @param keyPrefix
+	 *            Prefix to list
+	 * @param objectKeys
+	 *            Receives the keys of the log objects under the prefix. May be null.
+	 * @param indexKeys
+	 *            Receives the keys of the index sidecars under the prefix
+	 */
+	private static void listKeys(S3Settings s3Settings, String keyPrefix, List<String> objectKeys,
+			Set<String> indexKeys)
+	{
+		final ListObjectsRequest request = new ListObjectsRequest().withBucketName(s3Settings.bucketName)
+				.withPrefix(keyPrefix);
+		ObjectListing listing = s3Settings.getS3Client().listObjects(request);
+		while (true)
+		{
+			for (final S3ObjectSummary eachSummary : listing.getObjectSummaries())
+			{
+				final String key = eachSummary.getKey();
+				if (key.endsWith(BlockGzipOutputStream.INDEX_SUFFIX))
+				{
+					indexKeys.add(key);
+				}
+				else if (null != objectKeys && !isHidden(key.substring(key.lastIndexOf('/') + 1))
+						&& !S3TokenSearch.isSidecar(key))
+				{
+					objectKeys.add(key);
+				}
+			}
+			if (!listing.isTruncated())
+			{
+				break;
+			}
+			listing = s3Settings.getS3Client().listNextBatchOfObjects(listing);
+		}
+	}
+
+	private static boolean isHidden(String name)
+	{
+		// The Hadoop convention, which also skips the upload spool
+		return name.startsWith(".") || name.startsWith("_");
+	}
+
+	private static boolean isUnsupported(String name)
+	{
+		final String lowerName = name.toLowerCase();
+		for (final String eachSuffix : UNSUPPORTED_SUFFIXES)
+		{
+			if (lowerName.endsWith(eachSuffix))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isGzip(String name)
+	{
+		return name.toLowerCase().endsWith(".gz");
+	}
+
+	private static void scan(String name, InputStream input, GuessAggregate aggregate) throws IOException
+	{
+		try
+		{
+			if (isGzip(name))
+			{
+				aggregate.scan(new GZIPInputStream(input, 64 * 1024));
+			}
+			else if (name.toLowerCase().endsWith(".zip"))
+			{
+				final ZipInputStream zipInput = new ZipInputStream(input);
+				while (null != zipInput.getNextEntry())
+				{
+					aggregate.scan(zipInput);
+				}
+			}
+			else
+			{
+				aggregate.scan(input);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(LogAggregator.class);
+	}
+
+	/**
+	 * Aggregates a list of files, one subtask per file
+	 */
+	private class InputsTask extends RecursiveTask<GuessAggregate>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<LogInput> inputs;
+
+		public InputsTask(List<LogInput> inputs)
+		{
+			this.inputs = inputs;
+		}
+
+		@Override
+		protected GuessAggregate compute()
+		{
+			final List<InputTask> tasks = new ArrayList<InputTask>();
+			for (final LogInput eachInput : this.inputs)
+			{
+				tasks.add(new InputTask(eachInput));
+			}
+			invokeAll(tasks);
+			final GuessAggregate aggregate = new GuessAggregate();
+			for (final InputTask eachTask : tasks)
+			{
+				aggregate.merge(eachTask.join());
+			}
+			return aggregate;
+		}
+	}
+
+	/**
+	 * Aggregates one file, forking a subtask per gzip member if it has an index
+	 */
+	private class InputTask extends RecursiveTask<GuessAggregate>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final LogInput input;
+
+		public InputTask(LogInput input)
+		{
+			this.input = input;
+		}
+
+		@Override
+		protected GuessAggregate compute()
+		{
+			final GuessAggregate aggregate = new GuessAggregate();
+			final String name = this.input.getName();
+			if (isUnsupported(name))
+			{
+				getLogger().warn("Skipping {}.  Its compression format can only be written.", name);
+				return aggregate;
+			}
+			try
+			{
+				final List<long[]> blocks = isGzip(name) ? this.input.getBlocks() : new ArrayList<long[]>();
+				if (blocks.size() > 1)
+				{
+					final List<BlockTask> tasks = new ArrayList<BlockTask>();
+					for (final long[] eachBlock : blocks)
+					{
+						tasks.add(new BlockTask(this.input, eachBlock[0], eachBlock[1]));
+					}
+					invokeAll(tasks);
+					for (final BlockTask eachTask : tasks)
+					{
+						aggregate.merge(eachTask.join());
+					}
+				}
+				else
+				{
+					scan(name, this.input.open(), aggregate);
+				}
+				LogAggregator.this.fileCount.incrementAndGet();
+			}
+			catch (IOException ex)
+			{
+				LogAggregator.this.failureCount.incrementAndGet();
+				getLogger().error(String.format("Failed to read %s", name), ex);
+			}
+			return aggregate;
+		}
+	}
+
+	/**
+	 * Aggregates one gzip member of a splittable file
+	 */
+	private class BlockTask extends RecursiveTask<GuessAggregate>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final LogInput input;
+
+		private final long offset;
+
+		private final long length;
+
+		public BlockTask(LogInput input, long offset, long length)
+		{
+			this.input = input;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		protected GuessAggregate compute()
+		{
+			final GuessAggregate aggregate = new GuessAggregate();
+			try
+			{
+				scan(this.input.getName(), this.input.openRange(this.offset, this.length), aggregate);
+			}
+			catch (IOException ex)
+			{
+				LogAggregator.this.failureCount.incrementAndGet();
+				getLogger().error(
+						String.format("Failed to read %d bytes at %d of %s", this.length, this.offset,
+								this.input.getName()), ex);
+			}
+			return aggregate;
+		}
+	}
+
+	private static void writeOutput(File directory, String name, GuessAggregate aggregate) throws IOException
+	{
+		final File partDirectory = new File(directory, name);
+		partDirectory.mkdirs();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(partDirectory, "part-00000")),
+				"UTF-8");
+		try
+		{
+			if ("guesses".equals(name))
+			{
+				aggregate.writeGuesses(writer);
+			}
+			else
+			{
+				aggregate.writeTotals(writer);
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: LogAggregator [-threads n] [-output dir] [-accessKey key -secretKey secret] "
+				+ "[-proxy host:port] input...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (null == System.getProperty("logback.configurationFile"))
+		{
+			// The appender's own logback.xml would post the aggregator's logging to S3
+			System.setProperty("logback.configurationFile", "logback-aggregate.xml");
+		}
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		File outputDirectory = null;
+		String accessKey = null;
+		String secretKey = null;
+		String proxy = null;
+		final List<String> inputNames = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i)
+		{
+			final boolean hasValue = i + 1 < args.length;
+			if ("-threads".equals(args[i]) && hasValue)
+			{
+				threadCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-output".equals(args[i]) && hasValue)
+			{
+				outputDirectory = new File(args[++i]);
+			}
+			else if ("-accessKey".equals(args[i]) && hasValue)
+			{
+				accessKey = args[++i];
+			}
+			else if ("-secretKey".equals(args[i]) && hasValue)
+			{
+				secretKey = args[++i];
+			}
+			else if ("-proxy".equals(args[i]) && hasValue)
+			{
+				proxy = args[++i];
+			}
+			else if (args[i].startsWith("-"))
+			{
+				usage();
+			}
+			else
+			{
+				inputNames.add(args[i]);
+			}
+		}
+		if (inputNames.isEmpty() || threadCount < 1)
+		{
+			usage();
+		}
+		final List<S3Settings> allSettings = new ArrayList<S3Settings>();
+		final List<LogInput> inputs = new ArrayList<LogInput>();
+		for (final String eachName : inputNames)
+		{
+			if (eachName.startsWith(S3_SCHEME))
+			{
+				final String path = eachName.substring(S3_SCHEME.length());
+				final int bucketEnd = path.indexOf('/');
+				final S3Settings s3Settings = createSettings(proxy);
+				s3Settings.accessKey = accessKey;
+				s3Settings.secretKey = secretKey;
+				s3Settings.bucketName = (-1 == bucketEnd) ? path : path.substring(0, bucketEnd);
+				allSettings.add(s3Settings);
+				final String keyName = (-1 == bucketEnd) ? "" : path.substring(bucketEnd + 1);
+				if (keyName.endsWith(PeriodManifest.SUFFIX))
+				{
+					addManifestInputs(s3Settings, keyName, inputs);
+				}
+				else
+				{
+					addS3Inputs(s3Settings, keyName, inputs);
+				}
+			}
+			else
+			{
+				final File file = new File(eachName);
+				if (file.isDirectory())
+				{
+					addLocalInputs(file, inputs);
+				}
+				else
+				{
+					inputs.add(new LocalLogInput(file));
+				}
+			}
+		}
+		final LogAggregator aggregator = new LogAggregator(threadCount);
+		final long startMillis = System.currentTimeMillis();
+		final GuessAggregate aggregate;
+		try
+		{
+			aggregate = aggregator.aggregate(inputs);
+		}
+		finally
+		{
+			aggregator.shutdown();
+			for (final S3Settings eachSettings : allSettings)
+			{
+				eachSettings.shutdown();
+			}
+		}
+		System.err.println(String.format("Aggregated %d lines from %d files with %d threads in %d ms",
+				aggregate.getLineCount(), aggregator.getFileCount(), threadCount, System.currentTimeMillis()
+						- startMillis));
+		final PrintStream out = System.out;
+		final Writer writer = new OutputStreamWriter(out, "UTF-8");
+		aggregate.writeTotals(writer);
+		aggregate.writeGuesses(writer);
+		writer.flush();
+		if (null != outputDirectory)
+		{
+			writeOutput(outputDirectory, "totals", aggregate);
+			writeOutput(outputDirectory, "guesses", aggregate);
+		}
+		if (0 != aggregator.getFailureCount())
+		{
+			System.err.println(String.format("%d inputs could not be read", aggregator.getFailureCount()));
+			System.exit(2);
+		}
+	}
+
+	private static S3Settings createSettings(final String proxy)
+	{
+		if (null == proxy)
+		{
+			return new S3Settings();
+		}
+		final int portStart = proxy.lastIndexOf(':');
+		return new S3Settings()
+		{
+			@Override
+			public ClientConfiguration getClientConfiguration()
+			{
+				final ClientConfiguration configuration = super.getClientConfiguration();
+				configuration.setProtocol(Protocol.HTTP);
+				configuration.setProxyHost(proxy.substring(0, portStart));
+				configuration.setProxyPort(Integer.parseInt(proxy.substring(portStart + 1)));
+				return configuration;
+			}
+		};
+	}
+}
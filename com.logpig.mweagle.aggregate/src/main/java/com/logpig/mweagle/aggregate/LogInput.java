@@ -0,0 +1,116 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aggregate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A rolled log file, either on local disk or in S3, that can be read whole or by byte range.
+ * <p>
+ * Files written with <i>splittableGzip</i> have a {@link com.logpig.mweagle.rolling.helper.BlockGzipOutputStream}
+ * index sidecar, and each gzip member it lists can be decompressed on its own by reading just that range.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public abstract class LogInput
+{
+	/**
+	 * @return File path or object key
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return The whole file
+	 * @throws IOException
+	 *             If it can't be opened
+	 */
+	public abstract InputStream open() throws IOException;
+
+	/**
+	 * @param offset
+	 *            Offset of the first byte
+	 * @param length
+	 *            Number of bytes to read
+	 * @return The range of the file
+	 * @throws IOException
+	 *             If it can't be opened
+	 */
+	public abstract InputStream openRange(long offset, long length) throws IOException;
+
+	/**
+	 * @return The index sidecar, or null if there isn't one
+	 * @throws IOException
+	 *             If it exists but can't be opened
+	 */
+	protected abstract InputStream openIndex() throws IOException;
+
+	/**
+	 * Read the gzip member ranges from the index sidecar
+	 *
+	 * @return <i>{compressedOffset, compressedLength}</i> pairs, or an empty list if there is no index
+	 * @throws IOException
+	 *             If the index can't be read
+	 */
+	public List<long[]> getBlocks() throws IOException
+	{
+		final List<long[]> blocks = new ArrayList<long[]>();
+		final InputStream indexStream = this.openIndex();
+		if (null == indexStream)
+		{
+			return blocks;
+		}
+		final List<Long> offsets = new ArrayList<Long>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(indexStream, "UTF-8"));
+		try
+		{
+			String line;
+			while (null != (line = reader.readLine()))
+			{
+				final String[] fields = line.split("\t");
+				if (2 != fields.length)
+				{
+					throw new IOException(String.format("Malformed index line for %s: %s", this.getName(), line));
+				}
+				offsets.add(Long.parseLong(fields[1]));
+			}
+		}
+		catch (NumberFormatException ex)
+		{
+			throw new IOException(String.format("Malformed index for %s", this.getName()), ex);
+		}
+		finally
+		{
+			reader.close();
+		}
+		// The last line holds the total length, which ends the last member
+		for (int i = 0; i + 1 < offsets.size(); ++i)
+		{
+			blocks.add(new long[] { offsets.get(i), offsets.get(i + 1) - offsets.get(i) });
+		}
+		return blocks;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.getName();
+	}
+}
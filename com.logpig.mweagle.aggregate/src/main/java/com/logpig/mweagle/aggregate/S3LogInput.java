@@ -0,0 +1,113 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aggregate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.logpig.mweagle.rolling.S3Settings;
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+
+/**
+ * A rolled log file in S3. Ranges are read with ranged GETs, so each gzip member of a splittable file can be fetched
+ * by a different thread.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3LogInput extends LogInput
+{
+	private final S3Settings s3Settings;
+
+	private final String keyName;
+
+	private final boolean indexed;
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            S3Settings with the credentials and bucket
+	 * @param keyName
+	 *            Object key
+	 * @param indexed
+	 *            true if the object has an index sidecar. The index is only fetched if it does.
+	 */
+	public S3LogInput(S3Settings s3Settings, String keyName, boolean indexed)
+	{
+		this.s3Settings = s3Settings;
+		this.keyName = keyName;
+		this.indexed = indexed;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "s3://" + this.s3Settings.bucketName + "/" + this.keyName;
+	}
+
+	@Override
+	public InputStream open() throws IOException
+	{
+		return this.getObject(new GetObjectRequest(this.s3Settings.bucketName, this.keyName));
+	}
+
+	@Override
+	public InputStream openRange(long offset, long length) throws IOException
+	{
+		final GetObjectRequest request = new GetObjectRequest(this.s3Settings.bucketName, this.keyName);
+		request.setRange(offset, offset + length - 1);
+		return this.getObject(request);
+	}
+
+	@Override
+	protected InputStream openIndex() throws IOException
+	{
+		if (!this.indexed)
+		{
+			return null;
+		}
+		try
+		{
+			return this.getObject(new GetObjectRequest(this.s3Settings.bucketName, this.keyName
+					+ BlockGzipOutputStream.INDEX_SUFFIX));
+		}
+		catch (IOException ex)
+		{
+			if (ex.getCause() instanceof AmazonServiceException
+					&& HttpURLConnection.HTTP_NOT_FOUND == ((AmazonServiceException) ex.getCause()).getStatusCode())
+			{
+				return null;
+			}
+			throw ex;
+		}
+	}
+
+	private InputStream getObject(GetObjectRequest request) throws IOException
+	{
+		try
+		{
+			return this.s3Settings.getS3Client().getObject(request).getObjectContent();
+		}
+		catch (AmazonClientException ex)
+		{
+			throw new IOException(String.format("Failed to get %s", request.getKey()), ex);
+		}
+	}
+}
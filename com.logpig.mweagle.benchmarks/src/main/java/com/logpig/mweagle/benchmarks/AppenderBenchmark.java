@@ -0,0 +1,113 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.rolling.SizeAndTimeBasedFNATP;
+
+/**
+ * Events per second logged through an S3RollingFileAppender by 1, 4 and as many threads as there are processors.
+ * The file rolls over every 64MB and the rolled files are gzipped, with their S3 posts mocked, so rollovers and
+ * compression compete with the logging threads as they would in production.
+ * <p>
+ * With the async front end on, the score is the rate events are handed to the writer thread, which can only stay
+ * ahead of the writer while the ring buffer has room.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class AppenderBenchmark
+{
+	@Param({ "0", "8192" })
+	public int asyncBufferSize;
+
+	@Param({ "0", "256KB" })
+	public String writeBufferSize;
+
+	private LoggerContext context;
+
+	private Logger logger;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.context = new LoggerContext();
+		final SizeAndTimeBasedFNATP<ILoggingEvent> triggeringPolicy = new SizeAndTimeBasedFNATP<ILoggingEvent>();
+		triggeringPolicy.setMaxFileSize("64MB");
+		this.logger = this.context.getLogger("benchmark");
+		this.logger.setAdditive(false);
+		this.logger.addAppender(BenchmarkLogging.startAppender(this.context, BenchmarkLogging.createDirectory(),
+				"benchmark-%d{yyyy-MM-dd}.%i.log.gz", triggeringPolicy, this.asyncBufferSize, this.writeBufferSize));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.context.stop();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneThread()
+	{
+		this.log();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void fourThreads()
+	{
+		this.log();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void maxThreads()
+	{
+		this.log();
+	}
+
+	private void log()
+	{
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		this.logger.info("Guess {} is that the magic number is: {}", random.nextInt(1000000), random.nextInt(10));
+	}
+}
@@ -0,0 +1,146 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.UUID;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.rolling.TimeBasedFileNamingAndTriggeringPolicy;
+
+import com.logpig.mweagle.rolling.S3RollingFileAppender;
+import com.logpig.mweagle.rolling.S3TimeBasedRollingPolicy;
+
+/**
+ * Builds the appenders and log files that the benchmarks run against
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public final class BenchmarkLogging
+{
+	/**
+	 * Same tab delimited layout as the sample logback.xml
+	 */
+	public static final String PATTERN = "%date{yyyy-MM-dd'T'HH:mm:ss.SSS,GMT}\t*%4p*\t%m%n";
+
+	private BenchmarkLogging()
+	{
+		// NOP
+	}
+
+	/**
+	 * @return New, empty directory under <i>target/benchmark-logs</i>
+	 */
+	public static File createDirectory()
+	{
+		final File directory = new File("target/benchmark-logs", UUID.randomUUID().toString()).getAbsoluteFile();
+		directory.mkdirs();
+		return directory;
+	}
+
+	/**
+	 * Configure and start an S3RollingFileAppender that mocks its S3 posts
+	 *
+	 * @param context
+	 *            Context that owns the appender
+	 * @param directory
+	 *            Directory for the active and rolled files
+	 * @param fileNamePattern
+	 *            Rolled file name pattern, relative to the directory
+	 * @param triggeringPolicy
+	 *            Policy that decides when the file rolls over
+	 * @param asyncBufferSize
+	 *            Async front end ring buffer size, or zero to write on the logging thread
+	 * @param writeBufferSize
+	 *            FileChannel write buffer size, or <i>0</i> to write every event as it is logged
+	 * @return Started appender
+	 */
+	public static S3RollingFileAppender<ILoggingEvent> startAppender(LoggerContext context, File directory,
+			String fileNamePattern, TimeBasedFileNamingAndTriggeringPolicy<ILoggingEvent> triggeringPolicy,
+			int asyncBufferSize, String writeBufferSize)
+	{
+		final S3RollingFileAppender<ILoggingEvent> appender = new S3RollingFileAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setName("benchmark");
+		appender.setFile(new File(directory, "benchmark.log").getPath());
+		appender.setAccessKey("BENCHMARKACCESSKEY");
+		appender.setSecretKey("BENCHMARKSECRETKEY");
+		appender.setBucketName("logpig-benchmark");
+		appender.setMockPut(true);
+		appender.setJmxEnabled(false);
+		appender.setAsyncBufferSize(asyncBufferSize);
+		appender.setWriteBufferSize(writeBufferSize);
+
+		final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern(PATTERN);
+		encoder.start();
+		appender.setEncoder(encoder);
+
+		final S3TimeBasedRollingPolicy<ILoggingEvent> policy = new S3TimeBasedRollingPolicy<ILoggingEvent>();
+		policy.setContext(context);
+		policy.setFileNamePattern(new File(directory, fileNamePattern).getPath());
+		policy.setTimeBasedFileNamingAndTriggeringPolicy(triggeringPolicy);
+		policy.setParent(appender);
+		policy.start();
+		appender.setRollingPolicy(policy);
+		appender.start();
+		return appender;
+	}
+
+	/**
+	 * Write a file of log lines in the appender's layout. The messages repeat the way real logs do, so the file
+	 * compresses about as well as one.
+	 *
+	 * @param file
+	 *            File to write
+	 * @param size
+	 *            Size in bytes, rounded up to a whole line
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void writeLogFile(File file, long size) throws IOException
+	{
+		final String[] levels = new String[] { "INFO", "WARN", "DEBUG", "ERROR" };
+		final Random random = new Random(42);
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try
+		{
+			long written = 0;
+			long millis = 1325376000000L;
+			while (written < size)
+			{
+				millis += random.nextInt(50);
+				final String line = String.format("%tFT%<tT.%<tL\t*%4s*\tGuess %d is that the magic number is: %d%n",
+						millis, levels[random.nextInt(levels.length)], random.nextInt(1000000), random.nextInt(10));
+				writer.write(line);
+				written += line.length();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.rolling.helper.CompressionMode;
+import ch.qos.logback.core.util.FileSize;
+
+import com.logpig.mweagle.rolling.codec.CompressionCodecs;
+import com.logpig.mweagle.rolling.helper.S3Compressor;
+
+/**
+ * Time to compress one rolled file with each S3Compressor mode. The compressed bytes are counted and discarded, so
+ * the score is compression alone; divide <i>fileSize</i> by it for the throughput.
+ * <ul>
+ * <li><i>gz</i>, <i>zip</i>: single threaded, as logback does it</li>
+ * <li><i>gz-parallel</i>: pigz style blocks on one thread per processor</li>
+ * <li><i>gz-split</i>: independently decompressible members on one thread per processor</li>
+ * <li><i>lz4</i>, <i>sz</i> (Snappy), <i>zst</i>: codecs, named by their file suffix</li>
+ * </ul>
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class CompressorBenchmark
+{
+	@Param({ "gz", "gz-parallel", "gz-split", "zip", "lz4", "sz", "zst" })
+	public String mode;
+
+	@Param({ "1MB", "16MB" })
+	public String fileSize;
+
+	private S3Compressor compressor;
+
+	private File source;
+
+	private final CountingSink sink = new CountingSink();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if (this.mode.startsWith("gz"))
+		{
+			this.compressor = new S3Compressor(CompressionMode.GZ);
+			if (!"gz".equals(this.mode))
+			{
+				this.compressor.setThreadCount(processors);
+			}
+			this.compressor.setSplittable("gz-split".equals(this.mode));
+		}
+		else if ("zip".equals(this.mode))
+		{
+			this.compressor = new S3Compressor(CompressionMode.ZIP);
+		}
+		else
+		{
+			this.compressor = new S3Compressor(CompressionMode.NONE);
+		}
+		this.compressor.setContext(new ContextBase());
+		if (!this.mode.startsWith("gz") && !"zip".equals(this.mode))
+		{
+			this.compressor.setCodec(CompressionCodecs.forFileName("benchmark.log." + this.mode, this.compressor));
+			if (null == this.compressor.getCodec())
+			{
+				throw new IllegalStateException(this.mode + " codec is not on the classpath");
+			}
+		}
+		this.source = new File(BenchmarkLogging.createDirectory(), "benchmark.log");
+		BenchmarkLogging.writeLogFile(this.source, FileSize.valueOf(this.fileSize).getSize());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.compressor.shutdown();
+		this.source.delete();
+	}
+
+	@Benchmark
+	public long compress() throws IOException
+	{
+		this.sink.count = 0;
+		this.compressor.compress(this.source.getPath(), this.sink, "benchmark.log");
+		return this.sink.count;
+	}
+
+	/**
+	 * Counts and discards the compressed bytes
+	 */
+	private static class CountingSink extends OutputStream
+	{
+		private long count;
+
+		@Override
+		public void write(int b)
+		{
+			this.count += 1;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+		{
+			this.count += length;
+		}
+	}
+}
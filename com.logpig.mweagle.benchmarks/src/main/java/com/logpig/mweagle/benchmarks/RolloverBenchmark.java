@@ -0,0 +1,120 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.rolling.DefaultTimeBasedFileNamingAndTriggeringPolicy;
+import ch.qos.logback.core.util.FileSize;
+
+import com.logpig.mweagle.rolling.S3RollingFileAppender;
+
+/**
+ * Latency of S3RollingFileAppender.rollover(), the time logging threads are blocked while the active file is
+ * closed, handed to the upload workers and reopened. Before each rollover the active file is filled to
+ * <i>activeFileSize</i> and the triggering policy's clock is moved to the next period.
+ * <p>
+ * The rolled files are gzipped and their S3 posts mocked. Once the workers fall behind, the CALLER_RUNS upload
+ * queue policy adds compression to the rollover, as it would in production.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class RolloverBenchmark
+{
+	@Param({ "256KB", "4MB" })
+	public String activeFileSize;
+
+	@Param({ "0", "256KB" })
+	public String writeBufferSize;
+
+	private LoggerContext context;
+
+	private Logger logger;
+
+	private S3RollingFileAppender<ILoggingEvent> appender;
+
+	private DefaultTimeBasedFileNamingAndTriggeringPolicy<ILoggingEvent> triggeringPolicy;
+
+	private long clock;
+
+	private long eventsPerFile;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.context = new LoggerContext();
+		this.clock = System.currentTimeMillis();
+		this.triggeringPolicy = new DefaultTimeBasedFileNamingAndTriggeringPolicy<ILoggingEvent>();
+		// The simulated clock only moves when a rollover is wanted
+		this.triggeringPolicy.setCurrentTime(this.clock);
+		this.appender = BenchmarkLogging.startAppender(this.context, BenchmarkLogging.createDirectory(),
+				"benchmark-%d{yyyy-MM-dd_HH-mm-ss}.log.gz", this.triggeringPolicy, 0, this.writeBufferSize);
+		this.logger = this.context.getLogger("benchmark");
+		this.logger.setAdditive(false);
+		this.logger.addAppender(this.appender);
+		// About 80 bytes per line
+		this.eventsPerFile = Math.max(1, FileSize.valueOf(this.activeFileSize).getSize() / 80);
+	}
+
+	@Setup(Level.Invocation)
+	public void fillActiveFile()
+	{
+		for (long i = 0; i < this.eventsPerFile; i++)
+		{
+			this.logger.info("Guess {} is that the magic number is: {}", i, i % 10);
+		}
+		this.clock += 1000;
+		this.triggeringPolicy.setCurrentTime(this.clock);
+		// Moves the elapsed period's file name along, as the appender's trigger check would
+		this.triggeringPolicy.isTriggeringEvent(new File(this.appender.getFile()), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.context.stop();
+	}
+
+	@Benchmark
+	public void rollover()
+	{
+		this.appender.rollover();
+	}
+}
@@ -0,0 +1,332 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.logpig.mweagle.rolling.S3Settings;
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+
+/**
+ * In-process stand-in for S3 that accepts and discards objects, so that upload benchmarks measure the client side
+ * of the pipeline over a real HTTP connection without a network round trip.
+ * <p>
+ * The stub listens on the loopback interface and is reached as the client's HTTP proxy, so the SDK's virtual host
+ * style requests arrive unchanged. It answers single PUTs and the multipart initiate, part, complete and abort
+ * requests, and returns the MD5 of each body as its ETag, which the SDK checks. It speaks just enough HTTP/1.1 for
+ * the SDK's pooled keep-alive connections; the JDK's HTTP server can't be used since it changes the case of the
+ * ETag header, which this SDK version looks up by exact name.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3Stub
+{
+	private final ServerSocket serverSocket;
+
+	private final DaemonThreadFactory threadFactory = new DaemonThreadFactory("logpig-s3-stub-");
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	/**
+	 * Ctor. Starts listening on an ephemeral loopback port.
+	 *
+	 * @throws IOException
+	 *             If the port can't be bound
+	 */
+	public S3Stub() throws IOException
+	{
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		this.threadFactory.newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		}).start();
+	}
+
+	/**
+	 * @return S3Settings whose client sends every request to this stub
+	 */
+	public S3Settings createSettings()
+	{
+		final int port = this.serverSocket.getLocalPort();
+		final S3Settings s3Settings = new S3Settings()
+		{
+			@Override
+			public ClientConfiguration getClientConfiguration()
+			{
+				final ClientConfiguration configuration = super.getClientConfiguration();
+				configuration.setProtocol(Protocol.HTTP);
+				configuration.setProxyHost("127.0.0.1");
+				configuration.setProxyPort(port);
+				return configuration;
+			}
+		};
+		s3Settings.accessKey = "BENCHMARKACCESSKEY";
+		s3Settings.secretKey = "BENCHMARKSECRETKEY";
+		s3Settings.bucketName = "logpig-benchmark";
+		return s3Settings;
+	}
+
+	public long getBytesReceived()
+	{
+		return this.bytesReceived.get();
+	}
+
+	public long getRequestCount()
+	{
+		return this.requestCount.get();
+	}
+
+	public void stop()
+	{
+		try
+		{
+			this.serverSocket.close();
+		}
+		catch (IOException ex)
+		{
+			// NOP
+		}
+	}
+
+	private void accept()
+	{
+		while (!this.serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = this.serverSocket.accept();
+				this.threadFactory.newThread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				}).start();
+			}
+			catch (IOException ex)
+			{
+				// Closed by stop()
+			}
+		}
+	}
+
+	private void serve(Socket socket)
+	{
+		try
+		{
+			final InputStream input = new BufferedInputStream(socket.getInputStream());
+			final OutputStream output = socket.getOutputStream();
+			String requestLine;
+			while (null != (requestLine = readLine(input)) && !requestLine.isEmpty())
+			{
+				this.requestCount.incrementAndGet();
+				long contentLength = 0;
+				boolean chunked = false;
+				String header;
+				while (null != (header = readLine(input)) && !header.isEmpty())
+				{
+					final String lowerHeader = header.toLowerCase(Locale.US);
+					if (lowerHeader.startsWith("content-length:"))
+					{
+						contentLength = Long.parseLong(header.substring(15).trim());
+					}
+					else if (lowerHeader.startsWith("transfer-encoding:") && lowerHeader.contains("chunked"))
+					{
+						chunked = true;
+					}
+					else if (lowerHeader.startsWith("expect:") && lowerHeader.contains("100-continue"))
+					{
+						output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+						output.flush();
+					}
+				}
+				final String md5 = chunked ? this.consumeChunked(input) : this.consume(input, contentLength);
+				this.respond(output, requestLine, md5);
+			}
+		}
+		catch (IOException ex)
+		{
+			// The client closed the connection
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException ex)
+			{
+				// NOP
+			}
+		}
+	}
+
+	private void respond(OutputStream output, String requestLine, String md5) throws IOException
+	{
+		final String[] parts = requestLine.split(" ");
+		final String method = parts[0];
+		final String target = (parts.length > 1) ? parts[1] : "";
+		final int queryStart = target.indexOf('?');
+		final String query = (queryStart >= 0) ? target.substring(queryStart + 1) : "";
+		String status = "200 OK";
+		String etag = null;
+		String xml = null;
+		if ("POST".equals(method) && query.startsWith("uploads"))
+		{
+			xml = "<InitiateMultipartUploadResult><Bucket>logpig-benchmark</Bucket><Key>key</Key><UploadId>"
+					+ UUID.randomUUID() + "</UploadId></InitiateMultipartUploadResult>";
+		}
+		else if ("POST".equals(method))
+		{
+			xml = "<CompleteMultipartUploadResult><Location>stub</Location><Bucket>logpig-benchmark</Bucket>"
+					+ "<Key>key</Key><ETag>&quot;" + md5 + "-1&quot;</ETag></CompleteMultipartUploadResult>";
+		}
+		else if ("DELETE".equals(method))
+		{
+			status = "204 No Content";
+		}
+		else
+		{
+			etag = "\"" + md5 + "\"";
+		}
+		final byte[] body = (null != xml) ? ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes("UTF-8")
+				: new byte[0];
+		final StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 ").append(status).append("\r\n");
+		response.append("x-amz-request-id: ").append(this.requestCount.get()).append("\r\n");
+		if (null != etag)
+		{
+			response.append("ETag: ").append(etag).append("\r\n");
+		}
+		if (null != xml)
+		{
+			response.append("Content-Type: application/xml\r\n");
+		}
+		response.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+		output.write(response.toString().getBytes("US-ASCII"));
+		output.write(body);
+		output.flush();
+	}
+
+	private String consume(InputStream input, long length) throws IOException
+	{
+		final MessageDigest digest = newDigest();
+		final byte[] buffer = new byte[64 * 1024];
+		long remaining = length;
+		while (remaining > 0)
+		{
+			final int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (-1 == read)
+			{
+				throw new IOException("Request body ended early");
+			}
+			digest.update(buffer, 0, read);
+			remaining -= read;
+		}
+		this.bytesReceived.addAndGet(length);
+		return toHex(digest.digest());
+	}
+
+	private String consumeChunked(InputStream input) throws IOException
+	{
+		final MessageDigest digest = newDigest();
+		final byte[] buffer = new byte[64 * 1024];
+		long chunkSize;
+		while (0 != (chunkSize = Long.parseLong(readLine(input).split(";")[0].trim(), 16)))
+		{
+			long remaining = chunkSize;
+			while (remaining > 0)
+			{
+				final int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (-1 == read)
+				{
+					throw new IOException("Request body ended early");
+				}
+				digest.update(buffer, 0, read);
+				remaining -= read;
+			}
+			this.bytesReceived.addAndGet(chunkSize);
+			// CRLF after the chunk
+			readLine(input);
+		}
+		// Trailers
+		String trailer;
+		while (null != (trailer = readLine(input)) && !trailer.isEmpty())
+		{
+			// NOP
+		}
+		return toHex(digest.digest());
+	}
+
+	private static String readLine(InputStream input) throws IOException
+	{
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while (-1 != (b = input.read()))
+		{
+			if ('\n' == b)
+			{
+				final String text = line.toString("US-ASCII");
+				return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+			}
+			line.write(b);
+		}
+		return (0 == line.size()) ? null : line.toString("US-ASCII");
+	}
+
+	private static MessageDigest newDigest() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IOException("MD5 is not available", ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		final StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (final byte eachByte : bytes)
+		{
+			hex.append(String.format("%02x", eachByte));
+		}
+		return hex.toString();
+	}
+}
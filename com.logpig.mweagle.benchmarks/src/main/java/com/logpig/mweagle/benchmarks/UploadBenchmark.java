@@ -0,0 +1,122 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.core.util.FileSize;
+
+import com.logpig.mweagle.aws.S3FilePutRunnable;
+import com.logpig.mweagle.aws.S3MultipartOutputStream;
+import com.logpig.mweagle.rolling.S3Settings;
+
+/**
+ * Time to post one object to an in-process {@link S3Stub}, so that the score is the client's own cost: request
+ * signing, MD5s, part buffering and the HTTP connection pool. Objects of at least 8MB are sent as 5MB multipart
+ * parts.
+ * <ul>
+ * <li><i>filePut</i>: a rolled file, as {@link S3FilePutRunnable} posts it</li>
+ * <li><i>streamPut</i>: a streaming upload with parts buffered on the heap</li>
+ * <li><i>streamPutDirect</i>: a streaming upload with parts buffered in the shared off-heap pool</li>
+ * </ul>
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class UploadBenchmark
+{
+	@Param({ "1MB", "32MB" })
+	public String objectSize;
+
+	private S3Stub stub;
+
+	private S3Settings s3Settings;
+
+	private File file;
+
+	private final byte[] chunk = new byte[64 * 1024];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		this.stub = new S3Stub();
+		this.s3Settings = this.stub.createSettings();
+		this.s3Settings.multipartPartSize = S3Settings.MIN_MULTIPART_PART_SIZE;
+		this.s3Settings.multipartThreshold = 8 * 1024 * 1024;
+		this.file = new File(BenchmarkLogging.createDirectory(), "benchmark.log");
+		BenchmarkLogging.writeLogFile(this.file, FileSize.valueOf(this.objectSize).getSize());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.s3Settings.shutdown();
+		this.stub.stop();
+		this.file.delete();
+	}
+
+	@Benchmark
+	public boolean filePut()
+	{
+		return new S3FilePutRunnable(this.file.getPath(), this.s3Settings).upload();
+	}
+
+	@Benchmark
+	public long streamPut() throws IOException
+	{
+		return this.stream(new S3MultipartOutputStream(UUID.randomUUID().toString(), this.s3Settings));
+	}
+
+	@Benchmark
+	public long streamPutDirect() throws IOException
+	{
+		return this.stream(new S3MultipartOutputStream(UUID.randomUUID().toString(), this.s3Settings,
+				this.s3Settings.getDirectBufferPool()));
+	}
+
+	private long stream(S3MultipartOutputStream s3Stream) throws IOException
+	{
+		final long size = FileSize.valueOf(this.objectSize).getSize();
+		for (long written = 0; written < size; written += this.chunk.length)
+		{
+			s3Stream.write(this.chunk, 0, (int) Math.min(this.chunk.length, size - written));
+		}
+		s3Stream.close();
+		return s3Stream.getByteCount();
+	}
+}
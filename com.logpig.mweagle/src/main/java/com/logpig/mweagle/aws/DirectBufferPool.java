@@ -0,0 +1,99 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fixed size pool of direct, off-heap ByteBuffers. Buffers are allocated on first use, up to the pool's buffer
+ * count, and reused after that. Once every buffer is in use, {@link #acquire()} blocks until one is released, so the
+ * pool caps the memory held by the buffers at <i>bufferSize * bufferCount</i> bytes.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class DirectBufferPool
+{
+	private final int bufferSize;
+
+	private final int bufferCount;
+
+	private final BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+
+	private int allocatedCount;
+
+	/**
+	 * Ctor
+	 *
+	 * @param bufferSize
+	 *            Capacity of each buffer in bytes
+	 * @param bufferCount
+	 *            Maximum number of buffers
+	 */
+	public DirectBufferPool(int bufferSize, int bufferCount)
+	{
+		this.bufferSize = bufferSize;
+		this.bufferCount = bufferCount;
+	}
+
+	/**
+	 * Take a cleared buffer, waiting for one to be released if they're all in use
+	 *
+	 * @return A buffer with {@link #getBufferSize()} bytes remaining
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public ByteBuffer acquire() throws InterruptedException
+	{
+		final ByteBuffer freeBuffer = this.freeBuffers.poll();
+		if (null != freeBuffer)
+		{
+			return freeBuffer;
+		}
+		synchronized (this)
+		{
+			if (this.allocatedCount < this.bufferCount)
+			{
+				this.allocatedCount += 1;
+				return ByteBuffer.allocateDirect(this.bufferSize);
+			}
+		}
+		return this.freeBuffers.take();
+	}
+
+	/**
+	 * Return a buffer to the pool
+	 *
+	 * @param buffer
+	 *            Buffer from {@link #acquire()}. It must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		buffer.clear();
+		this.freeBuffers.offer(buffer);
+	}
+
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}
+
+	public int getBufferCount()
+	{
+		return this.bufferCount;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when, and whether, a failed S3 request is retried.
+ * <p>
+ * Retries wait for an exponentially increasing delay, <i>baseDelay * 2^(attempt - 1)</i> capped at <i>maxDelay</i>,
+ * and the actual wait is chosen uniformly between zero and that delay ("full jitter"), so that hosts that failed at
+ * the same moment don't all retry at the same moment.
+ * <p>
+ * Every retry made with the same S3Settings also draws from a shared budget, which is refilled by one for each
+ * successful request. During an S3 outage the budget runs dry and failed requests give up after their first attempt
+ * instead of multiplying the load, leaving their files in the upload spool. First attempts are never limited.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class RetryScheduler
+{
+	private final long baseDelayMillis;
+
+	private final long maxDelayMillis;
+
+	private final int retryBudget;
+
+	private final Random random = new Random();
+
+	private int availableRetries;
+
+	private long retryCount;
+
+	private long refusedCount;
+
+	/**
+	 * Ctor
+	 *
+	 * @param baseDelayMillis
+	 *            Delay before the first retry, before jitter
+	 * @param maxDelayMillis
+	 *            Upper bound for any single delay, before jitter
+	 * @param retryBudget
+	 *            Maximum number of retries that can be made without an intervening success
+	 */
+	public RetryScheduler(long baseDelayMillis, long maxDelayMillis, int retryBudget)
+	{
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.retryBudget = retryBudget;
+		this.availableRetries = retryBudget;
+	}
+
+	/**
+	 * Wait before retrying a failed request
+	 *
+	 * @param attempt
+	 *            Number of attempts that have failed so far, starting at 1
+	 * @return true if the request should be retried, false if the retry budget is spent or the thread was interrupted
+	 */
+	public boolean awaitRetry(int attempt)
+	{
+		if (!this.takeRetry())
+		{
+			return false;
+		}
+		try
+		{
+			TimeUnit.MILLISECONDS.sleep(this.getJitteredDelay(attempt));
+			return true;
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Record a successful request, returning one retry to the budget
+	 */
+	public synchronized void recordSuccess()
+	{
+		this.availableRetries = Math.min(this.retryBudget, this.availableRetries + 1);
+	}
+
+	/**
+	 * @return Number of retries left in the budget
+	 */
+	public synchronized int getAvailableRetries()
+	{
+		return this.availableRetries;
+	}
+
+	/**
+	 * @return Number of retries taken from the budget
+	 */
+	public synchronized long getRetryCount()
+	{
+		return this.retryCount;
+	}
+
+	/**
+	 * @return Number of retries refused because the budget was spent
+	 */
+	public synchronized long getRefusedCount()
+	{
+		return this.refusedCount;
+	}
+
+	private synchronized boolean takeRetry()
+	{
+		if (this.availableRetries <= 0)
+		{
+			this.refusedCount += 1;
+			return false;
+		}
+		this.availableRetries -= 1;
+		this.retryCount += 1;
+		return true;
+	}
+
+	private long getJitteredDelay(int attempt)
+	{
+		// Keep the shift from overflowing on long runs of failures
+		final int exponent = Math.min(Math.max(attempt - 1, 0), 30);
+		final long delay = Math.min(this.maxDelayMillis, this.baseDelayMillis << exponent);
+		synchronized (this.random)
+		{
+			return (long) (this.random.nextDouble() * delay);
+		}
+	}
+}
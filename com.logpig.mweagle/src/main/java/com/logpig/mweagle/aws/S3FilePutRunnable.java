@@ -16,8 +16,10 @@
 package com.logpig.mweagle.aws;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,12 +27,21 @@ import org.slf4j.LoggerFactory;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.logpig.mweagle.rolling.PeriodManifest;
 import com.logpig.mweagle.rolling.S3Settings;
 
 /**
- * Runnable that puts a local file to S3
+ * Runnable that puts a local file to S3.  Files at least {@link S3Settings#multipartThreshold} bytes long are sent
+ * as a parallel multipart upload.  Once the file is posted, its sidecar files are posted next to it.
+ * <p>
+ * If the caller already knows the file's MD5, for instance because it was computed while the file was compressed,
+ * it is sent as the Content-MD5 of a single part put.  Otherwise the SDK reads the whole file to compute it before
+ * sending it.  Either way, S3 rejects a body that doesn't match, and the SDK checks the returned ETag against it.
  * 
+ * @see S3MultipartUpload
  * @author Matt Weagle (mweagle@gmail.com)
  */
 public class S3FilePutRunnable implements Runnable
@@ -40,6 +51,8 @@ public class S3FilePutRunnable implements Runnable
 
 	private final String filePath;
 
+	private final String contentMD5;
+
 	private final S3Settings s3Settings;
 
 	/**
@@ -51,20 +64,60 @@ public class S3FilePutRunnable implements Runnable
 	 *            S3Settings data that is used to construct put request
 	 */
 	public S3FilePutRunnable(String filePath, S3Settings s3Settings)
+	{
+		this(filePath, null, s3Settings);
+	}
+
+	/**
+	 * Ctor
+	 * 
+	 * @param filePath
+	 *            Path to local file to post
+	 * @param contentMD5
+	 *            Base64 encoded MD5 of the file. May be null.
+	 * @param s3Settings
+	 *            S3Settings data that is used to construct put request
+	 */
+	public S3FilePutRunnable(String filePath, String contentMD5, S3Settings s3Settings)
 	{
 		this.filePath = filePath;
+		this.contentMD5 = contentMD5;
 		this.s3Settings = s3Settings;
 	}
 
 	@Override
 	public void run()
 	{
+		upload();
+	}
+
+	/**
+	 * Put the file to S3, retrying up to {@link S3Settings#retryCount} times.  Retries are spaced out and limited
+	 * by the shared {@link RetryScheduler}.
+	 * 
+	 * @return true if S3 has the file
+	 */
+	public boolean upload()
+	{
+		boolean posted = false;
 		boolean createBucket = false;
 		boolean doExit = false;
 		int attempt = 0;
-		final AmazonS3Client s3Client = new AmazonS3Client(this.s3Settings.getAWSCredentials());
+		final AmazonS3Client s3Client = this.s3Settings.getS3Client();
+		final RetryScheduler retryScheduler = this.s3Settings.getRetryScheduler();
+		final File logfile = new File(this.filePath);
+		// Keep the same key across attempts so that an interrupted multipart
+		// upload can be resumed
+		String keyName = S3MultipartUpload.getResumableKeyName(logfile, this.s3Settings);
+		if (null == keyName)
+		{
+			keyName = this.s3Settings.getKeyName(this.filePath);
+		}
+		String postedMD5 = this.contentMD5;
 		while (!doExit && attempt != this.s3Settings.retryCount)
 		{
+			final long startMillis = System.currentTimeMillis();
+			S3MultipartUpload multipartUpload = null;
 			try
 			{
 				if (!s3Settings.mockPut)
@@ -73,19 +126,35 @@ public class S3FilePutRunnable implements Runnable
 					{
 						s3Client.createBucket(this.s3Settings.bucketName, this.s3Settings.regionName);
 					}
-					final File logfile = new File(this.filePath);
-					final String keyName = UUID.randomUUID().toString();
-					final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, keyName, logfile);
-					s3Client.putObject(request);
+					if (logfile.length() >= this.s3Settings.multipartThreshold)
+					{
+						multipartUpload = new S3MultipartUpload(logfile, keyName, this.s3Settings);
+						multipartUpload.upload();
+					}
+					else
+					{
+						postedMD5 = this.putObject(s3Client, logfile, keyName);
+					}
 				}
 				else
 				{
-					logger.warn("Mocking file POST: {}", this.filePath);
+					logger.warn("Mocking file POST: {} as {}", this.filePath, keyName);
 				}
+				retryScheduler.recordSuccess();
+				this.s3Settings.getMetrics().recordUpload(keyName, logfile.length(),
+						System.currentTimeMillis() - startMillis);
+				posted = true;
 				doExit = true;
+				new S3SidecarPoster(this.filePath, keyName, this.s3Settings).post();
+				final PeriodManifest manifest = this.s3Settings.getManifest();
+				if (null != manifest)
+				{
+					manifest.addObject(this.filePath, keyName, logfile.length(), postedMD5);
+				}
 			}
 			catch (AmazonServiceException ex)
 			{
+				this.s3Settings.getMetrics().recordFailure(keyName, ex);
 				createBucket = false;
 				if (HttpURLConnection.HTTP_NOT_FOUND == ex.getStatusCode() && ex.getErrorCode().equals("NoSuchBucket"))
 				{
@@ -108,6 +177,7 @@ public class S3FilePutRunnable implements Runnable
 			}
 			catch (AmazonClientException ex)
 			{
+				this.s3Settings.getMetrics().recordFailure(keyName, ex);
 				createBucket = false;
 				logger.error(String.format("Failed to post %s to AWS", this.filePath), ex);
 			}
@@ -119,6 +189,163 @@ public class S3FilePutRunnable implements Runnable
 					attempt += 1;
 				}
 			}
+			if (!doExit && null != multipartUpload && multipartUpload.isPartRetriesExhausted())
+			{
+				// Each part retries on its own, so retrying the whole file would multiply the attempts
+				logger.error("Multipart upload retries exhausted.  {} will be posted from the spool.", this.filePath);
+				doExit = true;
+			}
+			if (!doExit && !createBucket && attempt != this.s3Settings.retryCount
+					&& !retryScheduler.awaitRetry(attempt))
+			{
+				logger.error("Retry budget exhausted.  {} will be posted from the spool.", this.filePath);
+				doExit = true;
+			}
+		}
+		return posted;
+	}
+
+	/**
+	 * @return Base64 encoded MD5 of the posted object, or null if S3 didn't report one
+	 */
+	private String putObject(AmazonS3Client s3Client, File logfile, String keyName)
+	{
+		if (null == this.contentMD5)
+		{
+			final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, keyName, logfile);
+			request.setProgressListener(this.s3Settings.getUploadThrottle());
+			// The ETag of a single part put is the hex MD5 that the SDK computed and checked
+			final String eTag = s3Client.putObject(request).getETag();
+			return (null != eTag && 32 == eTag.length()) ? BinaryUtils.toBase64(BinaryUtils.fromHex(eTag)) : null;
+		}
+		// Given a File, the SDK reads it once for the MD5 and again to send it.  Given a stream and
+		// the MD5, it reads the file once.
+		final ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(logfile.length());
+		metadata.setContentMD5(this.contentMD5);
+		metadata.setContentType(getContentType(logfile));
+		final InputStream input;
+		try
+		{
+			input = new RepeatableFileInputStream(logfile);
+		}
+		catch (IOException ex)
+		{
+			throw new AmazonClientException(String.format("Unable to open %s", this.filePath), ex);
+		}
+		try
+		{
+			final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, keyName, input,
+					metadata);
+			request.setProgressListener(this.s3Settings.getUploadThrottle());
+			s3Client.putObject(request);
+			return this.contentMD5;
+		}
+		finally
+		{
+			try
+			{
+				input.close();
+			}
+			catch (IOException ex)
+			{
+				// NOP
+			}
+		}
+	}
+
+	/**
+	 * @return The content type that the SDK gives a put of the file, for the rolled file suffixes
+	 */
+	private static String getContentType(File logfile)
+	{
+		final String name = logfile.getName();
+		if (name.endsWith(".gz"))
+		{
+			return "application/x-gzip";
+		}
+		if (name.endsWith(".zip"))
+		{
+			return "application/zip";
+		}
+		return "application/octet-stream";
+	}
+
+	/**
+	 * Reads the file once, and seeks back to the mark so that the SDK can resend it on a retryable error
+	 */
+	private static class RepeatableFileInputStream extends InputStream
+	{
+		private final FileInputStream input;
+
+		private long position;
+
+		private long markPosition;
+
+		public RepeatableFileInputStream(File file) throws IOException
+		{
+			this.input = new FileInputStream(file);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int value = this.input.read();
+			if (-1 != value)
+			{
+				this.position += 1;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			final int count = this.input.read(bytes, offset, length);
+			if (count > 0)
+			{
+				this.position += count;
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException
+		{
+			final long skipped = this.input.skip(count);
+			this.position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return this.input.available();
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit)
+		{
+			this.markPosition = this.position;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException
+		{
+			this.input.getChannel().position(this.markPosition);
+			this.position = this.markPosition;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.input.close();
 		}
 	}
 }
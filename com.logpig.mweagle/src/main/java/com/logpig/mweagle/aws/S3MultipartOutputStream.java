@@ -0,0 +1,569 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.logpig.mweagle.rolling.S3Settings;
+
+/**
+ * OutputStream that writes directly to an S3 object. Bytes are buffered in memory until a full
+ * {@link S3Settings#multipartPartSize} part is available, and each full part is uploaded in parallel on the
+ * S3Settings part executor. Each stream has at most {@link S3Settings#multipartThreadCount} parts in flight, plus the
+ * one being filled, so a single stream holds at most <i>(multipartThreadCount + 1) * multipartPartSize</i> bytes no
+ * matter how large the object is. The limit is per stream, not shared: concurrent streams each hold up to that much.
+ * Objects smaller than one part are sent as a single put.
+ * <p>
+ * Parts are buffered on the heap unless a {@link DirectBufferPool} is given, in which case each part is held in one
+ * of the pool's off-heap buffers until it has been uploaded. Writes wait for a free buffer once they are all in use.
+ * <p>
+ * If any part fails after {@link S3Settings#retryCount} attempts, the multipart upload is aborted and the stream
+ * throws an IOException.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3MultipartOutputStream extends OutputStream
+{
+	private final Logger logger = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+	private final String keyName;
+
+	private final S3Settings s3Settings;
+
+	private final Semaphore partsInFlight;
+
+	private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+	private final DirectBufferPool bufferPool;
+
+	private final long startMillis = System.currentTimeMillis();
+
+	private PartBuffer buffer;
+
+	private String uploadId;
+
+	private long byteCount;
+
+	private volatile AmazonClientException failure;
+
+	private boolean closed;
+
+	/**
+	 * Ctor
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param s3Settings
+	 *            S3Settings data that is used to construct the requests
+	 */
+	public S3MultipartOutputStream(String keyName, S3Settings s3Settings)
+	{
+		this(keyName, s3Settings, null);
+	}
+
+	/**
+	 * Ctor
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param s3Settings
+	 *            S3Settings data that is used to construct the requests
+	 * @param bufferPool
+	 *            Pool of off-heap buffers of at least {@link S3Settings#multipartPartSize} bytes that hold the parts.
+	 *            May be null, in which case parts are buffered on the heap.
+	 */
+	public S3MultipartOutputStream(String keyName, S3Settings s3Settings, DirectBufferPool bufferPool)
+	{
+		this.keyName = keyName;
+		this.s3Settings = s3Settings;
+		this.bufferPool = bufferPool;
+		this.partsInFlight = new Semaphore(s3Settings.multipartThreadCount);
+	}
+
+	/**
+	 * @return Number of bytes written to the stream
+	 */
+	public long getByteCount()
+	{
+		return this.byteCount;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.checkFailure();
+		this.ensureBuffer();
+		this.buffer.write(b);
+		this.byteCount += 1;
+		if (this.buffer.size() >= this.s3Settings.multipartPartSize)
+		{
+			this.sendPart();
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		this.checkFailure();
+		while (length > 0)
+		{
+			this.ensureBuffer();
+			final int count = (int) Math.min(length, this.s3Settings.multipartPartSize - this.buffer.size());
+			this.buffer.write(bytes, offset, count);
+			this.byteCount += count;
+			offset += count;
+			length -= count;
+			if (this.buffer.size() >= this.s3Settings.multipartPartSize)
+			{
+				this.sendPart();
+			}
+		}
+	}
+
+	/**
+	 * Upload whatever is buffered and complete the object
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		if (this.s3Settings.mockPut)
+		{
+			logger.warn("Mocking stream POST: {} ({} bytes)", this.keyName, this.byteCount);
+			this.releaseBuffer();
+			this.recordUpload();
+			return;
+		}
+		try
+		{
+			if (null == this.uploadId)
+			{
+				this.putSingleObject();
+			}
+			else
+			{
+				if (null != this.buffer && this.buffer.size() > 0)
+				{
+					this.sendPart();
+				}
+				this.completeUpload();
+			}
+			this.recordUpload();
+		}
+		catch (AmazonClientException ex)
+		{
+			if (ex != this.failure)
+			{
+				// Part failures were recorded as they happened
+				this.s3Settings.getMetrics().recordFailure(this.keyName, ex);
+			}
+			this.abort();
+			throw new IOException(String.format("Failed to post %s to AWS", this.keyName), ex);
+		}
+	}
+
+	/**
+	 * Abandon the object. Parts that were already uploaded are discarded by S3.
+	 */
+	public void abort()
+	{
+		this.closed = true;
+		this.releaseBuffer();
+		if (null != this.uploadId && !this.s3Settings.mockPut)
+		{
+			try
+			{
+				this.s3Settings.getS3Client().abortMultipartUpload(
+						new AbortMultipartUploadRequest(this.s3Settings.bucketName, this.keyName, this.uploadId));
+			}
+			catch (AmazonClientException ex)
+			{
+				logger.warn(String.format("Failed to abort multipart upload of %s", this.keyName), ex);
+			}
+			this.uploadId = null;
+		}
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if (null != this.failure)
+		{
+			this.abort();
+			throw new IOException(String.format("Failed to post %s to AWS", this.keyName), this.failure);
+		}
+		if (this.closed)
+		{
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void ensureBuffer() throws IOException
+	{
+		if (null != this.buffer)
+		{
+			return;
+		}
+		if (null == this.bufferPool)
+		{
+			this.buffer = new HeapPartBuffer();
+			return;
+		}
+		try
+		{
+			this.buffer = new DirectPartBuffer(this.bufferPool, this.bufferPool.acquire());
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			this.abort();
+			throw new IOException("Interrupted waiting for a buffer for " + this.keyName, ex);
+		}
+	}
+
+	private void releaseBuffer()
+	{
+		if (null != this.buffer)
+		{
+			this.buffer.release();
+			this.buffer = null;
+		}
+	}
+
+	private void putSingleObject()
+	{
+		final PartBuffer objectBuffer = (null != this.buffer) ? this.buffer : new HeapPartBuffer();
+		try
+		{
+			final ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(objectBuffer.size());
+			final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, this.keyName,
+					objectBuffer.toInputStream(), metadata);
+			request.setProgressListener(this.s3Settings.getUploadThrottle());
+			this.s3Settings.getS3Client().putObject(request);
+		}
+		finally
+		{
+			this.releaseBuffer();
+		}
+	}
+
+	private void sendPart() throws IOException
+	{
+		if (this.s3Settings.mockPut)
+		{
+			this.releaseBuffer();
+			return;
+		}
+		try
+		{
+			if (null == this.uploadId)
+			{
+				this.uploadId = this.s3Settings
+						.getS3Client()
+						.initiateMultipartUpload(
+								new InitiateMultipartUploadRequest(this.s3Settings.bucketName, this.keyName))
+						.getUploadId();
+			}
+			// Bound the number of buffered parts
+			this.partsInFlight.acquire();
+		}
+		catch (AmazonClientException ex)
+		{
+			this.s3Settings.getMetrics().recordFailure(this.keyName, ex);
+			throw new IOException(String.format("Failed to post %s to AWS", this.keyName), ex);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			this.abort();
+			throw new IOException("Interrupted waiting to upload part of " + this.keyName, ex);
+		}
+		final PartUploadCallable part = new PartUploadCallable(this.parts.size() + 1, this.buffer);
+		this.buffer = null;
+		this.parts.add(this.s3Settings.getPartExecutor().submit(part));
+	}
+
+	private void completeUpload()
+	{
+		final List<PartETag> partETags = new ArrayList<PartETag>(this.parts.size());
+		for (final Future<PartETag> eachPart : this.parts)
+		{
+			try
+			{
+				partETags.add(eachPart.get());
+			}
+			catch (ExecutionException ex)
+			{
+				throw (ex.getCause() instanceof AmazonClientException) ? (AmazonClientException) ex.getCause()
+						: new AmazonClientException("Failed to upload part of " + this.keyName, ex.getCause());
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted uploading " + this.keyName, ex);
+			}
+		}
+		this.s3Settings.getS3Client().completeMultipartUpload(
+				new CompleteMultipartUploadRequest(this.s3Settings.bucketName, this.keyName, this.uploadId,
+						partETags));
+	}
+
+	private void recordUpload()
+	{
+		this.s3Settings.getMetrics().recordUpload(this.keyName, this.byteCount,
+				System.currentTimeMillis() - this.startMillis);
+	}
+
+	/**
+	 * Holds the bytes of one part until it has been uploaded
+	 */
+	private interface PartBuffer
+	{
+		void write(int b);
+
+		void write(byte[] bytes, int offset, int length);
+
+		int size();
+
+		/**
+		 * @return A new stream over the buffered bytes, so that each attempt reads from the start
+		 */
+		InputStream toInputStream();
+
+		/**
+		 * Called once the part is no longer needed
+		 */
+		void release();
+	}
+
+	/**
+	 * ByteArrayOutputStream that can be read back without copying its contents
+	 */
+	private static class HeapPartBuffer extends ByteArrayOutputStream implements PartBuffer
+	{
+		public HeapPartBuffer()
+		{
+			super(64 * 1024);
+		}
+
+		@Override
+		public InputStream toInputStream()
+		{
+			return new ByteArrayInputStream(this.buf, 0, this.count);
+		}
+
+		@Override
+		public void release()
+		{
+			// Left to the garbage collector
+		}
+	}
+
+	/**
+	 * Part held in a pooled off-heap buffer, which goes back to the pool on release
+	 */
+	private static class DirectPartBuffer implements PartBuffer
+	{
+		private final DirectBufferPool pool;
+
+		private final ByteBuffer byteBuffer;
+
+		public DirectPartBuffer(DirectBufferPool pool, ByteBuffer byteBuffer)
+		{
+			this.pool = pool;
+			this.byteBuffer = byteBuffer;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			this.byteBuffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+		{
+			this.byteBuffer.put(bytes, offset, length);
+		}
+
+		@Override
+		public int size()
+		{
+			return this.byteBuffer.position();
+		}
+
+		@Override
+		public InputStream toInputStream()
+		{
+			final ByteBuffer readView = this.byteBuffer.duplicate();
+			readView.flip();
+			return new ByteBufferInputStream(readView);
+		}
+
+		@Override
+		public void release()
+		{
+			this.pool.release(this.byteBuffer);
+		}
+	}
+
+	/**
+	 * InputStream over the remaining bytes of a ByteBuffer
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer byteBuffer;
+
+		private int markPosition;
+
+		public ByteBufferInputStream(ByteBuffer byteBuffer)
+		{
+			this.byteBuffer = byteBuffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return this.byteBuffer.hasRemaining() ? (this.byteBuffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if (!this.byteBuffer.hasRemaining())
+			{
+				return -1;
+			}
+			final int count = Math.min(length, this.byteBuffer.remaining());
+			this.byteBuffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available()
+		{
+			return this.byteBuffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit)
+		{
+			this.markPosition = this.byteBuffer.position();
+		}
+
+		@Override
+		public synchronized void reset()
+		{
+			this.byteBuffer.position(this.markPosition);
+		}
+	}
+
+	/**
+	 * Uploads one buffered part, retrying it up to {@link S3Settings#retryCount} times
+	 */
+	private class PartUploadCallable implements Callable<PartETag>
+	{
+		private final int partNumber;
+
+		private final PartBuffer partBuffer;
+
+		public PartUploadCallable(int partNumber, PartBuffer partBuffer)
+		{
+			this.partNumber = partNumber;
+			this.partBuffer = partBuffer;
+		}
+
+		@Override
+		public PartETag call() throws Exception
+		{
+			final S3Settings settings = S3MultipartOutputStream.this.s3Settings;
+			final AmazonS3Client s3Client = settings.getS3Client();
+			int attempt = 0;
+			try
+			{
+				while (true)
+				{
+					try
+					{
+						final UploadPartRequest request = new UploadPartRequest()
+								.withBucketName(settings.bucketName).withKey(S3MultipartOutputStream.this.keyName)
+								.withUploadId(S3MultipartOutputStream.this.uploadId).withPartNumber(this.partNumber)
+								.withInputStream(this.partBuffer.toInputStream())
+								.withPartSize(this.partBuffer.size())
+								.withProgressListener(settings.getUploadThrottle());
+						final PartETag partETag = s3Client.uploadPart(request).getPartETag();
+						settings.getRetryScheduler().recordSuccess();
+						return partETag;
+					}
+					catch (AmazonClientException ex)
+					{
+						settings.getMetrics().recordFailure(S3MultipartOutputStream.this.keyName, ex);
+						attempt += 1;
+						final boolean forbidden = (ex instanceof AmazonServiceException)
+								&& HttpURLConnection.HTTP_FORBIDDEN == ((AmazonServiceException) ex).getStatusCode();
+						if (forbidden || attempt >= settings.retryCount || !settings.getRetryScheduler().awaitRetry(attempt))
+						{
+							S3MultipartOutputStream.this.failure = ex;
+							throw ex;
+						}
+						logger.warn(String.format("Failed to post part %d of %s to AWS.  Retrying.", this.partNumber,
+								S3MultipartOutputStream.this.keyName), ex);
+					}
+				}
+			}
+			finally
+			{
+				this.partBuffer.release();
+				S3MultipartOutputStream.this.partsInFlight.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.logpig.mweagle.rolling.S3Settings;
+
+/**
+ * Uploads a local file to S3 as a multipart upload. Parts are uploaded in parallel on the S3Settings part executor and
+ * each part is retried independently, so a failure costs one part rather than the whole file.
+ * <p>
+ * The upload id is recorded in a <i>.upload</i> state file next to the local file. If an upload fails, the next
+ * attempt for the same file lists the parts S3 already has and only sends the missing ones. The state file is
+ * removed once the upload completes.
+ *
+ * @see S3FilePutRunnable
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3MultipartUpload
+{
+	/**
+	 * Suffix of the state file that records an in-progress upload
+	 */
+	public static final String STATE_FILE_SUFFIX = ".upload";
+
+	private static final String KEY_PROPERTY = "key";
+
+	private static final String UPLOAD_ID_PROPERTY = "uploadId";
+
+	private final Logger logger = LoggerFactory.getLogger(S3MultipartUpload.class);
+
+	private final File file;
+
+	private final String keyName;
+
+	private final S3Settings s3Settings;
+
+	private final File stateFile;
+
+	private boolean partRetriesExhausted;
+
+	/**
+	 * Ctor
+	 *
+	 * @param file
+	 *            Local file to upload
+	 * @param keyName
+	 *            Object key
+	 * @param s3Settings
+	 *            S3Settings data that is used to construct the requests
+	 */
+	public S3MultipartUpload(File file, String keyName, S3Settings s3Settings)
+	{
+		this.file = file;
+		this.keyName = keyName;
+		this.s3Settings = s3Settings;
+		this.stateFile = getStateFile(file, s3Settings);
+	}
+
+	/**
+	 * Returns the object key of an interrupted upload of the given file, so that a retry can resume it.
+	 *
+	 * @param file
+	 *            Local file
+	 * @param s3Settings
+	 *            Settings of the destination the file is being uploaded to
+	 * @return The key of the interrupted upload, or null if there is none
+	 */
+	public static String getResumableKeyName(File file, S3Settings s3Settings)
+	{
+		final Properties state = readState(getStateFile(file, s3Settings));
+		return (null != state) ? state.getProperty(KEY_PROPERTY) : null;
+	}
+
+	/**
+	 * Each destination of a file keeps its own state file, since the same file is uploaded to every destination
+	 */
+	private static File getStateFile(File file, S3Settings s3Settings)
+	{
+		final String destinationName = s3Settings.getDestinationName();
+		return new File(file.getPath() + STATE_FILE_SUFFIX + ((null != destinationName) ? "." + destinationName : ""));
+	}
+
+	/**
+	 * Upload the file, resuming an earlier incomplete upload if one is recorded
+	 *
+	 * @throws AmazonClientException
+	 *             If any part could not be uploaded after {@link S3Settings#retryCount} attempts
+	 */
+	public void upload() throws AmazonClientException
+	{
+		final AmazonS3Client s3Client = this.s3Settings.getS3Client();
+		final long partSize = this.s3Settings.multipartPartSize;
+		final long fileLength = this.file.length();
+		final int partCount = (int) Math.max(1, (fileLength + partSize - 1) / partSize);
+
+		Map<Integer, PartSummary> existingParts = null;
+		String uploadId = null;
+		final Properties state = readState(this.stateFile);
+		if (null != state && this.keyName.equals(state.getProperty(KEY_PROPERTY)))
+		{
+			uploadId = state.getProperty(UPLOAD_ID_PROPERTY);
+			existingParts = listParts(s3Client, uploadId);
+			if (null == existingParts)
+			{
+				uploadId = null;
+			}
+		}
+		if (null == uploadId)
+		{
+			uploadId = s3Client.initiateMultipartUpload(
+					new InitiateMultipartUploadRequest(this.s3Settings.bucketName, this.keyName)).getUploadId();
+			existingParts = new HashMap<Integer, PartSummary>();
+			writeState(uploadId);
+		}
+		else
+		{
+			logger.info("Resuming multipart upload of {} with {} existing parts", this.file, existingParts.size());
+		}
+
+		final List<Future<PartETag>> pendingParts = new ArrayList<Future<PartETag>>();
+		final List<PartETag> partETags = new ArrayList<PartETag>();
+		for (int partNumber = 1; partNumber <= partCount; ++partNumber)
+		{
+			final long offset = (partNumber - 1) * partSize;
+			final long size = Math.min(partSize, fileLength - offset);
+			final PartSummary existing = existingParts.get(partNumber);
+			if (null != existing && isSamePart(existing, offset, size))
+			{
+				partETags.add(new PartETag(partNumber, existing.getETag()));
+			}
+			else
+			{
+				final PartUploadCallable part = new PartUploadCallable(s3Client, uploadId, partNumber, offset, size,
+						partNumber == partCount);
+				pendingParts.add(this.s3Settings.getPartExecutor().submit(part));
+			}
+		}
+
+		// Wait for every part, even after a failure, so that the parts that did
+		// succeed are on S3 for the next attempt to resume from.
+		AmazonClientException failure = null;
+		for (final Future<PartETag> eachPart : pendingParts)
+		{
+			try
+			{
+				partETags.add(eachPart.get());
+			}
+			catch (ExecutionException ex)
+			{
+				if (null == failure)
+				{
+					failure = (ex.getCause() instanceof AmazonClientException) ? (AmazonClientException) ex.getCause()
+							: new AmazonClientException("Failed to upload part of " + this.file, ex.getCause());
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted uploading " + this.file, ex);
+			}
+		}
+		if (null != failure)
+		{
+			this.partRetriesExhausted = true;
+			throw failure;
+		}
+		s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(this.s3Settings.bucketName, this.keyName,
+				uploadId, sortByPartNumber(partETags)));
+		if (!this.stateFile.delete())
+		{
+			logger.warn("Could not delete multipart upload state file {}", this.stateFile);
+		}
+	}
+
+	/**
+	 * @return true if the last {@link #upload()} failed because a part had already been retried
+	 *         {@link S3Settings#retryCount} times
+	 */
+	public boolean isPartRetriesExhausted()
+	{
+		return this.partRetriesExhausted;
+	}
+
+	/**
+	 * @return The parts S3 already has for the upload, or null if the upload no longer exists
+	 */
+	private Map<Integer, PartSummary> listParts(AmazonS3Client s3Client, String uploadId)
+	{
+		final Map<Integer, PartSummary> parts = new HashMap<Integer, PartSummary>();
+		try
+		{
+			Integer marker = null;
+			PartListing listing;
+			do
+			{
+				final ListPartsRequest request = new ListPartsRequest(this.s3Settings.bucketName, this.keyName,
+						uploadId);
+				if (null != marker)
+				{
+					request.setPartNumberMarker(marker);
+				}
+				listing = s3Client.listParts(request);
+				for (final PartSummary eachPart : listing.getParts())
+				{
+					parts.put(eachPart.getPartNumber(), eachPart);
+				}
+				marker = listing.getNextPartNumberMarker();
+			}
+			while (listing.isTruncated());
+		}
+		catch (AmazonServiceException ex)
+		{
+			if (HttpURLConnection.HTTP_NOT_FOUND == ex.getStatusCode())
+			{
+				logger.warn("Multipart upload {} of {} no longer exists.  Starting over.", uploadId, this.file);
+				return null;
+			}
+			throw ex;
+		}
+		return parts;
+	}
+
+	/**
+	 * A part that S3 already has is reused only if it has the expected size and its ETag matches the MD5 of the
+	 * local byte range
+	 */
+	private boolean isSamePart(PartSummary existing, long offset, long size)
+	{
+		if (existing.getSize() != size)
+		{
+			return false;
+		}
+		try
+		{
+			final String etag = existing.getETag().replace("\"", "");
+			return etag.equalsIgnoreCase(md5Hex(this.file, offset, size));
+		}
+		catch (IOException ex)
+		{
+			return false;
+		}
+	}
+
+	private static String md5Hex(File file, long offset, long size) throws IOException
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new IOException(ex);
+		}
+		final InputStream input = new FileInputStream(file);
+		try
+		{
+			long skipped = 0;
+			while (skipped < offset)
+			{
+				final long count = input.skip(offset - skipped);
+				if (count <= 0)
+				{
+					throw new IOException("Unable to seek to part offset in " + file);
+				}
+				skipped += count;
+			}
+			final byte[] buffer = new byte[8192];
+			long remaining = size;
+			while (remaining > 0)
+			{
+				final int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (count < 0)
+				{
+					throw new IOException("Unexpected end of file reading part of " + file);
+				}
+				digest.update(buffer, 0, count);
+				remaining -= count;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		final StringBuilder hex = new StringBuilder();
+		for (final byte eachByte : digest.digest())
+		{
+			hex.append(String.format("%02x", eachByte));
+		}
+		return hex.toString();
+	}
+
+	private static List<PartETag> sortByPartNumber(List<PartETag> partETags)
+	{
+		final PartETag[] sorted = new PartETag[partETags.size()];
+		for (final PartETag eachPart : partETags)
+		{
+			sorted[eachPart.getPartNumber() - 1] = eachPart;
+		}
+		final List<PartETag> result = new ArrayList<PartETag>(sorted.length);
+		for (final PartETag eachPart : sorted)
+		{
+			result.add(eachPart);
+		}
+		return result;
+	}
+
+	private static Properties readState(File stateFile)
+	{
+		if (!stateFile.exists())
+		{
+			return null;
+		}
+		final Properties state = new Properties();
+		try
+		{
+			final InputStream input = new FileInputStream(stateFile);
+			try
+			{
+				state.load(input);
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			return null;
+		}
+		return state;
+	}
+
+	private void writeState(String uploadId)
+	{
+		final Properties state = new Properties();
+		state.setProperty(KEY_PROPERTY, this.keyName);
+		state.setProperty(UPLOAD_ID_PROPERTY, uploadId);
+		try
+		{
+			final OutputStream output = new FileOutputStream(this.stateFile);
+			try
+			{
+				state.store(output, "Logpig multipart upload of " + this.file.getName());
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			// The upload still works, it just can't be resumed
+			logger.warn(String.format("Failed to record multipart upload state for %s", this.file), ex);
+		}
+	}
+
+	/**
+	 * Uploads a single part, retrying it up to {@link S3Settings#retryCount} times
+	 */
+	private class PartUploadCallable implements Callable<PartETag>
+	{
+		private final AmazonS3Client s3Client;
+
+		private final String uploadId;
+
+		private final int partNumber;
+
+		private final long offset;
+
+		private final long size;
+
+		private final boolean lastPart;
+
+		public PartUploadCallable(AmazonS3Client s3Client, String uploadId, int partNumber, long offset, long size,
+				boolean lastPart)
+		{
+			this.s3Client = s3Client;
+			this.uploadId = uploadId;
+			this.partNumber = partNumber;
+			this.offset = offset;
+			this.size = size;
+			this.lastPart = lastPart;
+		}
+
+		@Override
+		public PartETag call() throws Exception
+		{
+			final S3Settings settings = S3MultipartUpload.this.s3Settings;
+			int attempt = 0;
+			while (true)
+			{
+				try
+				{
+					final UploadPartRequest request = new UploadPartRequest().withBucketName(settings.bucketName)
+							.withKey(S3MultipartUpload.this.keyName).withUploadId(this.uploadId)
+							.withPartNumber(this.partNumber).withFile(S3MultipartUpload.this.file)
+							.withFileOffset(this.offset).withPartSize(this.size).withLastPart(this.lastPart)
+							.withProgressListener(settings.getUploadThrottle());
+					final PartETag partETag = this.s3Client.uploadPart(request).getPartETag();
+					settings.getRetryScheduler().recordSuccess();
+					return partETag;
+				}
+				catch (AmazonClientException ex)
+				{
+					attempt += 1;
+					final boolean forbidden = (ex instanceof AmazonServiceException)
+							&& HttpURLConnection.HTTP_FORBIDDEN == ((AmazonServiceException) ex).getStatusCode();
+					if (forbidden || attempt >= settings.retryCount || !settings.getRetryScheduler().awaitRetry(attempt))
+					{
+						throw ex;
+					}
+					// The final failure is recorded by the caller
+					settings.getMetrics().recordFailure(S3MultipartUpload.this.keyName, ex);
+					logger.warn(String.format("Failed to post part %d of %s to AWS.  Retrying.", this.partNumber,
+							S3MultipartUpload.this.file), ex);
+				}
+			}
+		}
+	}
+}
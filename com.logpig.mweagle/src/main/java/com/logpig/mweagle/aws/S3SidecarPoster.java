@@ -0,0 +1,126 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.logpig.mweagle.rolling.S3Settings;
+
+/**
+ * Posts the sidecar files of a rolled file next to its S3 object. A sidecar is a local file named <i>file +
+ * suffix</i>, for each of the {@link S3Settings#getSidecarSuffixes()}, and is posted as <i>key + suffix</i>. Posted
+ * sidecars are deleted from local disk unless {@link S3Settings#mockPut} is set; sidecars that can't be posted are
+ * left in place. When the file is also posted to other destinations, the sidecars are deleted by
+ * {@link com.logpig.mweagle.rolling.S3FanOut} once every destination has them.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3SidecarPoster
+{
+	private final Logger logger = LoggerFactory.getLogger(S3SidecarPoster.class);
+
+	private final String filePath;
+
+	private final String keyName;
+
+	private final S3Settings s3Settings;
+
+	/**
+	 * Ctor
+	 *
+	 * @param filePath
+	 *            Path of the rolled file, whether or not it still exists locally
+	 * @param keyName
+	 *            Object key the rolled file was posted as
+	 * @param s3Settings
+	 *            S3Settings data that is used to construct put requests
+	 */
+	public S3SidecarPoster(String filePath, String keyName, S3Settings s3Settings)
+	{
+		this.filePath = filePath;
+		this.keyName = keyName;
+		this.s3Settings = s3Settings;
+	}
+
+	/**
+	 * Post every sidecar that exists, retrying each up to {@link S3Settings#retryCount} times
+	 *
+	 * @return true if every sidecar was posted
+	 */
+	public boolean post()
+	{
+		boolean postedAll = true;
+		for (final String eachSuffix : this.s3Settings.getSidecarSuffixes())
+		{
+			final File sidecar = new File(this.filePath + eachSuffix);
+			if (sidecar.exists())
+			{
+				if (this.post(sidecar, this.keyName + eachSuffix))
+				{
+					if (!this.s3Settings.mockPut && null == this.s3Settings.getFanOut())
+					{
+						sidecar.delete();
+					}
+				}
+				else
+				{
+					postedAll = false;
+				}
+			}
+		}
+		return postedAll;
+	}
+
+	private boolean post(File sidecar, String sidecarKeyName)
+	{
+		if (this.s3Settings.mockPut)
+		{
+			logger.warn("Mocking sidecar POST: {} as {}", sidecar, sidecarKeyName);
+			return true;
+		}
+		final RetryScheduler retryScheduler = this.s3Settings.getRetryScheduler();
+		int attempt = 0;
+		while (true)
+		{
+			try
+			{
+				final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, sidecarKeyName,
+						sidecar);
+				request.setProgressListener(this.s3Settings.getUploadThrottle());
+				this.s3Settings.getS3Client().putObject(request);
+				retryScheduler.recordSuccess();
+				return true;
+			}
+			catch (AmazonClientException ex)
+			{
+				this.s3Settings.getMetrics().recordFailure(sidecarKeyName, ex);
+				attempt += 1;
+				if (attempt >= this.s3Settings.retryCount || !retryScheduler.awaitRetry(attempt))
+				{
+					logger.error(String.format("Failed to post sidecar %s to AWS.  It is left on local disk.",
+							sidecar), ex);
+					return false;
+				}
+				logger.warn(String.format("Failed to post sidecar %s to AWS.  Retrying.", sidecar), ex);
+			}
+		}
+	}
+}
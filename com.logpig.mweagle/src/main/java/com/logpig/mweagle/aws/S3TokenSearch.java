@@ -0,0 +1,273 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.logpig.mweagle.rolling.S3Settings;
+import com.logpig.mweagle.rolling.UploadCoalescer;
+import com.logpig.mweagle.rolling.columnar.ColumnarWriter;
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+import com.logpig.mweagle.rolling.helper.TokenBloomFilter;
+import com.logpig.mweagle.rolling.stats.EventStats;
+
+/**
+ * Finds the log objects that may contain a token, such as a request or user ID, by checking the
+ * {@link TokenBloomFilter} sidecars under a key prefix, so that only those objects need to be downloaded. Objects
+ * without a filter are always candidates, since nothing rules them out.
+ * <p>
+ * Can be run from the command line:
+ *
+ * <pre>
+ * java com.logpig.mweagle.aws.S3TokenSearch accessKey secretKey bucketName keyPrefix token
+ * </pre>
+ *
+ * which prints the lines of the candidate objects that contain the token. Gzip and plain text objects are searched;
+ * the keys of objects in other formats are printed so they can be fetched by hand.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3TokenSearch
+{
+	private final Logger logger = LoggerFactory.getLogger(S3TokenSearch.class);
+
+	private static final String[] SIDECAR_SUFFIXES = { TokenBloomFilter.SUFFIX, EventStats.SUFFIX,
+			ColumnarWriter.SUFFIX, BlockGzipOutputStream.INDEX_SUFFIX, UploadCoalescer.MANIFEST_SUFFIX };
+
+	private final S3Settings s3Settings;
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            S3Settings with the credentials and bucket to search
+	 */
+	public S3TokenSearch(S3Settings s3Settings)
+	{
+		this.s3Settings = s3Settings;
+	}
+
+	/**
+	 * List the objects under a prefix and check their filters
+	 *
+	 * @param keyPrefix
+	 *            Key prefix to search under. May be empty.
+	 * @param token
+	 *            Token to look for
+	 * @return Keys of the objects that may contain the token, in key order
+	 */
+	public List<String> findCandidates(String keyPrefix, String token)
+	{
+		final AmazonS3Client s3Client = this.s3Settings.getS3Client();
+		final List<String> objectKeys = new ArrayList<String>();
+		final Set<String> filterKeys = new HashSet<String>();
+		ObjectListing listing = s3Client.listObjects(new ListObjectsRequest().withBucketName(
+				this.s3Settings.bucketName).withPrefix(keyPrefix));
+		while (true)
+		{
+			for (final S3ObjectSummary eachSummary : listing.getObjectSummaries())
+			{
+				final String key = eachSummary.getKey();
+				if (key.endsWith(TokenBloomFilter.SUFFIX))
+				{
+					filterKeys.add(key);
+				}
+				else if (!isSidecar(key))
+				{
+					objectKeys.add(key);
+				}
+			}
+			if (!listing.isTruncated())
+			{
+				break;
+			}
+			listing = s3Client.listNextBatchOfObjects(listing);
+		}
+		final List<String> candidates = new ArrayList<String>();
+		for (final String eachKey : objectKeys)
+		{
+			final String filterKey = eachKey + TokenBloomFilter.SUFFIX;
+			if (!filterKeys.contains(filterKey) || this.filterMightContain(filterKey, token))
+			{
+				candidates.add(eachKey);
+			}
+		}
+		logger.info("{} of {} objects may contain {}", new Object[] { candidates.size(), objectKeys.size(), token });
+		return candidates;
+	}
+
+	/**
+	 * Download an object and print its lines that contain the token
+	 *
+	 * @param key
+	 *            Object key
+	 * @param token
+	 *            Token to look for
+	 * @param out
+	 *            Stream that the matching lines are printed to, each prefixed with the key
+	 * @return Number of matching lines
+	 * @throws IOException
+	 *             If the object can't be read, or isn't gzip or plain text
+	 */
+	public int printMatches(String key, String token, PrintStream out) throws IOException
+	{
+		final InputStream content = this.s3Settings.getS3Client().getObject(this.s3Settings.bucketName, key)
+				.getObjectContent();
+		try
+		{
+			InputStream input = new BufferedInputStream(content);
+			input.mark(2);
+			final int first = input.read();
+			final int second = input.read();
+			input.reset();
+			if (0x1f == first && 0x8b == second)
+			{
+				input = new GZIPInputStream(input);
+			}
+			else if (!isText(key))
+			{
+				throw new IOException(String.format("%s isn't gzip or plain text", key));
+			}
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+			int matches = 0;
+			String line;
+			while (null != (line = reader.readLine()))
+			{
+				if (line.contains(token))
+				{
+					out.println(key + "\t" + line);
+					matches += 1;
+				}
+			}
+			return matches;
+		}
+		finally
+		{
+			content.close();
+		}
+	}
+
+	private boolean filterMightContain(String filterKey, String token)
+	{
+		try
+		{
+			final InputStream content = this.s3Settings.getS3Client()
+					.getObject(this.s3Settings.bucketName, filterKey).getObjectContent();
+			try
+			{
+				for (final TokenBloomFilter eachFilter : TokenBloomFilter.readAll(content))
+				{
+					if (eachFilter.mightContain(token))
+					{
+						return true;
+					}
+				}
+				return false;
+			}
+			finally
+			{
+				content.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			logger.warn(String.format("Failed to read %s.  Treating its object as a candidate.", filterKey), ex);
+			return true;
+		}
+		catch (AmazonClientException ex)
+		{
+			logger.warn(String.format("Failed to get %s.  Treating its object as a candidate.", filterKey), ex);
+			return true;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Object key
+	 * @return true if the key names one of the appender's sidecar objects rather than a log file
+	 */
+	public static boolean isSidecar(String key)
+	{
+		for (final String eachSuffix : SIDECAR_SUFFIXES)
+		{
+			if (key.endsWith(eachSuffix))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Uncompressed rolled files keep their own name, so anything that isn't a known compressed suffix is read as text
+	 */
+	private static boolean isText(String key)
+	{
+		final String lowerKey = key.toLowerCase();
+		return !(lowerKey.endsWith(".zip") || lowerKey.endsWith(".lz4") || lowerKey.endsWith(".sz") || lowerKey
+				.endsWith(".zst"));
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 5)
+		{
+			System.err.println("Usage: S3TokenSearch accessKey secretKey bucketName keyPrefix token");
+			System.exit(1);
+		}
+		final S3Settings s3Settings = new S3Settings();
+		s3Settings.accessKey = args[0];
+		s3Settings.secretKey = args[1];
+		s3Settings.bucketName = args[2];
+		final S3TokenSearch search = new S3TokenSearch(s3Settings);
+		try
+		{
+			for (final String eachKey : search.findCandidates(args[3], args[4]))
+			{
+				try
+				{
+					search.printMatches(eachKey, args[4], System.out);
+				}
+				catch (IOException ex)
+				{
+					System.err.println(String.format("Fetch %s to search it: %s", eachKey, ex.getMessage()));
+				}
+			}
+		}
+		finally
+		{
+			s3Settings.shutdown();
+		}
+	}
+}
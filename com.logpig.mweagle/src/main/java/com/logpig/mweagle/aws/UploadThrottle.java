@@ -0,0 +1,110 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.amazonaws.services.s3.model.ProgressListener;
+
+/**
+ * Token bucket that caps the rate at which bytes are sent to S3. The bucket holds at most one second's worth of
+ * bytes, so an idle appender can burst briefly before it is held to the configured rate.
+ * <p>
+ * The throttle is registered as the ProgressListener of every put and part upload made with the same S3Settings. The
+ * AWS SDK notifies the listener on the uploading thread as the request body is read, so blocking in
+ * {@link #progressChanged(ProgressEvent)} slows the upload itself. Concurrent uploads share the one bucket.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class UploadThrottle implements ProgressListener
+{
+	private final long bytesPerSecond;
+
+	private double availableBytes;
+
+	private long lastRefillNanos;
+
+	/**
+	 * Ctor
+	 *
+	 * @param bytesPerSecond
+	 *            Maximum sustained upload rate. Must be greater than zero.
+	 */
+	public UploadThrottle(long bytesPerSecond)
+	{
+		this.bytesPerSecond = bytesPerSecond;
+		this.availableBytes = bytesPerSecond;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return Maximum sustained upload rate in bytes per second
+	 */
+	public long getBytesPerSecond()
+	{
+		return this.bytesPerSecond;
+	}
+
+	@Override
+	public void progressChanged(ProgressEvent progressEvent)
+	{
+		if (progressEvent.getBytesTransfered() > 0)
+		{
+			this.acquire(progressEvent.getBytesTransfered());
+		}
+	}
+
+	/**
+	 * Take the given number of bytes from the bucket, waiting for them if the bucket doesn't hold enough
+	 *
+	 * @param byteCount
+	 *            Number of bytes about to be sent
+	 */
+	public void acquire(long byteCount)
+	{
+		final long waitNanos = this.reserve(byteCount);
+		if (waitNanos > 0)
+		{
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The bucket is allowed to go negative, which makes later callers wait their turn behind this one without any of
+	 * them sleeping while holding the lock.
+	 */
+	private synchronized long reserve(long byteCount)
+	{
+		final long now = System.nanoTime();
+		final double refill = (now - this.lastRefillNanos) * (double) this.bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.availableBytes = Math.min(this.bytesPerSecond, this.availableBytes + refill);
+		this.lastRefillNanos = now;
+		this.availableBytes -= byteCount;
+		if (this.availableBytes >= 0)
+		{
+			return 0;
+		}
+		return (long) (-this.availableBytes * TimeUnit.SECONDS.toNanos(1) / this.bytesPerSecond);
+	}
+}
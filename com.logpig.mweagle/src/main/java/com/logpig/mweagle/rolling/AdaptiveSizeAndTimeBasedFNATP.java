@@ -0,0 +1,442 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.File;
+import java.util.Date;
+
+import ch.qos.logback.core.joran.spi.NoAutoStart;
+import ch.qos.logback.core.rolling.TimeBasedFileNamingAndTriggeringPolicyBase;
+import ch.qos.logback.core.rolling.helper.Compressor;
+import ch.qos.logback.core.rolling.helper.FileFilterUtil;
+import ch.qos.logback.core.rolling.helper.FileNamePattern;
+import ch.qos.logback.core.rolling.helper.SizeAndTimeBasedArchiveRemover;
+import ch.qos.logback.core.util.FileSize;
+
+/**
+ * TimeBasedFileNamingAndTriggeringPolicy that picks the rollover size and interval at runtime, rather than using a
+ * fixed <i>maxFileSize</i> like SizeAndTimeBasedFNATP. Rolled files are named the same way, with a <i>%i</i> counter
+ * within each period of the file name pattern's date.
+ * <p>
+ * The active file is rolled over when it reaches the size that compresses to <i>targetObjectSize</i>, using the
+ * compression ratio observed so far, or once it is old enough that its events would reach S3 within
+ * <i>targetLatency</i>, given the observed compression and upload speeds. While files wait for an upload thread,
+ * rolling sooner can't ship them sooner, so both limits grow with the upload backlog and fewer, larger objects are
+ * posted until it clears. The size stays between <i>minFileSize</i> and <i>maxFileSize</i>, and the interval between
+ * <i>minRolloverInterval</i> and <i>maxRolloverInterval</i>. A file smaller than <i>minFileSize</i> is only rolled
+ * over for its age once it reaches <i>maxRolloverInterval</i>, so quiet periods don't post a stream of tiny objects.
+ * <p>
+ * Supports the following optional logback.xml properties:
+ * <ul>
+ * <li><b>targetObjectSize</b>: Compressed object size to aim for (String, using the same syntax as
+ * <i>maxFileSize</i>). Defaults to {@link #DEFAULT_TARGET_OBJECT_SIZE}</li>
+ * <li><b>targetLatency</b>: Milliseconds from an event being written to its object being in S3 to aim for (long).
+ * Defaults to {@link #DEFAULT_TARGET_LATENCY}</li>
+ * <li><b>minFileSize</b>: Smallest uncompressed size to roll over at (String). Defaults to
+ * {@link #DEFAULT_MIN_FILE_SIZE}</li>
+ * <li><b>maxFileSize</b>: Largest uncompressed size to roll over at (String). Defaults to
+ * {@link #DEFAULT_MAX_FILE_SIZE}</li>
+ * <li><b>minRolloverInterval</b>: Shortest time in milliseconds to roll over after (long). Defaults to
+ * {@link #DEFAULT_MIN_ROLLOVER_INTERVAL}</li>
+ * <li><b>maxRolloverInterval</b>: Longest time in milliseconds to roll over after (long). Defaults to
+ * {@link #DEFAULT_MAX_ROLLOVER_INTERVAL}</li>
+ * </ul>
+ * The compression, upload and backlog measurements come from the {@link S3TimeBasedRollingPolicy} it is nested in.
+ * Under another rolling policy, files are rolled at <i>targetObjectSize</i> and <i>targetLatency</i>, within the
+ * bounds.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+@NoAutoStart
+public class AdaptiveSizeAndTimeBasedFNATP<E> extends TimeBasedFileNamingAndTriggeringPolicyBase<E>
+{
+	public static final long DEFAULT_TARGET_OBJECT_SIZE = 8 * 1024 * 1024;
+
+	public static final long DEFAULT_TARGET_LATENCY = 5 * 60 * 1000;
+
+	public static final long DEFAULT_MIN_FILE_SIZE = 64 * 1024;
+
+	public static final long DEFAULT_MAX_FILE_SIZE = 256 * 1024 * 1024;
+
+	public static final long DEFAULT_MIN_ROLLOVER_INTERVAL = 10 * 1000;
+
+	public static final long DEFAULT_MAX_ROLLOVER_INTERVAL = 60 * 60 * 1000;
+
+	/**
+	 * Weight of each new measurement in the running estimates
+	 */
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * How often the limits are recomputed while a file is active, as the backlog and estimates change
+	 */
+	private static final long LIMITS_UPDATE_INTERVAL = 1000;
+
+	private long targetObjectSize = DEFAULT_TARGET_OBJECT_SIZE;
+
+	private long targetLatency = DEFAULT_TARGET_LATENCY;
+
+	private long minFileSize = DEFAULT_MIN_FILE_SIZE;
+
+	private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+	private long minRolloverInterval = DEFAULT_MIN_ROLLOVER_INTERVAL;
+
+	private long maxRolloverInterval = DEFAULT_MAX_ROLLOVER_INTERVAL;
+
+	private FileNamePattern fileNamePatternWCS;
+
+	private int currentPeriodsCounter;
+
+	private long fileStartMillis;
+
+	private long sizeLimit;
+
+	private long ageLimit;
+
+	private long limitsUpdateMillis;
+
+	private S3Settings s3Settings;
+
+	private UploadSpool spool;
+
+	private final PipelineEstimates estimates = new PipelineEstimates();
+
+	// As in SizeAndTimeBasedFNATP, the file size is only checked every few events
+	private int invocationCounter;
+
+	private int invocationMask = 0x1;
+
+	@Override
+	public void start()
+	{
+		// The parent's patterns are package private, so they're derived from the policy's settings
+		final FileNamePattern fileNamePattern = new FileNamePattern(tbrp.getFileNamePattern(), context);
+		if (null == fileNamePattern.getIntegerTokenConverter())
+		{
+			throw new IllegalStateException("FileNamePattern [" + fileNamePattern.getPattern()
+					+ "] does not contain a %i counter, which AdaptiveSizeAndTimeBasedFNATP requires");
+		}
+		fileNamePatternWCS = new FileNamePattern(Compressor.computeFileNameStr_WCS(tbrp.getFileNamePattern(),
+				tbrp.getCompressionMode()), context);
+		super.start();
+		this.validateBounds();
+
+		archiveRemover = new SizeAndTimeBasedArchiveRemover(fileNamePattern, rc);
+		archiveRemover.setContext(context);
+
+		// As in SizeAndTimeBasedFNATP, continue the counter if the application is restarted within a period
+		final String stemRegex = FileFilterUtil.afterLastSlash(fileNamePattern.toRegex(dateInCurrentPeriod));
+		final File[] matchingFiles = FileFilterUtil.filesInFolderMatchingStemRegex(
+				new File(this.getCurrentPeriodsFileNameWithoutCompressionSuffix()).getParentFile(), stemRegex);
+		if (null != matchingFiles && 0 != matchingFiles.length)
+		{
+			currentPeriodsCounter = FileFilterUtil.findHighestCounter(matchingFiles, stemRegex);
+			if (null != tbrp.getParentsRawFileProperty())
+			{
+				currentPeriodsCounter++;
+			}
+		}
+		this.startFile(getCurrentTime());
+		started = true;
+	}
+
+	private void validateBounds()
+	{
+		if (minFileSize < 1 || maxFileSize < minFileSize)
+		{
+			addWarn(String.format("minFileSize must be at least 1 byte and no more than maxFileSize.  Using %d and %d.",
+					DEFAULT_MIN_FILE_SIZE, DEFAULT_MAX_FILE_SIZE));
+			minFileSize = DEFAULT_MIN_FILE_SIZE;
+			maxFileSize = DEFAULT_MAX_FILE_SIZE;
+		}
+		if (minRolloverInterval < 1 || maxRolloverInterval < minRolloverInterval)
+		{
+			addWarn(String.format("minRolloverInterval must be at least 1ms and no more than maxRolloverInterval.  "
+					+ "Using %d and %d.", DEFAULT_MIN_ROLLOVER_INTERVAL, DEFAULT_MAX_ROLLOVER_INTERVAL));
+			minRolloverInterval = DEFAULT_MIN_ROLLOVER_INTERVAL;
+			maxRolloverInterval = DEFAULT_MAX_ROLLOVER_INTERVAL;
+		}
+		if (targetObjectSize < 1)
+		{
+			addWarn("targetObjectSize must be at least 1 byte.  Using " + DEFAULT_TARGET_OBJECT_SIZE);
+			targetObjectSize = DEFAULT_TARGET_OBJECT_SIZE;
+		}
+		if (targetLatency < 1)
+		{
+			addWarn("targetLatency must be at least 1ms.  Using " + DEFAULT_TARGET_LATENCY);
+			targetLatency = DEFAULT_TARGET_LATENCY;
+		}
+	}
+
+	@Override
+	public boolean isTriggeringEvent(File activeFile, E event)
+	{
+		final long time = getCurrentTime();
+		if (time >= nextCheck)
+		{
+			elapsedPeriodsFileName = fileNamePatternWCS.convertMultipleArguments(dateInCurrentPeriod,
+					currentPeriodsCounter);
+			currentPeriodsCounter = 0;
+			setDateInCurrentPeriod(time);
+			computeNextCheck();
+			this.startFile(time);
+			return true;
+		}
+
+		if (((++invocationCounter) & invocationMask) != invocationMask)
+		{
+			return false;
+		}
+		if (invocationMask < 0x0F)
+		{
+			invocationMask = (invocationMask << 1) + 1;
+		}
+
+		if (time - limitsUpdateMillis >= LIMITS_UPDATE_INTERVAL)
+		{
+			this.updateLimits(time);
+		}
+		final long length = activeFile.length();
+		final long age = time - fileStartMillis;
+		if (length >= sizeLimit || (age >= ageLimit && length >= minFileSize)
+				|| (age >= maxRolloverInterval && length > 0))
+		{
+			elapsedPeriodsFileName = fileNamePatternWCS.convertMultipleArguments(dateInCurrentPeriod,
+					currentPeriodsCounter);
+			currentPeriodsCounter++;
+			this.startFile(time);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String getCurrentPeriodsFileNameWithoutCompressionSuffix()
+	{
+		return fileNamePatternWCS.convertMultipleArguments(dateInCurrentPeriod, currentPeriodsCounter);
+	}
+
+	/**
+	 * Called by {@link S3TimeBasedRollingPolicy} once the appender has configured it
+	 *
+	 * @param s3Settings
+	 *            Settings whose metrics report the compression and upload speeds
+	 * @param spool
+	 *            Spool whose pending files are the upload backlog
+	 */
+	void setPipeline(S3Settings s3Settings, UploadSpool spool)
+	{
+		this.s3Settings = s3Settings;
+		this.spool = spool;
+		s3Settings.getMetrics().addListener(this.estimates);
+	}
+
+	private void startFile(long time)
+	{
+		fileStartMillis = time;
+		this.updateLimits(time);
+	}
+
+	/**
+	 * Pick the size and age limits for the new active file
+	 */
+	private void updateLimits(long time)
+	{
+		limitsUpdateMillis = time;
+		final double ratio = this.estimates.getCompressionRatio();
+		double backlog = 1;
+		if (null != this.spool && null != this.s3Settings)
+		{
+			// Files beyond one per upload thread are waiting
+			backlog = Math.max(1, (double) this.spool.getPendingCount()
+					/ Math.max(1, this.s3Settings.uploadThreadCount));
+		}
+		sizeLimit = clamp((long) Math.min(Long.MAX_VALUE / 2, targetObjectSize * ratio * backlog), minFileSize,
+				maxFileSize);
+		// A large backlog can make delivery slower than the target latency, and the interval still has to grow
+		final double budgetMillis = Math.max(minRolloverInterval,
+				targetLatency - this.estimates.getDeliveryMillis(sizeLimit));
+		ageLimit = clamp((long) Math.min(Long.MAX_VALUE / 2, budgetMillis * backlog), minRolloverInterval,
+				maxRolloverInterval);
+	}
+
+	private static long clamp(long value, long min, long max)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * @return Size in bytes at which the active file will be rolled over
+	 */
+	public long getCurrentSizeLimit()
+	{
+		return sizeLimit;
+	}
+
+	/**
+	 * @return Age in milliseconds at which the active file will be rolled over
+	 */
+	public long getCurrentAgeLimit()
+	{
+		return ageLimit;
+	}
+
+	public String getTargetObjectSize()
+	{
+		return String.valueOf(targetObjectSize);
+	}
+
+	public void setTargetObjectSize(String targetObjectSize)
+	{
+		this.targetObjectSize = FileSize.valueOf(targetObjectSize).getSize();
+	}
+
+	public long getTargetLatency()
+	{
+		return targetLatency;
+	}
+
+	public void setTargetLatency(long targetLatency)
+	{
+		this.targetLatency = targetLatency;
+	}
+
+	public String getMinFileSize()
+	{
+		return String.valueOf(minFileSize);
+	}
+
+	public void setMinFileSize(String minFileSize)
+	{
+		this.minFileSize = FileSize.valueOf(minFileSize).getSize();
+	}
+
+	public String getMaxFileSize()
+	{
+		return String.valueOf(maxFileSize);
+	}
+
+	public void setMaxFileSize(String maxFileSize)
+	{
+		this.maxFileSize = FileSize.valueOf(maxFileSize).getSize();
+	}
+
+	public long getMinRolloverInterval()
+	{
+		return minRolloverInterval;
+	}
+
+	public void setMinRolloverInterval(long minRolloverInterval)
+	{
+		this.minRolloverInterval = minRolloverInterval;
+	}
+
+	public long getMaxRolloverInterval()
+	{
+		return maxRolloverInterval;
+	}
+
+	public void setMaxRolloverInterval(long maxRolloverInterval)
+	{
+		this.maxRolloverInterval = maxRolloverInterval;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "c.l.m.r.AdaptiveSizeAndTimeBasedFNATP";
+	}
+
+	/**
+	 * Running averages of the compression ratio and the compression and upload speeds. Updated on the threads that
+	 * compress and post, and read on the logging thread at each rollover.
+	 */
+	private static class PipelineEstimates implements UploadMetricsListener
+	{
+		// Speeds are in bytes per millisecond. Each estimate is zero until measured.
+		private double compressionRatio;
+
+		private double compressionSpeed;
+
+		private double uploadSpeed;
+
+		/**
+		 * @return Uncompressed size divided by compressed size, or 1 until a file has been compressed
+		 */
+		public synchronized double getCompressionRatio()
+		{
+			return (0 == this.compressionRatio) ? 1 : this.compressionRatio;
+		}
+
+		/**
+		 * @return Milliseconds to compress and post a file of the given uncompressed size
+		 */
+		public synchronized double getDeliveryMillis(long uncompressedBytes)
+		{
+			double millis = 0;
+			if (this.compressionSpeed > 0)
+			{
+				millis += uncompressedBytes / this.compressionSpeed;
+			}
+			if (this.uploadSpeed > 0)
+			{
+				millis += uncompressedBytes / this.getCompressionRatio() / this.uploadSpeed;
+			}
+			return millis;
+		}
+
+		@Override
+		public void onRollover(String fileName, long durationMillis)
+		{
+			// NOP
+		}
+
+		@Override
+		public synchronized void onCompression(String fileName, long uncompressedBytes, long compressedBytes,
+				long durationMillis)
+		{
+			if (uncompressedBytes > 0 && compressedBytes > 0)
+			{
+				this.compressionRatio = smooth(this.compressionRatio, (double) uncompressedBytes / compressedBytes);
+			}
+			if (uncompressedBytes > 0 && durationMillis > 0)
+			{
+				this.compressionSpeed = smooth(this.compressionSpeed, (double) uncompressedBytes / durationMillis);
+			}
+		}
+
+		@Override
+		public synchronized void onUpload(String keyName, long bytes, long durationMillis)
+		{
+			if (bytes > 0 && durationMillis > 0)
+			{
+				this.uploadSpeed = smooth(this.uploadSpeed, (double) bytes / durationMillis);
+			}
+		}
+
+		@Override
+		public void onFailure(String keyName, String errorCode)
+		{
+			// NOP
+		}
+
+		private static double smooth(double estimate, double measurement)
+		{
+			return (0 == estimate) ? measurement : estimate + SMOOTHING * (measurement - estimate);
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+import com.logpig.mweagle.rolling.helper.MpscRingBuffer;
+
+/**
+ * Hands events from logging threads to a single writer thread through a preallocated, lock-free
+ * {@link MpscRingBuffer}, so that a logging thread only pays for the enqueue. Writes, rollovers and archive cleanup
+ * all happen on the writer thread.
+ * <p>
+ * How the writer waits for events is set by the {@link WaitStrategy}, and what a logging thread does when the ring
+ * is full by the {@link OverflowPolicy}. Dropped events are counted and reported as a warning.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class AsyncFrontEnd<E> extends ContextAwareBase
+{
+	/**
+	 * How the writer thread waits when the ring is empty
+	 */
+	public enum WaitStrategy
+	{
+		/**
+		 * Park until a logging thread signals an event. Lowest CPU use, at the cost of a wakeup per burst.
+		 */
+		BLOCKING,
+		/**
+		 * Spin, then yield, then sleep briefly. Low CPU use with low latency under steady load.
+		 */
+		SLEEPING,
+		/**
+		 * Spin, then yield the CPU between checks. Low latency, but keeps a core busy.
+		 */
+		YIELDING,
+		/**
+		 * Spin without pause. Lowest latency; dedicates a core to the writer.
+		 */
+		BUSY_SPIN
+	}
+
+	/**
+	 * What a logging thread does when the ring is full
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * Wait for room. No event is lost.
+		 */
+		BLOCK,
+		/**
+		 * Drop TRACE, DEBUG and INFO events, and wait for room for WARN and ERROR
+		 */
+		DROP,
+		/**
+		 * Keep one in every <i>sampleRate</i> TRACE, DEBUG and INFO events, waiting for room for it, and drop the
+		 * rest. WARN and ERROR wait for room.
+		 */
+		SAMPLE
+	}
+
+	/**
+	 * Receives events on the writer thread
+	 */
+	public interface EventHandler<E>
+	{
+		void handle(E event);
+	}
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final int YIELD_TRIES = 200;
+
+	private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Upper bound on a BLOCKING park, in case a signal is missed
+	 */
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * How long a logging thread waits between attempts when the ring is full
+	 */
+	private static final long FULL_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final MpscRingBuffer<E> ringBuffer;
+
+	private final WaitStrategy waitStrategy;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final int sampleRate;
+
+	private final EventHandler<E> handler;
+
+	private final Thread writerThread;
+
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private long reportedDroppedCount;
+
+	private volatile boolean running = true;
+
+	private volatile boolean writerParked;
+
+	/**
+	 * Ctor
+	 *
+	 * @param name
+	 *            Name used in the writer thread name
+	 * @param capacity
+	 *            Number of ring slots. Must be a power of two.
+	 * @param waitStrategy
+	 *            How the writer waits for events
+	 * @param overflowPolicy
+	 *            What logging threads do when the ring is full
+	 * @param sampleRate
+	 *            One in this many droppable events is kept under the SAMPLE policy
+	 * @param handler
+	 *            Writes each event on the writer thread
+	 */
+	public AsyncFrontEnd(String name, int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy,
+			int sampleRate, EventHandler<E> handler)
+	{
+		this.ringBuffer = new MpscRingBuffer<E>(capacity);
+		this.waitStrategy = waitStrategy;
+		this.overflowPolicy = overflowPolicy;
+		this.sampleRate = sampleRate;
+		this.handler = handler;
+		this.writerThread = new DaemonThreadFactory("logpig-async-" + name + "-").newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				write();
+			}
+		});
+	}
+
+	public void start()
+	{
+		this.writerThread.start();
+	}
+
+	/**
+	 * Queue an event for the writer thread
+	 *
+	 * @param event
+	 *            Event to write. It must already be prepared for deferred processing.
+	 * @return false if the event was dropped
+	 */
+	public boolean publish(E event)
+	{
+		if (!this.ringBuffer.offer(event))
+		{
+			if (this.isDroppable(event))
+			{
+				final boolean sampled = OverflowPolicy.SAMPLE == this.overflowPolicy
+						&& 0 == this.overflowCount.incrementAndGet() % this.sampleRate;
+				if (!sampled)
+				{
+					this.droppedCount.incrementAndGet();
+					return false;
+				}
+			}
+			if (!this.offerWhenFull(event))
+			{
+				this.droppedCount.incrementAndGet();
+				return false;
+			}
+		}
+		if (this.writerParked)
+		{
+			LockSupport.unpark(this.writerThread);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the writer has written every event queued before this call
+	 *
+	 * @param timeoutMillis
+	 *            Longest time to wait
+	 * @return true if the events were written in time
+	 */
+	public boolean flush(long timeoutMillis)
+	{
+		final long target = this.ringBuffer.getClaimedCount();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (this.ringBuffer.getConsumedCount() < target)
+		{
+			if (System.nanoTime() >= deadline || !this.writerThread.isAlive())
+			{
+				return false;
+			}
+			LockSupport.unpark(this.writerThread);
+			LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Write whatever is queued, then stop the writer thread
+	 *
+	 * @param timeoutMillis
+	 *            Longest time to wait for the queued events to be written
+	 */
+	public void stop(long timeoutMillis)
+	{
+		this.running = false;
+		LockSupport.unpark(this.writerThread);
+		try
+		{
+			this.writerThread.join(timeoutMillis);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (this.writerThread.isAlive())
+		{
+			addWarn(String.format("%d queued events were not written before the appender stopped",
+					this.ringBuffer.size()));
+		}
+	}
+
+	/**
+	 * @return Number of events waiting for the writer
+	 */
+	public int getQueueDepth()
+	{
+		return this.ringBuffer.size();
+	}
+
+	/**
+	 * @return Number of events dropped because the ring was full
+	 */
+	public long getDroppedCount()
+	{
+		return this.droppedCount.get();
+	}
+
+	private boolean isDroppable(E event)
+	{
+		return OverflowPolicy.BLOCK != this.overflowPolicy && event instanceof ILoggingEvent
+				&& ((ILoggingEvent) event).getLevel().toInt() <= Level.INFO_INT;
+	}
+
+	private boolean offerWhenFull(E event)
+	{
+		while (!this.ringBuffer.offer(event))
+		{
+			if (!this.running)
+			{
+				return false;
+			}
+			LockSupport.unpark(this.writerThread);
+			LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+		}
+		return true;
+	}
+
+	private void write()
+	{
+		int idleCount = 0;
+		while (true)
+		{
+			final E event = this.ringBuffer.poll();
+			if (null != event)
+			{
+				idleCount = 0;
+				try
+				{
+					this.handler.handle(event);
+				}
+				catch (RuntimeException ex)
+				{
+					addError("Failed to write queued event", ex);
+				}
+				continue;
+			}
+			if (!this.running && 0 == this.ringBuffer.size())
+			{
+				this.reportDrops();
+				return;
+			}
+			if (0 == idleCount)
+			{
+				this.reportDrops();
+			}
+			idleCount += 1;
+			this.idle(idleCount);
+		}
+	}
+
+	private void idle(int idleCount)
+	{
+		switch (this.waitStrategy)
+		{
+			case BUSY_SPIN:
+				break;
+			case YIELDING:
+				if (idleCount > SPIN_TRIES)
+				{
+					Thread.yield();
+				}
+				break;
+			case SLEEPING:
+				if (idleCount > YIELD_TRIES)
+				{
+					LockSupport.parkNanos(SLEEP_NANOS);
+				}
+				else if (idleCount > SPIN_TRIES)
+				{
+					Thread.yield();
+				}
+				break;
+			default:
+				this.writerParked = true;
+				// Check again, so that an event published before the flag was seen isn't missed
+				if (0 == this.ringBuffer.size() && this.running)
+				{
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+				this.writerParked = false;
+				break;
+		}
+	}
+
+	private void reportDrops()
+	{
+		final long dropped = this.droppedCount.get();
+		if (dropped > this.reportedDroppedCount)
+		{
+			addWarn(String.format("Async ring buffer was full.  Dropped %d events.", dropped
+					- this.reportedDroppedCount));
+			this.reportedDroppedCount = dropped;
+		}
+	}
+}
@@ -18,9 +18,11 @@ package com.logpig.mweagle.rolling;
 import com.logpig.mweagle.aws.S3FilePutRunnable;
 
 /**
- * Runnable that compresses a local file using a CompressionContext and then puts the compressed file to S3.
+ * Runnable that compresses a local file using a CompressionContext and then puts the compressed file to S3, and to
+ * any other destinations.
  * 
  * @see S3FilePutRunnable
+ * @see S3FanOut
  * @author Matt Weagle (mweagle@gmail.com)
  */
 public class CompressAndPostRunnable implements Runnable
@@ -29,6 +31,8 @@ public class CompressAndPostRunnable implements Runnable
 
 	private final S3Settings s3Settings;
 
+	private final UploadSpool.Entry spoolEntry;
+
 	/**
 	 * Ctor
 	 * 
@@ -36,18 +40,20 @@ public class CompressAndPostRunnable implements Runnable
 	 *            CompressionContext instance that will compress the file if necessary
 	 * @param s3Settings
 	 *            S3Settings data
+	 * @param spoolEntry
+	 *            Spool entry to complete once the file is posted. May be null.
 	 */
-	public CompressAndPostRunnable(CompressionContext context, S3Settings s3Settings)
+	public CompressAndPostRunnable(CompressionContext context, S3Settings s3Settings, UploadSpool.Entry spoolEntry)
 	{
 		this.context = context;
 		this.s3Settings = s3Settings;
+		this.spoolEntry = spoolEntry;
 	}
 
 	@Override
 	public void run()
 	{
 		final String compressedFilename = context.compress();
-		final S3FilePutRunnable s3Poster = new S3FilePutRunnable(compressedFilename, s3Settings);
-		s3Poster.run();
+		S3FanOut.post(compressedFilename, context.getContentMD5(), s3Settings, spoolEntry);
 	}
 }
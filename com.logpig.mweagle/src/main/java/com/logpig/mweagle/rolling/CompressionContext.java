@@ -15,12 +15,21 @@
  */
 package com.logpig.mweagle.rolling;
 
-import ch.qos.logback.core.rolling.helper.CompressionMode;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+import com.amazonaws.util.BinaryUtils;
+import com.logpig.mweagle.rolling.helper.CountingOutputStream;
 import com.logpig.mweagle.rolling.helper.S3Compressor;
 
 /**
  * Compression context object that encapsulates logback Compressor instance and source, target, entryName values.
+ * <p>
+ * The MD5 of the compressed file is computed as it is written, so that the upload can send it as the Content-MD5
+ * without reading the file again.
  * 
  * @see CompressAndPostRunnable
  * @author Matt Weagle (mweagle@gmail.com)
@@ -35,6 +44,10 @@ public class CompressionContext
 
 	private final String innerEntryName;
 
+	private final UploadMetrics metrics;
+
+	private volatile String contentMD5;
+
 	/**
 	 * Ctor
 	 * 
@@ -48,11 +61,32 @@ public class CompressionContext
 	 *            Inner entry name for .zip archives
 	 */
 	public CompressionContext(S3Compressor compressor, String sourceName, String targetName, String innerEntryName)
+	{
+		this(compressor, sourceName, targetName, innerEntryName, null);
+	}
+
+	/**
+	 * Ctor
+	 * 
+	 * @param compressor
+	 *            S3Compressor instance
+	 * @param sourceName
+	 *            Source filename
+	 * @param targetName
+	 *            Target (compressed) filename
+	 * @param innerEntryName
+	 *            Inner entry name for .zip archives
+	 * @param metrics
+	 *            Metrics that record the compression ratio and time. May be null.
+	 */
+	public CompressionContext(S3Compressor compressor, String sourceName, String targetName, String innerEntryName,
+			UploadMetrics metrics)
 	{
 		this.compressor = compressor;
 		this.sourceName = sourceName;
 		this.targetName = targetName;
 		this.innerEntryName = innerEntryName;
+		this.metrics = metrics;
 	}
 
 	/**
@@ -62,27 +96,89 @@ public class CompressionContext
 	 */
 	public String compress()
 	{
-		// Don't compress if the file mode isn't set
+		// Don't compress if neither a codec nor a file mode is set
+		if (this.compressor.isCompressing())
+		{
+			// The source is deleted once it is compressed
+			final long sourceLength = new File(sourceName).length();
+			final long startMillis = System.currentTimeMillis();
+			final MessageDigest digest = createMD5Digest();
+			if (compressor.compressAndDigest(sourceName, targetName, innerEntryName, digest) && null != digest)
+			{
+				contentMD5 = BinaryUtils.toBase64(digest.digest());
+			}
+			if (null != metrics)
+			{
+				metrics.recordCompression(getCompressedName(), sourceLength,
+						new File(getCompressedName()).length(), System.currentTimeMillis() - startMillis);
+			}
+		}
+		return getCompressedName();
+	}
+
+	/**
+	 * Compress the source file into a stream.  The source file is not deleted and
+	 * the stream is not closed.  Sidecar files are written next to the compressed
+	 * file's name, even if the compressed file itself is never written.
+	 * 
+	 * @param target	Stream that receives the compressed bytes
+	 * @throws IOException	If the source can't be read or the target can't be written
+	 */
+	public void compress(OutputStream target) throws IOException
+	{
+		if (null == metrics)
+		{
+			compressor.compress(sourceName, target, innerEntryName, getCompressedName());
+			return;
+		}
+		final long startMillis = System.currentTimeMillis();
+		final CountingOutputStream countingTarget = new CountingOutputStream(target);
+		compressor.compress(sourceName, countingTarget, innerEntryName, getCompressedName());
+		metrics.recordCompression(getCompressedName(), new File(sourceName).length(), countingTarget.getCount(),
+				System.currentTimeMillis() - startMillis);
+	}
 
+	/**
+	 * @return The name the compressed file has, or would have, on local disk
+	 */
+	public String getCompressedName()
+	{
 		// Check here since, the compressor will
 		// append the extension iff it's not part of the target
-		String compressedName = targetName;
-		if (this.compressor.getMode() == CompressionMode.GZ)
+		final String suffix = this.compressor.getFileSuffix();
+		if (!targetName.toLowerCase().endsWith(suffix))
 		{
-			compressor.compress(sourceName, targetName, innerEntryName);
-			if (!targetName.toLowerCase().endsWith(".gz"))
-			{
-				compressedName += ".gz";
-			}
+			return targetName + suffix;
 		}
-		else if (this.compressor.getMode() == CompressionMode.ZIP)
+		return targetName;
+	}
+
+	/**
+	 * @return Base64 encoded MD5 of the file written by {@link #compress()}, or null if it wasn't written
+	 */
+	public String getContentMD5()
+	{
+		return contentMD5;
+	}
+
+	/**
+	 * @return Source (uncompressed) filename
+	 */
+	public String getSourceName()
+	{
+		return sourceName;
+	}
+
+	private static MessageDigest createMD5Digest()
+	{
+		try
 		{
-			compressor.compress(sourceName, targetName, innerEntryName);
-			if (!targetName.toLowerCase().endsWith(".zip"))
-			{
-				compressedName += ".zip";
-			}
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			// The SDK computes the checksum itself instead
+			return null;
 		}
-		return compressedName;
 	}
 }
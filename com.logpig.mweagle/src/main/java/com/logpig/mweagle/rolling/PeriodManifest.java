@@ -0,0 +1,483 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.logpig.mweagle.aws.RetryScheduler;
+import com.logpig.mweagle.rolling.stats.EventStats;
+
+/**
+ * Lists every object posted for a rollover period in one object at a predictable key, so that a job can plan its
+ * input from a single GET instead of listing the bucket. The manifest key comes from an {@link S3KeyTemplate}, e.g.
+ * <i>%app/manifests/%host/%d{yyyy-MM-dd}.manifest</i>, whose period is parsed from the rolled file names like the
+ * object keys' are.
+ * <p>
+ * Manifest lines are tab delimited:
+ * <ul>
+ * <li><i>keyName bytes events minMillis maxMillis codec contentMD5</i></li>
+ * </ul>
+ * A <i>-</i> stands for a value that isn't known, such as the event count of a file rolled by a previous run, or the
+ * MD5 of a multipart upload. A coalesced object is listed once, with the totals of its files.
+ * <p>
+ * Lines are appended to a local copy of each manifest as objects are posted. The manifest of the active period is
+ * posted when the period ends, and again for each of its files that is posted after that. Whatever is left is posted
+ * by {@link #flush()} at shutdown. A local copy that is missing, because its period was already posted and closed, is
+ * started from the posted manifest, so that late lines extend it rather than replace it.
+ * <p>
+ * The bookkeeping is guarded by the manifest's monitor, which the rolling policy takes under the appender lock. The
+ * local copies and the S3 requests are guarded by a separate lock, so a slow S3 never holds up a rollover.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class PeriodManifest
+{
+	/**
+	 * Suffix of the default manifest keys. Shared with the coalesced batch manifests, so that
+	 * {@link com.logpig.mweagle.aws.S3TokenSearch} skips both.
+	 */
+	public static final String SUFFIX = UploadCoalescer.MANIFEST_SUFFIX;
+
+	private static final String UNKNOWN = "-";
+
+	private final S3Settings s3Settings;
+
+	private final S3KeyTemplate keyTemplate;
+
+	private final File directory;
+
+	private final String codecName;
+
+	private final S3UploadExecutor uploadExecutor;
+
+	private final Map<String, long[]> rolledFiles = new HashMap<String, long[]>();
+
+	private final Set<String> unposted = new LinkedHashSet<String>();
+
+	private final Object copyLock = new Object();
+
+	private String activeKeyName;
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            S3Settings data
+	 * @param keyTemplate
+	 *            Template of the manifest keys
+	 * @param directory
+	 *            Directory that holds the local copies. Created if it doesn't exist.
+	 * @param codecName
+	 *            Compression of the posted objects, e.g. <i>gz</i>, or <i>none</i>
+	 * @param uploadExecutor
+	 *            Executor that posts the manifests of ended periods. May be null.
+	 */
+	public PeriodManifest(S3Settings s3Settings, S3KeyTemplate keyTemplate, File directory, String codecName,
+			S3UploadExecutor uploadExecutor)
+	{
+		this.s3Settings = s3Settings;
+		this.keyTemplate = keyTemplate;
+		this.directory = directory;
+		this.codecName = codecName;
+		this.uploadExecutor = uploadExecutor;
+		directory.mkdirs();
+	}
+
+	/**
+	 * Set the active period, and post the manifests of the periods that have ended. Local copies left by a previous
+	 * run are treated as unposted.
+	 *
+	 * @param activeFileName
+	 *            A file name in the active period, e.g. the active period's rolled file name
+	 */
+	public void startPeriod(String activeFileName)
+	{
+		final String keyName = this.keyTemplate.getKeyName(activeFileName);
+		synchronized (this)
+		{
+			if (null == this.activeKeyName)
+			{
+				this.addLeftoverCopies();
+			}
+			if (keyName.equals(this.activeKeyName))
+			{
+				return;
+			}
+			this.activeKeyName = keyName;
+			if (this.unposted.isEmpty() || (1 == this.unposted.size() && this.unposted.contains(keyName)))
+			{
+				return;
+			}
+		}
+		final Runnable postRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				postEnded();
+			}
+		};
+		try
+		{
+			if (null == this.uploadExecutor)
+			{
+				postRunnable.run();
+			}
+			else
+			{
+				this.uploadExecutor.submit(postRunnable);
+			}
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// Left for flush()
+		}
+	}
+
+	/**
+	 * Record the events of a file that was just rolled over, so they can be listed once it is posted
+	 *
+	 * @param fileName
+	 *            Name the file is posted from
+	 * @param eventStats
+	 *            Summary of the file's events. May be null.
+	 */
+	public synchronized void addRolledFile(String fileName, EventStats eventStats)
+	{
+		if (null != eventStats)
+		{
+			this.rolledFiles.put(fileName, new long[] { eventStats.getEventCount(), eventStats.getMinTimestamp(),
+					eventStats.getMaxTimestamp() });
+		}
+	}
+
+	/**
+	 * List a posted object
+	 *
+	 * @param fileName
+	 *            File the object was posted from
+	 * @param keyName
+	 *            Object key
+	 * @param bytes
+	 *            Object size
+	 * @param contentMD5
+	 *            Base64 encoded MD5 of the object. May be null.
+	 */
+	public void addObject(String fileName, String keyName, long bytes, String contentMD5)
+	{
+		this.addObject(Collections.singletonList(fileName), keyName, bytes, contentMD5);
+	}
+
+	/**
+	 * List a posted object made of several files. It is listed in the period of the first one.
+	 *
+	 * @param fileNames
+	 *            Files the object was posted from, in order
+	 * @param keyName
+	 *            Object key
+	 * @param bytes
+	 *            Object size
+	 * @param contentMD5
+	 *            Base64 encoded MD5 of the object. May be null.
+	 */
+	public void addObject(List<String> fileNames, String keyName, long bytes, String contentMD5)
+	{
+		final String manifestKeyName = this.keyTemplate.getKeyName(fileNames.get(0));
+		final String line;
+		synchronized (this)
+		{
+			long events = 0;
+			long minMillis = Long.MAX_VALUE;
+			long maxMillis = Long.MIN_VALUE;
+			for (final String eachFileName : fileNames)
+			{
+				final long[] counts = this.rolledFiles.remove(eachFileName);
+				if (null == counts || events < 0)
+				{
+					events = -1;
+				}
+				else
+				{
+					events += counts[0];
+					minMillis = Math.min(minMillis, counts[1]);
+					maxMillis = Math.max(maxMillis, counts[2]);
+				}
+			}
+			final boolean knownTimes = events > 0;
+			line = String.format("%s\t%d\t%s\t%s\t%s\t%s\t%s\n", keyName, bytes,
+					(events >= 0) ? String.valueOf(events) : UNKNOWN, knownTimes ? String.valueOf(minMillis)
+							: UNKNOWN, knownTimes ? String.valueOf(maxMillis) : UNKNOWN, this.codecName,
+					(null != contentMD5) ? contentMD5 : UNKNOWN);
+		}
+		synchronized (this.copyLock)
+		{
+			final File localCopy = this.getLocalCopy(manifestKeyName);
+			if (!localCopy.exists())
+			{
+				this.fetch(manifestKeyName, localCopy);
+			}
+			try
+			{
+				append(localCopy, line);
+				synchronized (this)
+				{
+					this.unposted.add(manifestKeyName);
+				}
+			}
+			catch (IOException ex)
+			{
+				getLogger().error(String.format("Failed to add %s to manifest %s", keyName, localCopy), ex);
+			}
+			final boolean ended = !manifestKeyName.equals(this.getActiveKeyName());
+			if (ended)
+			{
+				// A late arrival in a period that has ended
+				this.post(manifestKeyName);
+			}
+		}
+	}
+
+	/**
+	 * Post every manifest with lines that haven't been posted, including the active period's
+	 */
+	public void flush()
+	{
+		synchronized (this.copyLock)
+		{
+			for (final String eachKeyName : this.getUnposted())
+			{
+				this.post(eachKeyName);
+			}
+		}
+	}
+
+	private void postEnded()
+	{
+		synchronized (this.copyLock)
+		{
+			for (final String eachKeyName : this.getUnposted())
+			{
+				if (!eachKeyName.equals(this.getActiveKeyName()))
+				{
+					this.post(eachKeyName);
+				}
+			}
+		}
+	}
+
+	private synchronized String[] getUnposted()
+	{
+		return this.unposted.toArray(new String[this.unposted.size()]);
+	}
+
+	private synchronized String getActiveKeyName()
+	{
+		return this.activeKeyName;
+	}
+
+	private void addLeftoverCopies()
+	{
+		final File[] localCopies = this.directory.listFiles();
+		if (null == localCopies)
+		{
+			return;
+		}
+		for (final File eachCopy : localCopies)
+		{
+			try
+			{
+				this.unposted.add(URLDecoder.decode(eachCopy.getName(), "UTF-8"));
+			}
+			catch (UnsupportedEncodingException ex)
+			{
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Called with the copy lock held
+	 */
+	private void post(String manifestKeyName)
+	{
+		final File localCopy = this.getLocalCopy(manifestKeyName);
+		if (!localCopy.exists())
+		{
+			synchronized (this)
+			{
+				this.unposted.remove(manifestKeyName);
+			}
+			return;
+		}
+		if (this.s3Settings.mockPut)
+		{
+			getLogger().warn("Mocking manifest POST: {} as {}", localCopy, manifestKeyName);
+		}
+		else if (!this.put(localCopy, manifestKeyName))
+		{
+			return;
+		}
+		final boolean ended;
+		synchronized (this)
+		{
+			this.unposted.remove(manifestKeyName);
+			ended = !manifestKeyName.equals(this.activeKeyName);
+		}
+		if (ended && !this.s3Settings.mockPut)
+		{
+			// Late lines start over from the posted copy
+			localCopy.delete();
+		}
+	}
+
+	private boolean put(File localCopy, String manifestKeyName)
+	{
+		final RetryScheduler retryScheduler = this.s3Settings.getRetryScheduler();
+		int attempt = 0;
+		while (true)
+		{
+			try
+			{
+				final PutObjectRequest request = new PutObjectRequest(this.s3Settings.bucketName, manifestKeyName,
+						localCopy);
+				request.setProgressListener(this.s3Settings.getUploadThrottle());
+				this.s3Settings.getS3Client().putObject(request);
+				retryScheduler.recordSuccess();
+				return true;
+			}
+			catch (AmazonClientException ex)
+			{
+				this.s3Settings.getMetrics().recordFailure(manifestKeyName, ex);
+				attempt += 1;
+				if (attempt >= this.s3Settings.retryCount || !retryScheduler.awaitRetry(attempt))
+				{
+					getLogger().error(String.format("Failed to post manifest %s to AWS.  It will be posted again "
+							+ "with its next object or at shutdown.", manifestKeyName), ex);
+					return false;
+				}
+				getLogger().warn(String.format("Failed to post manifest %s to AWS.  Retrying.", manifestKeyName), ex);
+			}
+		}
+	}
+
+	/**
+	 * Start a local copy from the posted manifest, if there is one
+	 */
+	private void fetch(String manifestKeyName, File localCopy)
+	{
+		if (this.s3Settings.mockPut)
+		{
+			return;
+		}
+		try
+		{
+			final InputStream content = this.s3Settings.getS3Client()
+					.getObject(this.s3Settings.bucketName, manifestKeyName).getObjectContent();
+			try
+			{
+				final OutputStream output = new FileOutputStream(localCopy);
+				try
+				{
+					final byte[] buffer = new byte[16 * 1024];
+					int n;
+					while (-1 != (n = content.read(buffer)))
+					{
+						output.write(buffer, 0, n);
+					}
+				}
+				finally
+				{
+					output.close();
+				}
+			}
+			finally
+			{
+				content.close();
+			}
+		}
+		catch (AmazonServiceException ex)
+		{
+			if (HttpURLConnection.HTTP_NOT_FOUND != ex.getStatusCode())
+			{
+				getLogger().error(String.format("Failed to get manifest %s.  Posting it will replace its lines.",
+						manifestKeyName), ex);
+			}
+		}
+		catch (AmazonClientException ex)
+		{
+			getLogger().error(String.format("Failed to get manifest %s.  Posting it will replace its lines.",
+					manifestKeyName), ex);
+		}
+		catch (IOException ex)
+		{
+			getLogger().error(String.format("Failed to get manifest %s.  Posting it will replace its lines.",
+					manifestKeyName), ex);
+			localCopy.delete();
+		}
+	}
+
+	private File getLocalCopy(String manifestKeyName)
+	{
+		try
+		{
+			return new File(this.directory, URLEncoder.encode(manifestKeyName, "UTF-8"));
+		}
+		catch (UnsupportedEncodingException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void append(File localCopy, String line) throws IOException
+	{
+		final FileOutputStream output = new FileOutputStream(localCopy, true);
+		try
+		{
+			output.write(line.getBytes("UTF-8"));
+			output.getFD().sync();
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(PeriodManifest.class);
+	}
+}
@@ -0,0 +1,243 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link S3AppenderStatsMXBean} backed by an appender's {@link UploadMetrics}, upload executor and spool
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3AppenderStats implements S3AppenderStatsMXBean
+{
+	private final S3Settings s3Settings;
+
+	private final S3UploadExecutor uploadExecutor;
+
+	private final S3TimeBasedRollingPolicy<?> policy;
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            S3Settings whose metrics are reported
+	 * @param uploadExecutor
+	 *            Executor that runs the appender's rollover uploads
+	 * @param policy
+	 *            Rolling policy that owns the spool
+	 */
+	public S3AppenderStats(S3Settings s3Settings, S3UploadExecutor uploadExecutor, S3TimeBasedRollingPolicy<?> policy)
+	{
+		this.s3Settings = s3Settings;
+		this.uploadExecutor = uploadExecutor;
+		this.policy = policy;
+	}
+
+	@Override
+	public int getUploadQueueDepth()
+	{
+		return this.uploadExecutor.getQueueDepth();
+	}
+
+	@Override
+	public int getActiveUploads()
+	{
+		return this.uploadExecutor.getActiveCount();
+	}
+
+	@Override
+	public int getPendingFileCount()
+	{
+		final UploadSpool spool = this.policy.getSpool();
+		return (null != spool) ? spool.getPendingCount() : 0;
+	}
+
+	@Override
+	public long getOldestUnshippedAge()
+	{
+		final UploadSpool spool = this.policy.getSpool();
+		final long oldest = (null != spool) ? spool.getOldestPendingMillis() : 0;
+		return (0 == oldest) ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+	}
+
+	@Override
+	public long getObjectsShipped()
+	{
+		return this.getMetrics().getObjectsShipped();
+	}
+
+	@Override
+	public long getBytesShipped()
+	{
+		return this.getMetrics().getBytesShipped();
+	}
+
+	@Override
+	public double getCompressionRatio()
+	{
+		return this.getMetrics().getCompressionRatio();
+	}
+
+	@Override
+	public long getRetryCount()
+	{
+		return this.s3Settings.getRetryScheduler().getRetryCount();
+	}
+
+	@Override
+	public long getRetriesRefused()
+	{
+		return this.s3Settings.getRetryScheduler().getRefusedCount();
+	}
+
+	@Override
+	public Map<String, Long> getFailureCounts()
+	{
+		return this.getMetrics().getFailureCounts();
+	}
+
+	@Override
+	public Map<String, Long> getDestinationPendingCounts()
+	{
+		final UploadSpool spool = this.policy.getSpool();
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for (final S3Destination eachDestination : this.s3Settings.getDestinations())
+		{
+			counts.put(eachDestination.getName(),
+					(null != spool) ? (long) spool.getPendingCount(eachDestination.getName()) : 0L);
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getDestinationFailureCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for (final S3Destination eachDestination : this.s3Settings.getDestinations())
+		{
+			long failures = 0;
+			for (final Long eachCount : eachDestination.getMetrics().getFailureCounts().values())
+			{
+				failures += eachCount;
+			}
+			counts.put(eachDestination.getName(), failures);
+		}
+		return counts;
+	}
+
+	@Override
+	public long getUploadCount()
+	{
+		return this.getMetrics().getUploadLatency().getCount();
+	}
+
+	@Override
+	public double getUploadLatencyMean()
+	{
+		return this.getMetrics().getUploadLatency().getMean();
+	}
+
+	@Override
+	public long getUploadLatencyP50()
+	{
+		return this.getMetrics().getUploadLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getUploadLatencyP99()
+	{
+		return this.getMetrics().getUploadLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getUploadLatencyMax()
+	{
+		return this.getMetrics().getUploadLatency().getMax();
+	}
+
+	@Override
+	public long[] getUploadLatencyHistogram()
+	{
+		return this.getMetrics().getUploadLatency().getBucketCounts();
+	}
+
+	@Override
+	public long getCompressionCount()
+	{
+		return this.getMetrics().getCompressionLatency().getCount();
+	}
+
+	@Override
+	public double getCompressionLatencyMean()
+	{
+		return this.getMetrics().getCompressionLatency().getMean();
+	}
+
+	@Override
+	public long getCompressionLatencyP50()
+	{
+		return this.getMetrics().getCompressionLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getCompressionLatencyP99()
+	{
+		return this.getMetrics().getCompressionLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getCompressionLatencyMax()
+	{
+		return this.getMetrics().getCompressionLatency().getMax();
+	}
+
+	@Override
+	public long[] getCompressionLatencyHistogram()
+	{
+		return this.getMetrics().getCompressionLatency().getBucketCounts();
+	}
+
+	@Override
+	public long getRolloverCount()
+	{
+		return this.getMetrics().getRolloverDuration().getCount();
+	}
+
+	@Override
+	public double getRolloverDurationMean()
+	{
+		return this.getMetrics().getRolloverDuration().getMean();
+	}
+
+	@Override
+	public long getRolloverDurationP99()
+	{
+		return this.getMetrics().getRolloverDuration().getPercentile(99);
+	}
+
+	@Override
+	public long getRolloverDurationMax()
+	{
+		return this.getMetrics().getRolloverDuration().getMax();
+	}
+
+	private UploadMetrics getMetrics()
+	{
+		return this.s3Settings.getMetrics();
+	}
+}
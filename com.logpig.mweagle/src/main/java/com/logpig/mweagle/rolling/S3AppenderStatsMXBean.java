@@ -0,0 +1,123 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.Map;
+
+/**
+ * JMX view of an {@link S3RollingFileAppender}'s rollover, compression and upload pipeline. Registered as
+ * <i>com.logpig.mweagle:type=S3RollingFileAppender,name=&lt;appender name&gt;</i>.
+ * <p>
+ * Latencies are in milliseconds. Percentiles are the upper bound of a power of two bucket, so they are accurate to
+ * within a factor of two.
+ *
+ * @see UploadMetrics
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public interface S3AppenderStatsMXBean
+{
+	/**
+	 * @return Rolled files waiting for an upload worker
+	 */
+	int getUploadQueueDepth();
+
+	/**
+	 * @return Upload workers that are compressing or posting a file
+	 */
+	int getActiveUploads();
+
+	/**
+	 * @return Rolled files that S3 doesn't have yet, including ones left over from a previous run
+	 */
+	int getPendingFileCount();
+
+	/**
+	 * @return Milliseconds since the oldest file S3 doesn't have yet was rolled, or zero if there are none
+	 */
+	long getOldestUnshippedAge();
+
+	long getObjectsShipped();
+
+	long getBytesShipped();
+
+	/**
+	 * @return Uncompressed bytes divided by compressed bytes
+	 */
+	double getCompressionRatio();
+
+	/**
+	 * @return Retries made across every upload
+	 */
+	long getRetryCount();
+
+	/**
+	 * @return Retries that were refused because the retry budget was spent
+	 */
+	long getRetriesRefused();
+
+	/**
+	 * @return Failed S3 requests by error code
+	 */
+	Map<String, Long> getFailureCounts();
+
+	/**
+	 * @return Rolled files that each destination doesn't have yet, by destination name
+	 */
+	Map<String, Long> getDestinationPendingCounts();
+
+	/**
+	 * @return Failed S3 requests to each destination, by destination name
+	 */
+	Map<String, Long> getDestinationFailureCounts();
+
+	long getUploadCount();
+
+	double getUploadLatencyMean();
+
+	long getUploadLatencyP50();
+
+	long getUploadLatencyP99();
+
+	long getUploadLatencyMax();
+
+	/**
+	 * @return Upload latency histogram. Bucket <i>i</i> counts uploads that took up to 2^i ms.
+	 */
+	long[] getUploadLatencyHistogram();
+
+	long getCompressionCount();
+
+	double getCompressionLatencyMean();
+
+	long getCompressionLatencyP50();
+
+	long getCompressionLatencyP99();
+
+	long getCompressionLatencyMax();
+
+	/**
+	 * @return Compression latency histogram. Bucket <i>i</i> counts files that took up to 2^i ms.
+	 */
+	long[] getCompressionLatencyHistogram();
+
+	long getRolloverCount();
+
+	double getRolloverDurationMean();
+
+	long getRolloverDurationP99();
+
+	long getRolloverDurationMax();
+}
@@ -0,0 +1,241 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.s3.model.Region;
+import ch.qos.logback.core.util.FileSize;
+
+/**
+ * An extra bucket that an {@link S3RollingFileAppender} posts every rolled file to, in addition to its own. Added
+ * with a nested <i>destination</i> element:
+ *
+ * <pre>
+ * &lt;destination&gt;
+ *   &lt;name&gt;analytics&lt;/name&gt;
+ *   &lt;accessKey&gt;...&lt;/accessKey&gt;
+ *   &lt;secretKey&gt;...&lt;/secretKey&gt;
+ *   &lt;bucketName&gt;analytics-logs&lt;/bucketName&gt;
+ * &lt;/destination&gt;
+ * </pre>
+ *
+ * Each destination has its own credentials, region, key template and retry settings, and its own S3 client, retry
+ * scheduler, metrics and upload threads, so a slow or failing destination doesn't hold back the others. The
+ * connection, multipart and <i>mockPut</i> settings are taken from the appender.
+ * <p>
+ * Supports the following logback.xml properties:
+ * <ul>
+ * <li><b>name</b>: Identifies the destination in the spool journal, logs and JMX. Letters, digits, '-' and '_'.</li>
+ * <li><b>accessKey</b>, <b>secretKey</b>, <b>bucketName</b>: As for the appender. Required.</li>
+ * <li><b>regionName</b>, <b>keyTemplate</b>, <b>retryCount</b>, <b>retryBaseDelay</b>, <b>retryMaxDelay</b>,
+ * <b>retryBudget</b>, <b>maxUploadBandwidth</b>: As for the appender, applied to this destination only.</li>
+ * <li><b>uploadThreadCount</b>, <b>uploadQueueSize</b>: Threads that post to this destination and the files that can
+ * wait for them. Once the queue is full, files are left in the spool for this destination and posted on the next
+ * start.</li>
+ * </ul>
+ *
+ * @see S3FanOut
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3Destination extends S3Settings
+{
+	private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private String name;
+
+	private S3Settings appenderSettings;
+
+	/**
+	 * Take the settings that aren't configured per destination from the appender's settings
+	 *
+	 * @param appenderSettings
+	 *            The appender's own settings
+	 */
+	void inherit(S3Settings appenderSettings)
+	{
+		this.appenderSettings = appenderSettings;
+		mockPut = appenderSettings.mockPut;
+		maxConnections = appenderSettings.maxConnections;
+		socketTimeout = appenderSettings.socketTimeout;
+		connectionTimeout = appenderSettings.connectionTimeout;
+		multipartThreshold = appenderSettings.multipartThreshold;
+		multipartPartSize = appenderSettings.multipartPartSize;
+		multipartThreadCount = appenderSettings.multipartThreadCount;
+		if (null == appName)
+		{
+			appName = appenderSettings.appName;
+		}
+	}
+
+	@Override
+	public String getDestinationName()
+	{
+		return name;
+	}
+
+	/**
+	 * The appender's sidecars are posted to every destination
+	 */
+	@Override
+	public List<String> getSidecarSuffixes()
+	{
+		return (null != appenderSettings) ? appenderSettings.getSidecarSuffixes() : super.getSidecarSuffixes();
+	}
+
+	@Override
+	public synchronized S3FanOut getFanOut()
+	{
+		return (null != appenderSettings) ? appenderSettings.getFanOut() : null;
+	}
+
+	@Override
+	public ArrayList<String> getPostSettingsErrors()
+	{
+		final ArrayList<String> errors = new ArrayList<String>();
+		if (null == name || !NAME_PATTERN.matcher(name).matches())
+		{
+			errors.add("Destination name must be letters, digits, '-' or '_'");
+		}
+		for (final String eachError : super.getPostSettingsErrors())
+		{
+			errors.add(String.format("Destination %s: %s", name, eachError));
+		}
+		return errors;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	public void setAccessKey(String accessKey)
+	{
+		this.accessKey = accessKey;
+	}
+
+	public void setSecretKey(String secretKey)
+	{
+		this.secretKey = secretKey;
+	}
+
+	public String getBucketName()
+	{
+		return bucketName;
+	}
+
+	public void setBucketName(String bucketName)
+	{
+		this.bucketName = bucketName;
+	}
+
+	public String getRegionName()
+	{
+		return regionName.toString();
+	}
+
+	public void setRegionName(String regionName)
+	{
+		this.regionName = Region.fromValue(regionName);
+	}
+
+	public String getKeyTemplate()
+	{
+		return keyTemplate;
+	}
+
+	public void setKeyTemplate(String keyTemplate)
+	{
+		this.keyTemplate = keyTemplate;
+	}
+
+	public int getRetryCount()
+	{
+		return retryCount;
+	}
+
+	public void setRetryCount(int retryCount)
+	{
+		this.retryCount = retryCount;
+	}
+
+	public int getRetryBaseDelay()
+	{
+		return retryBaseDelay;
+	}
+
+	public void setRetryBaseDelay(int retryBaseDelay)
+	{
+		this.retryBaseDelay = retryBaseDelay;
+	}
+
+	public int getRetryMaxDelay()
+	{
+		return retryMaxDelay;
+	}
+
+	public void setRetryMaxDelay(int retryMaxDelay)
+	{
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	public int getRetryBudget()
+	{
+		return retryBudget;
+	}
+
+	public void setRetryBudget(int retryBudget)
+	{
+		this.retryBudget = retryBudget;
+	}
+
+	public String getMaxUploadBandwidth()
+	{
+		return String.valueOf(maxUploadBandwidth);
+	}
+
+	public void setMaxUploadBandwidth(String maxUploadBandwidth)
+	{
+		this.maxUploadBandwidth = FileSize.valueOf(maxUploadBandwidth).getSize();
+	}
+
+	public int getUploadThreadCount()
+	{
+		return uploadThreadCount;
+	}
+
+	public void setUploadThreadCount(int uploadThreadCount)
+	{
+		this.uploadThreadCount = uploadThreadCount;
+	}
+
+	public int getUploadQueueSize()
+	{
+		return uploadQueueSize;
+	}
+
+	public void setUploadQueueSize(int uploadQueueSize)
+	{
+		this.uploadQueueSize = uploadQueueSize;
+	}
+}
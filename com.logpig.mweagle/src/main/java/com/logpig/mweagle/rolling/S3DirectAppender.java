@@ -0,0 +1,717 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.rolling.helper.CompressionMode;
+import ch.qos.logback.core.rolling.helper.DateTokenConverter;
+import ch.qos.logback.core.rolling.helper.FileNamePattern;
+import ch.qos.logback.core.rolling.helper.RollingCalendar;
+import ch.qos.logback.core.util.FileSize;
+
+import com.amazonaws.services.s3.model.Region;
+import com.logpig.mweagle.aws.S3MultipartOutputStream;
+import com.logpig.mweagle.rolling.codec.CompressionCodec;
+import com.logpig.mweagle.rolling.codec.CompressionCodecs;
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+import com.logpig.mweagle.rolling.helper.S3Compressor;
+
+/**
+ * Logback appender that writes events straight to S3 objects without touching the local filesystem.
+ * <p>
+ * Encoded events are compressed as they are written and buffered in a pool of reusable off-heap
+ * {@link com.logpig.mweagle.aws.DirectBufferPool} buffers, each holding one <i>multipartPartSize</i> part. Full parts
+ * are uploaded in parallel while logging continues. Memory use is capped at <i>multipartPartSize</i> times
+ * <i>directBufferCount</i>; once every buffer is waiting on S3, logging threads wait for one to free up.
+ * <p>
+ * The current object is completed and a new one started when it holds <i>maxObjectSize</i> uncompressed bytes, when
+ * it is <i>maxObjectAge</i> old, or when the period of the <i>fileNamePattern</i> changes. Since nothing is written to
+ * disk, there is no spool: an object that can't be posted after <i>retryCount</i> attempts is dropped and logged.
+ * <p>
+ * Supports these logback.xml properties:
+ * <ul>
+ * <li><b>accessKey</b>, <b>secretKey</b>, <b>bucketName</b>, <b>regionName</b>, <b>retryCount</b>,
+ * <b>retryBaseDelay</b>, <b>retryMaxDelay</b>, <b>retryBudget</b>, <b>maxUploadBandwidth</b>, <b>mockPut</b>,
+ * <b>maxConnections</b>, <b>socketTimeout</b>, <b>connectionTimeout</b>, <b>multipartPartSize</b>,
+ * <b>multipartThreadCount</b>, <b>uploadThreadCount</b>, <b>keyTemplate</b>, <b>appName</b> and
+ * <b>shutdownTimeout</b>: As for {@link S3RollingFileAppender}, and validated the same way</li>
+ * <li><b>fileNamePattern</b>: Name pattern of the objects, as for a rolling policy (String). It is never used to
+ * create a file, but its <i>%d</i> sets the period, its <i>%i</i> counts objects within a period, it names the
+ * objects for the <i>keyTemplate</i>, and a .gz, .lz4, .sz or .zst suffix sets the compression. .zip is not
+ * supported.</li>
+ * <li><b>maxObjectSize</b> (optional): Uncompressed size at which an object is completed (String, using the same
+ * syntax as <i>maxFileSize</i>). Defaults to {@link #DEFAULT_MAX_OBJECT_SIZE}</li>
+ * <li><b>maxObjectAge</b> (optional): Milliseconds after which an object is completed, even if no events are logged
+ * (int). Defaults to {@link #DEFAULT_MAX_OBJECT_AGE}</li>
+ * <li><b>directBufferCount</b> (optional): Number of off-heap part buffers (int). Defaults to
+ * {@link S3Settings#DEFAULT_DIRECT_BUFFER_COUNT}</li>
+ * <li><b>compressionThreadCount</b> and <b>compressionLevel</b> (optional): As for
+ * {@link S3TimeBasedRollingPolicy}</li>
+ * </ul>
+ *
+ * @see S3MultipartOutputStream
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3DirectAppender<E> extends OutputStreamAppender<E>
+{
+	public final static long DEFAULT_MAX_OBJECT_SIZE = 64 * 1024 * 1024;
+
+	public final static int DEFAULT_MAX_OBJECT_AGE = 60 * 60 * 1000;
+
+	/**
+	 * How often idle objects are checked for their age
+	 */
+	private final static long AGE_CHECK_PERIOD = 1000;
+
+	private final S3Settings s3Settings = new S3Settings();
+
+	private String fileNamePatternStr;
+
+	private long maxObjectSize = DEFAULT_MAX_OBJECT_SIZE;
+
+	private int maxObjectAge = DEFAULT_MAX_OBJECT_AGE;
+
+	private int compressionThreadCount = S3Compressor.DEFAULT_THREAD_COUNT;
+
+	private int compressionLevel = CompressionCodec.DEFAULT_LEVEL;
+
+	private CompressionCodec codec;
+
+	private FileNamePattern fileNamePattern;
+
+	private RollingCalendar rollingCalendar;
+
+	private S3Compressor compressor;
+
+	private S3UploadExecutor uploadExecutor;
+
+	private ScheduledExecutorService ageTimer;
+
+	private Thread shutdownHook;
+
+	private final ObjectOutputStream objectOutputStream = new ObjectOutputStream();
+
+	@Override
+	public void start()
+	{
+		final ArrayList<String> errors = s3Settings.getPostSettingsErrors();
+		getSettingErrors(errors);
+		if (!errors.isEmpty())
+		{
+			for (final String eachError : errors)
+			{
+				addError(eachError);
+			}
+			addError("Logs will not be forwarded to S3");
+			return;
+		}
+		fileNamePattern = new FileNamePattern(fileNamePatternStr, context);
+		@SuppressWarnings("rawtypes")
+		final DateTokenConverter dateTokenConverter = fileNamePattern.getDateTokenConverter();
+		if (null != dateTokenConverter)
+		{
+			rollingCalendar = new RollingCalendar();
+			rollingCalendar.init(dateTokenConverter.getDatePattern());
+		}
+		compressor = createCompressor();
+		uploadExecutor = new S3UploadExecutor(String.valueOf(getName()), s3Settings.uploadThreadCount,
+				s3Settings.uploadQueueSize, S3UploadExecutor.SaturationPolicy.BLOCK);
+		if (null != s3Settings.keyTemplate)
+		{
+			final String appName = (null != s3Settings.appName) ? s3Settings.appName : getContext().getName();
+			final S3KeyTemplate compiledKeyTemplate = new S3KeyTemplate(s3Settings.keyTemplate, appName,
+					fileNamePattern);
+			if (!compiledKeyTemplate.isUnique())
+			{
+				addWarn("keyTemplate has no %uuid.  Objects rolled again with the same period and index after a "
+						+ "restart will replace the ones posted before it.");
+			}
+			s3Settings.setCompiledKeyTemplate(compiledKeyTemplate);
+		}
+		setOutputStream(objectOutputStream);
+		super.start();
+		ageTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("logpig-s3-direct-"));
+		ageTimer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (lock)
+				{
+					objectOutputStream.rollIfDue(System.currentTimeMillis());
+				}
+			}
+		}, AGE_CHECK_PERIOD, AGE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+		shutdownHook = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drainOnJVMShutdown();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Complete the current object and let the uploads finish. The shared client and part upload threads are
+	 * released once the last of them completes.
+	 */
+	@Override
+	public void stop()
+	{
+		if (null != ageTimer)
+		{
+			ageTimer.shutdownNow();
+		}
+		if (null != shutdownHook)
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException ex)
+			{
+				// Stopped by another shutdown hook. The drain runs anyway.
+			}
+			shutdownHook = null;
+		}
+		super.stop();
+		// Closing the last object queues its trailer and upload, so the compression threads are released with
+		// the client once the upload executor has run it
+		if (null != uploadExecutor)
+		{
+			uploadExecutor.shutdown(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					releaseUploadResources();
+				}
+			});
+		}
+		else
+		{
+			releaseUploadResources();
+		}
+	}
+
+	private void releaseUploadResources()
+	{
+		if (null != compressor)
+		{
+			compressor.shutdown();
+		}
+		s3Settings.shutdown();
+	}
+
+	@Override
+	protected void writeOut(E event) throws IOException
+	{
+		super.writeOut(event);
+		objectOutputStream.rollIfDue(System.currentTimeMillis());
+	}
+
+	/**
+	 * Complete the current object and wait up to {@link S3Settings#shutdownTimeout} for it and any other objects
+	 * still uploading
+	 */
+	void drainOnJVMShutdown()
+	{
+		synchronized (lock)
+		{
+			objectOutputStream.roll();
+		}
+		uploadExecutor.shutdown();
+		try
+		{
+			if (!uploadExecutor.awaitTermination(s3Settings.shutdownTimeout, TimeUnit.MILLISECONDS))
+			{
+				uploadExecutor.shutdownNow();
+				addWarn(String.format("Shutdown timeout of %dms elapsed before every object was posted.  Their "
+						+ "events are lost.", s3Settings.shutdownTimeout));
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void getSettingErrors(ArrayList<String> errors)
+	{
+		if (null == fileNamePatternStr || fileNamePatternStr.trim().isEmpty())
+		{
+			errors.add("fileNamePattern property cannot be null");
+		}
+		else if (fileNamePatternStr.endsWith(".zip"))
+		{
+			errors.add("fileNamePattern cannot end with .zip");
+		}
+		else
+		{
+			codec = CompressionCodecs.forFileName(fileNamePatternStr, this);
+			if (null != codec && !CompressionCodecs.isAvailable(codec, this))
+			{
+				errors.add(String.format("Compression library for %s is not available", codec.getFileSuffix()));
+			}
+			final int maxLevel = (null != codec) ? codec.getMaxLevel() : Deflater.BEST_COMPRESSION;
+			if (compressionLevel < CompressionCodec.DEFAULT_LEVEL || compressionLevel > maxLevel)
+			{
+				errors.add(String.format("Compression level must be between [%d, %d]", CompressionCodec.DEFAULT_LEVEL,
+						maxLevel));
+			}
+		}
+		if (maxObjectSize <= 0)
+		{
+			errors.add("Max object size must be between [1, Long.MAX_VALUE]");
+		}
+		if (maxObjectAge <= 0)
+		{
+			errors.add("Max object age must be between [1, Integer.MAX_VALUE]");
+		}
+		if (compressionThreadCount < 1)
+		{
+			errors.add("Compression thread count must be between [1, Integer.MAX_VALUE]");
+		}
+	}
+
+	private S3Compressor createCompressor()
+	{
+		final CompressionMode mode = (null == codec && fileNamePatternStr.endsWith(".gz")) ? CompressionMode.GZ
+				: CompressionMode.NONE;
+		final S3Compressor newCompressor = new S3Compressor(mode);
+		newCompressor.setContext(context);
+		newCompressor.setCodec(codec);
+		newCompressor.setThreadCount(compressionThreadCount);
+		newCompressor.setLevel(compressionLevel);
+		return newCompressor;
+	}
+
+	/**
+	 * Stream that the encoder writes to. It writes through to the current object, which is opened on the first
+	 * write, and counts the uncompressed bytes. Completed objects are closed on an upload thread, so that waiting on
+	 * the last parts never holds up logging. All calls are made while holding the appender's lock.
+	 */
+	private class ObjectOutputStream extends OutputStream
+	{
+		private S3MultipartOutputStream s3Stream;
+
+		private OutputStream objectStream;
+
+		private String objectName;
+
+		private long objectBytes;
+
+		private long rollTime;
+
+		private String periodName;
+
+		private int objectIndex;
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (null == this.objectStream)
+			{
+				this.open(System.currentTimeMillis());
+			}
+			try
+			{
+				this.objectStream.write(bytes, offset, length);
+				this.objectBytes += length;
+			}
+			catch (IOException ex)
+			{
+				// A part that can't be posted loses the object, but the appender carries on with the next one
+				getLogger().error(String.format("Failed to post %s to AWS.  Its events are lost.", this.objectName),
+						ex);
+				this.s3Stream.abort();
+				this.objectStream = null;
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			// Parts are only sent once full
+		}
+
+		@Override
+		public void close()
+		{
+			this.roll();
+		}
+
+		/**
+		 * Complete the object if it is big or old enough, or its period has ended
+		 */
+		void rollIfDue(long now)
+		{
+			if (null != this.objectStream && (this.objectBytes >= maxObjectSize || now >= this.rollTime))
+			{
+				this.roll();
+			}
+		}
+
+		/**
+		 * Complete the current object, if there is one, on an upload thread
+		 */
+		void roll()
+		{
+			if (null == this.objectStream)
+			{
+				return;
+			}
+			final OutputStream completedStream = this.objectStream;
+			final S3MultipartOutputStream completedS3Stream = this.s3Stream;
+			final String completedName = this.objectName;
+			this.objectStream = null;
+			this.s3Stream = null;
+			final Runnable closeRunnable = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						// Writes the compression trailer and completes the upload
+						completedStream.close();
+						completedS3Stream.close();
+					}
+					catch (IOException ex)
+					{
+						getLogger().error(String.format("Failed to post %s to AWS.  Its events are lost.",
+								completedName), ex);
+						completedS3Stream.abort();
+					}
+					catch (RuntimeException ex)
+					{
+						getLogger().error(String.format("Failed to post %s to AWS.  Its events are lost.",
+								completedName), ex);
+						completedS3Stream.abort();
+					}
+				}
+			};
+			try
+			{
+				uploadExecutor.submit(closeRunnable);
+			}
+			catch (RejectedExecutionException ex)
+			{
+				// Stopping, so there's no upload thread left to hand it to
+				closeRunnable.run();
+			}
+		}
+
+		private void open(long now) throws IOException
+		{
+			final Date openDate = new Date(now);
+			this.rollTime = now + maxObjectAge;
+			if (null != rollingCalendar)
+			{
+				this.rollTime = Math.min(this.rollTime, rollingCalendar.getNextTriggeringMillis(openDate));
+				final String openPeriodName = fileNamePattern.getDateTokenConverter().convert(openDate);
+				if (!openPeriodName.equals(this.periodName))
+				{
+					this.periodName = openPeriodName;
+					this.objectIndex = 0;
+				}
+			}
+			this.objectName = fileNamePattern.convertMultipleArguments(openDate, Integer.valueOf(this.objectIndex));
+			this.objectIndex += 1;
+			this.objectBytes = 0;
+			this.s3Stream = new S3MultipartOutputStream(s3Settings.getKeyName(this.objectName), s3Settings,
+					s3Settings.getDirectBufferPool());
+			this.objectStream = compressor.isCompressing() ? compressor.createOutputStream(this.s3Stream)
+					: this.s3Stream;
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(S3DirectAppender.class);
+	}
+
+	public String getFileNamePattern()
+	{
+		return fileNamePatternStr;
+	}
+
+	public void setFileNamePattern(String fileNamePattern)
+	{
+		this.fileNamePatternStr = fileNamePattern;
+	}
+
+	public String getMaxObjectSize()
+	{
+		return String.valueOf(maxObjectSize);
+	}
+
+	public void setMaxObjectSize(String maxObjectSize)
+	{
+		this.maxObjectSize = FileSize.valueOf(maxObjectSize).getSize();
+	}
+
+	public int getMaxObjectAge()
+	{
+		return maxObjectAge;
+	}
+
+	public void setMaxObjectAge(int maxObjectAge)
+	{
+		this.maxObjectAge = maxObjectAge;
+	}
+
+	public int getCompressionThreadCount()
+	{
+		return compressionThreadCount;
+	}
+
+	public void setCompressionThreadCount(int compressionThreadCount)
+	{
+		this.compressionThreadCount = compressionThreadCount;
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
+	public void setDirectBufferCount(int directBufferCount)
+	{
+		s3Settings.directBufferCount = directBufferCount;
+	}
+
+	public int getDirectBufferCount()
+	{
+		return s3Settings.directBufferCount;
+	}
+
+	public void setAccessKey(String accessKey)
+	{
+		s3Settings.accessKey = accessKey;
+	}
+
+	public String getAccessKey()
+	{
+		return s3Settings.accessKey;
+	}
+
+	public void setSecretKey(String secretKey)
+	{
+		s3Settings.secretKey = secretKey;
+	}
+
+	public String getSecretKey()
+	{
+		return s3Settings.secretKey;
+	}
+
+	public void setBucketName(String bucketName)
+	{
+		s3Settings.bucketName = bucketName;
+	}
+
+	public String getBucketName()
+	{
+		return s3Settings.bucketName;
+	}
+
+	public void setRegionName(String regionName)
+	{
+		s3Settings.regionName = Region.fromValue(regionName);
+	}
+
+	public String getRegionName()
+	{
+		return s3Settings.regionName.toString();
+	}
+
+	public void setRetryCount(int retryCount)
+	{
+		s3Settings.retryCount = retryCount;
+	}
+
+	public int getRetryCount()
+	{
+		return s3Settings.retryCount;
+	}
+
+	public void setRetryBaseDelay(int retryBaseDelay)
+	{
+		s3Settings.retryBaseDelay = retryBaseDelay;
+	}
+
+	public int getRetryBaseDelay()
+	{
+		return s3Settings.retryBaseDelay;
+	}
+
+	public void setRetryMaxDelay(int retryMaxDelay)
+	{
+		s3Settings.retryMaxDelay = retryMaxDelay;
+	}
+
+	public int getRetryMaxDelay()
+	{
+		return s3Settings.retryMaxDelay;
+	}
+
+	public void setRetryBudget(int retryBudget)
+	{
+		s3Settings.retryBudget = retryBudget;
+	}
+
+	public int getRetryBudget()
+	{
+		return s3Settings.retryBudget;
+	}
+
+	public void setMaxUploadBandwidth(String maxUploadBandwidth)
+	{
+		s3Settings.maxUploadBandwidth = FileSize.valueOf(maxUploadBandwidth).getSize();
+	}
+
+	public String getMaxUploadBandwidth()
+	{
+		return String.valueOf(s3Settings.maxUploadBandwidth);
+	}
+
+	public void setMockPut(boolean mockPost)
+	{
+		s3Settings.mockPut = mockPost;
+	}
+
+	public boolean getMockPut()
+	{
+		return s3Settings.mockPut;
+	}
+
+	public void setMaxConnections(int maxConnections)
+	{
+		s3Settings.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnections()
+	{
+		return s3Settings.maxConnections;
+	}
+
+	public void setSocketTimeout(int socketTimeout)
+	{
+		s3Settings.socketTimeout = socketTimeout;
+	}
+
+	public int getSocketTimeout()
+	{
+		return s3Settings.socketTimeout;
+	}
+
+	public void setConnectionTimeout(int connectionTimeout)
+	{
+		s3Settings.connectionTimeout = connectionTimeout;
+	}
+
+	public int getConnectionTimeout()
+	{
+		return s3Settings.connectionTimeout;
+	}
+
+	public void setMultipartPartSize(String multipartPartSize)
+	{
+		s3Settings.multipartPartSize = FileSize.valueOf(multipartPartSize).getSize();
+	}
+
+	public String getMultipartPartSize()
+	{
+		return String.valueOf(s3Settings.multipartPartSize);
+	}
+
+	public void setMultipartThreadCount(int multipartThreadCount)
+	{
+		s3Settings.multipartThreadCount = multipartThreadCount;
+	}
+
+	public int getMultipartThreadCount()
+	{
+		return s3Settings.multipartThreadCount;
+	}
+
+	public void setUploadThreadCount(int uploadThreadCount)
+	{
+		s3Settings.uploadThreadCount = uploadThreadCount;
+	}
+
+	public int getUploadThreadCount()
+	{
+		return s3Settings.uploadThreadCount;
+	}
+
+	public void setKeyTemplate(String keyTemplate)
+	{
+		s3Settings.keyTemplate = keyTemplate;
+	}
+
+	public String getKeyTemplate()
+	{
+		return s3Settings.keyTemplate;
+	}
+
+	public void setAppName(String appName)
+	{
+		s3Settings.appName = appName;
+	}
+
+	public String getAppName()
+	{
+		return s3Settings.appName;
+	}
+
+	public void setShutdownTimeout(int shutdownTimeout)
+	{
+		s3Settings.shutdownTimeout = shutdownTimeout;
+	}
+
+	public int getShutdownTimeout()
+	{
+		return s3Settings.shutdownTimeout;
+	}
+}
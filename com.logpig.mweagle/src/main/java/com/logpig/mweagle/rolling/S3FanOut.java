@@ -0,0 +1,288 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logpig.mweagle.aws.S3FilePutRunnable;
+
+/**
+ * Posts each rolled file, compressed once, to the appender's own bucket and to every {@link S3Destination}.
+ * <p>
+ * The appender's own bucket is posted to on the calling thread, as it is without destinations. Each destination has
+ * its own upload threads and bounded queue, so the posts to the destinations run concurrently with it and with each
+ * other. A destination whose queue is full skips the file rather than holding back the appender, and the spool keeps
+ * it until the next start. Every post is recorded in the spool separately, so a retry only goes to the destinations
+ * that don't have the file yet.
+ * <p>
+ * Sidecar files are deleted from local disk once every destination has posted them.
+ *
+ * @see S3Destination
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3FanOut
+{
+	private final S3Settings s3Settings;
+
+	private final Map<S3Destination, S3UploadExecutor> executors = new LinkedHashMap<S3Destination, S3UploadExecutor>();
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            The appender's settings, with at least one destination
+	 */
+	public S3FanOut(S3Settings s3Settings)
+	{
+		this.s3Settings = s3Settings;
+		for (final S3Destination eachDestination : s3Settings.getDestinations())
+		{
+			this.executors.put(eachDestination, new S3UploadExecutor(eachDestination.getName(),
+					eachDestination.uploadThreadCount, eachDestination.uploadQueueSize,
+					S3UploadExecutor.SaturationPolicy.DISCARD));
+		}
+	}
+
+	/**
+	 * Post a file to the appender's own bucket and, if there are any, to every destination that doesn't have it yet
+	 *
+	 * @param fileName
+	 *            Local file to post
+	 * @param contentMD5
+	 *            Base64 encoded MD5 of the file. May be null.
+	 * @param s3Settings
+	 *            The appender's settings
+	 * @param spoolEntry
+	 *            Spool entry to complete for each post. May be null.
+	 * @return true if the appender's own bucket has the file
+	 */
+	public static boolean post(String fileName, String contentMD5, S3Settings s3Settings, UploadSpool.Entry spoolEntry)
+	{
+		final S3FanOut fanOut = s3Settings.getFanOut();
+		if (null == fanOut)
+		{
+			final boolean posted = new S3FilePutRunnable(fileName, contentMD5, s3Settings).upload();
+			if (posted && null != spoolEntry)
+			{
+				spoolEntry.complete();
+			}
+			return posted;
+		}
+		return fanOut.post(fileName, contentMD5, spoolEntry);
+	}
+
+	private boolean post(String fileName, String contentMD5, UploadSpool.Entry spoolEntry)
+	{
+		final List<S3Destination> targets = new ArrayList<S3Destination>();
+		for (final S3Destination eachDestination : this.executors.keySet())
+		{
+			if (null == spoolEntry || !spoolEntry.isPostedTo(eachDestination.getName()))
+			{
+				targets.add(eachDestination);
+			}
+		}
+		final boolean postPrimary = null == spoolEntry || !spoolEntry.isPosted();
+		// Counted up front, so that a destination that finishes early doesn't delete the sidecars
+		final Delivery delivery = new Delivery(fileName, targets.size() + (postPrimary ? 1 : 0));
+		for (final S3Destination eachDestination : targets)
+		{
+			final DestinationPostRunnable postRunnable = new DestinationPostRunnable(fileName, contentMD5,
+					eachDestination, spoolEntry, delivery);
+			if (this.executors.get(eachDestination).submit(postRunnable).isCancelled())
+			{
+				getLogger().warn("{} was not posted to destination {}.  It will be posted from the spool.", fileName,
+						eachDestination.getName());
+				delivery.finish(false);
+			}
+		}
+		boolean posted = true;
+		if (postPrimary)
+		{
+			posted = new S3FilePutRunnable(fileName, contentMD5, this.s3Settings).upload();
+			if (posted && null != spoolEntry)
+			{
+				spoolEntry.complete();
+			}
+			delivery.finish(posted);
+		}
+		return posted;
+	}
+
+	/**
+	 * @return Destination names, in configuration order
+	 */
+	public List<String> getNames()
+	{
+		final List<String> names = new ArrayList<String>();
+		for (final S3Destination eachDestination : this.executors.keySet())
+		{
+			names.add(eachDestination.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Stop accepting posts. Queued posts continue, and each destination's client is released once its last post
+	 * completes.
+	 */
+	public void shutdown()
+	{
+		for (final Map.Entry<S3Destination, S3UploadExecutor> eachEntry : this.executors.entrySet())
+		{
+			final S3Destination destination = eachEntry.getKey();
+			eachEntry.getValue().shutdown(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					destination.shutdown();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Wait for every destination's queued posts to finish
+	 *
+	 * @param timeoutMillis
+	 *            Longest time to wait, across all destinations
+	 * @return true if every destination finished
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean terminated = true;
+		for (final S3UploadExecutor eachExecutor : this.executors.values())
+		{
+			terminated &= eachExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+		}
+		return terminated;
+	}
+
+	/**
+	 * Interrupt the posts in progress and drop the queued ones. They remain in the spool.
+	 */
+	public void shutdownNow()
+	{
+		for (final S3UploadExecutor eachExecutor : this.executors.values())
+		{
+			eachExecutor.shutdownNow();
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(S3FanOut.class);
+	}
+
+	/**
+	 * Tracks the posts of a single file, and deletes its sidecars once they have all succeeded
+	 */
+	private class Delivery
+	{
+		private final String fileName;
+
+		private int outstanding;
+
+		private boolean failed;
+
+		public Delivery(String fileName, int outstanding)
+		{
+			this.fileName = fileName;
+			this.outstanding = outstanding;
+		}
+
+		public void finish(boolean posted)
+		{
+			synchronized (this)
+			{
+				this.failed |= !posted;
+				this.outstanding -= 1;
+				if (0 != this.outstanding || this.failed)
+				{
+					return;
+				}
+			}
+			if (!S3FanOut.this.s3Settings.mockPut)
+			{
+				for (final String eachSuffix : S3FanOut.this.s3Settings.getSidecarSuffixes())
+				{
+					new File(this.fileName + eachSuffix).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runnable that posts a file to one destination
+	 */
+	private static class DestinationPostRunnable implements Runnable
+	{
+		private final String fileName;
+
+		private final String contentMD5;
+
+		private final S3Destination destination;
+
+		private final UploadSpool.Entry spoolEntry;
+
+		private final Delivery delivery;
+
+		public DestinationPostRunnable(String fileName, String contentMD5, S3Destination destination,
+				UploadSpool.Entry spoolEntry, Delivery delivery)
+		{
+			this.fileName = fileName;
+			this.contentMD5 = contentMD5;
+			this.destination = destination;
+			this.spoolEntry = spoolEntry;
+			this.delivery = delivery;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean posted = false;
+			try
+			{
+				posted = new S3FilePutRunnable(this.fileName, this.contentMD5, this.destination).upload();
+				if (posted && null != this.spoolEntry)
+				{
+					this.spoolEntry.completeDestination(this.destination.getName());
+				}
+				else if (!posted)
+				{
+					getLogger().warn("{} was not posted to destination {}.  It will be posted from the spool.",
+							this.fileName, this.destination.getName());
+				}
+			}
+			finally
+			{
+				this.delivery.finish(posted);
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.rolling.helper.DateTokenConverter;
+import ch.qos.logback.core.rolling.helper.FileFilterUtil;
+import ch.qos.logback.core.rolling.helper.FileNamePattern;
+
+/**
+ * Builds S3 object keys from a template, so that posted files are partitioned by time and host rather than stored
+ * under random names in one flat namespace. Jobs can then list and load only the prefixes for the time range they
+ * need.
+ * <p>
+ * The template supports the following conversion words:
+ * <ul>
+ * <li><b>%d{pattern}</b>: Start of the rolled file's period, formatted with a SimpleDateFormat pattern. Slashes in
+ * the pattern create key prefixes, e.g. <i>%d{yyyy/MM/dd/HH}</i>. <i>%d</i> alone uses <i>yyyy-MM-dd</i>.</li>
+ * <li><b>%i</b>: The rolled file's <i>%i</i> index, or 0 if the fileNamePattern has none</li>
+ * <li><b>%host</b>: Local host name</li>
+ * <li><b>%app</b>: Application name</li>
+ * <li><b>%file</b>: Name of the rolled file, without its directory</li>
+ * <li><b>%uuid</b>: A random UUID</li>
+ * </ul>
+ * The period and index are parsed back out of the rolled file's name using the rolling policy's fileNamePattern, so
+ * files recovered from the spool get the same key they would have had when they were rolled. For a file whose name
+ * doesn't match the pattern, its last modified time stands in for the period.
+ * <p>
+ * For example, <i>%app/%d{yyyy/MM/dd/HH}/%host-%i-%uuid.log.gz</i>. Without <i>%uuid</i>, a restart within the same
+ * period can roll files with the same index again, and their objects replace the ones posted before it.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3KeyTemplate
+{
+	private static final Pattern TEMPLATE_TOKEN = Pattern.compile("%(app|host|file|uuid|i|d(\\{([^}]*)\\})?)");
+
+	private static final Pattern FILE_NAME_TOKEN = Pattern.compile("%(i|d(\\{[^}]*\\})?)");
+
+	private final String template;
+
+	private final String appName;
+
+	private final String hostName;
+
+	private final Pattern fileNameRegex;
+
+	private final String fileDatePattern;
+
+	private int dateGroup = -1;
+
+	private int indexGroup = -1;
+
+	/**
+	 * Ctor
+	 *
+	 * @param template
+	 *            Key template
+	 * @param appName
+	 *            Value for <i>%app</i>
+	 * @param fileNamePattern
+	 *            The rolling policy's fileNamePattern, used to parse the period and index out of rolled file names
+	 */
+	public S3KeyTemplate(String template, String appName, FileNamePattern fileNamePattern)
+	{
+		this.template = template;
+		this.appName = appName;
+		this.hostName = getLocalHostName();
+		@SuppressWarnings("rawtypes")
+		final DateTokenConverter dateTokenConverter = fileNamePattern.getDateTokenConverter();
+		this.fileDatePattern = (null != dateTokenConverter) ? dateTokenConverter.getDatePattern() : null;
+		String pattern = fileNamePattern.getPattern();
+		if (pattern.startsWith("./"))
+		{
+			// Rolled file names may have been made absolute
+			pattern = pattern.substring(2);
+		}
+		// Compression suffixes are matched separately, since rolled names may not have one yet
+		pattern = pattern.replaceFirst("\\.(gz|zip)$", "");
+		this.fileNameRegex = this.toFileNameRegex(pattern, dateTokenConverter);
+	}
+
+	/**
+	 * @return true if every key gets a random part, so that no two posts share a key
+	 */
+	public boolean isUnique()
+	{
+		final Matcher templateMatcher = TEMPLATE_TOKEN.matcher(this.template);
+		while (templateMatcher.find())
+		{
+			if ("uuid".equals(templateMatcher.group(1)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param fileName
+	 *            Path of the rolled file that is being posted
+	 * @return The object key for the file
+	 */
+	public String getKeyName(String fileName)
+	{
+		final String slashified = FileFilterUtil.slashify(fileName);
+		Date period = null;
+		String index = "0";
+		final Matcher fileNameMatcher = this.fileNameRegex.matcher(slashified);
+		if (fileNameMatcher.find())
+		{
+			if (-1 != this.dateGroup)
+			{
+				period = this.parsePeriod(fileNameMatcher.group(this.dateGroup));
+			}
+			if (-1 != this.indexGroup)
+			{
+				index = fileNameMatcher.group(this.indexGroup);
+			}
+		}
+		if (null == period)
+		{
+			final long lastModified = new File(fileName).lastModified();
+			period = new Date((0 != lastModified) ? lastModified : System.currentTimeMillis());
+		}
+
+		final StringBuffer keyName = new StringBuffer();
+		final Matcher templateMatcher = TEMPLATE_TOKEN.matcher(this.template);
+		while (templateMatcher.find())
+		{
+			final String token = templateMatcher.group(1);
+			String value;
+			if ("app".equals(token))
+			{
+				value = this.appName;
+			}
+			else if ("host".equals(token))
+			{
+				value = this.hostName;
+			}
+			else if ("file".equals(token))
+			{
+				value = FileFilterUtil.afterLastSlash(slashified);
+			}
+			else if ("uuid".equals(token))
+			{
+				value = UUID.randomUUID().toString();
+			}
+			else if ("i".equals(token))
+			{
+				value = index;
+			}
+			else
+			{
+				final String datePattern = templateMatcher.group(3);
+				value = new SimpleDateFormat((null != datePattern) ? datePattern : CoreConstants.DAILY_DATE_PATTERN)
+						.format(period);
+			}
+			templateMatcher.appendReplacement(keyName, Matcher.quoteReplacement(value));
+		}
+		templateMatcher.appendTail(keyName);
+		return keyName.toString();
+	}
+
+	private Date parsePeriod(String dateText)
+	{
+		try
+		{
+			return new SimpleDateFormat(this.fileDatePattern).parse(dateText);
+		}
+		catch (ParseException ex)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Turn the fileNamePattern into a regex that captures the period and index. Only the first %d is the period.
+	 */
+	@SuppressWarnings("rawtypes")
+	private Pattern toFileNameRegex(String fileNamePattern, DateTokenConverter dateTokenConverter)
+	{
+		final StringBuilder regex = new StringBuilder();
+		final Matcher tokenMatcher = FILE_NAME_TOKEN.matcher(fileNamePattern);
+		int literalStart = 0;
+		int groupCount = 0;
+		while (tokenMatcher.find())
+		{
+			if (tokenMatcher.start() > literalStart)
+			{
+				regex.append(Pattern.quote(fileNamePattern.substring(literalStart, tokenMatcher.start())));
+			}
+			literalStart = tokenMatcher.end();
+			groupCount += 1;
+			if ("i".equals(tokenMatcher.group(1)))
+			{
+				regex.append("(\\d+)");
+				this.indexGroup = (-1 == this.indexGroup) ? groupCount : this.indexGroup;
+			}
+			else if (-1 == this.dateGroup && null != dateTokenConverter)
+			{
+				// Keep the date regex's own groups from shifting the group numbers
+				final String dateRegex = dateTokenConverter.toRegex().replaceAll("(?<!\\\\)\\((?!\\?)", "(?:");
+				regex.append('(').append(dateRegex).append(')');
+				this.dateGroup = groupCount;
+			}
+			else
+			{
+				regex.append("(.+?)");
+			}
+		}
+		if (literalStart < fileNamePattern.length())
+		{
+			regex.append(Pattern.quote(fileNamePattern.substring(literalStart)));
+		}
+		// Rolled names may be missing the compression suffix, or have a codec's
+		return Pattern.compile(regex.toString() + "(?:\\.\\w+)?$");
+	}
+
+	private static String getLocalHostName()
+	{
+		try
+		{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch (UnknownHostException ex)
+		{
+			return "localhost";
+		}
+	}
+}
@@ -15,11 +15,34 @@
  */
 package com.logpig.mweagle.rolling;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.joran.spi.DefaultClass;
 import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+import ch.qos.logback.core.util.FileSize;
+import ch.qos.logback.core.util.FileUtil;
 
 import com.amazonaws.services.s3.model.Region;
+import com.logpig.mweagle.rolling.columnar.ColumnarWriter;
+import com.logpig.mweagle.rolling.helper.ChannelFileOutputStream;
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+import com.logpig.mweagle.rolling.helper.TokenBloomFilter;
+import com.logpig.mweagle.rolling.stats.EventStats;
+import com.logpig.mweagle.rolling.stats.StatsField;
 
 /**
  * Logback compatible rolling logfile appender that supports the additional logback.xml properties for S3 configuration:
@@ -33,8 +56,105 @@ import com.amazonaws.services.s3.model.Region;
  * "http://docs.amazonwebservices.com/AWSJavaSDK/latest/javadoc/com/amazonaws/services/s3/model/Region.html#fromValue(java.lang.String)"
  * >Region value</a>. Defaults to <i>Region.US_Standard</i>.</li>
  * <li><b>retryCount</b> (optional): Number of times to retry (int). Must be greater than zero.  Defaults to {@link S3Settings#DEFAULT_RETRY_COUNT}</li>
+ * <li><b>keyTemplate</b> (optional): Template for the S3 object keys (String), built from the rolled file's period,
+ * index, host and app name, e.g. <i>%app/%d{yyyy/MM/dd/HH}/%host-%i-%uuid.log.gz</i>. See {@link S3KeyTemplate} for
+ * the conversion words. Include <i>%uuid</i> if local copies aren't kept, since a restarted appender can reuse an
+ * index.
+ * Defaults to a random UUID per file.</li>
+ * <li><b>appName</b> (optional): Value of <i>%app</i> in the <i>keyTemplate</i> (String). Defaults to the logback
+ * context name.</li>
+ * <li><b>retryBaseDelay</b> (optional): Delay in milliseconds before the first retry of a failed request (int). Each
+ * further retry doubles the delay, up to <i>retryMaxDelay</i>, and the actual wait is a random fraction of it.
+ * Defaults to {@link S3Settings#DEFAULT_RETRY_BASE_DELAY}</li>
+ * <li><b>retryMaxDelay</b> (optional): Longest delay in milliseconds between retries (int). Defaults to
+ * {@link S3Settings#DEFAULT_RETRY_MAX_DELAY}</li>
+ * <li><b>retryBudget</b> (optional): Number of retries, across all uploads, that can be made without an intervening
+ * success (int). Once it is spent, failed uploads are left in the spool rather than retried. Defaults to
+ * {@link S3Settings#DEFAULT_RETRY_BUDGET}</li>
+ * <li><b>maxUploadBandwidth</b> (optional): Maximum upload rate in bytes per second, shared by all of the appender's
+ * uploads (String, using the same size syntax as <i>maxFileSize</i>, e.g. <i>2MB</i>). Defaults to zero, which means
+ * uploads are not throttled.</li>
  * <li><b>mockPost</b> (optional): If true, the appender will not submit files to S3, but will log the filenames that
  * would have been submitted</li>
+ * <li><b>maxConnections</b> (optional): Maximum number of pooled HTTP connections to S3 (int). Connections are kept
+ * open and reused across uploads. Defaults to {@link S3Settings#DEFAULT_MAX_CONNECTIONS}</li>
+ * <li><b>socketTimeout</b> (optional): Socket read timeout in milliseconds (int). Zero means no timeout. Defaults to
+ * {@link S3Settings#DEFAULT_SOCKET_TIMEOUT}</li>
+ * <li><b>connectionTimeout</b> (optional): Connection establishment timeout in milliseconds (int). Zero means no
+ * timeout. Defaults to {@link S3Settings#DEFAULT_CONNECTION_TIMEOUT}</li>
+ * <li><b>multipartThreshold</b> (optional): Files at least this large are posted as a multipart upload (String,
+ * using the same size syntax as <i>maxFileSize</i>, e.g. <i>32MB</i>). Defaults to
+ * {@link S3Settings#DEFAULT_MULTIPART_THRESHOLD}</li>
+ * <li><b>multipartPartSize</b> (optional): Size of each multipart upload part (String). Must be at least 5MB. Each
+ * part is retried on its own, and an interrupted upload is resumed from the parts already on S3. Defaults to
+ * {@link S3Settings#DEFAULT_MULTIPART_PART_SIZE}</li>
+ * <li><b>multipartThreadCount</b> (optional): Number of parts uploaded in parallel across all files (int). Should not
+ * exceed <i>maxConnections</i>. Defaults to {@link S3Settings#DEFAULT_MULTIPART_THREAD_COUNT}</li>
+ * <li><b>streamingUpload</b> (optional): If true, rolled files are compressed straight into the S3 upload rather than
+ * to a local compressed file that is then read back (boolean). A local compressed copy is only written when the
+ * rolling policy's <i>maxHistory</i> is set. Each upload thread streams one file and buffers up to
+ * <i>multipartThreadCount</i> + 1 parts, so memory use is bounded by <i>uploadThreadCount</i> times
+ * (<i>multipartThreadCount</i> + 1) times <i>multipartPartSize</i>. Defaults to false.</li>
+ * <li><b>spoolDirectory</b> (optional): Directory that holds the journal of rolled files not yet posted to S3
+ * (String). On start, files left over from a previous run, including ones interrupted by a crash, are posted in the
+ * background one at a time. Defaults to a <i>.logpig-spool</i> directory next to the active log file.</li>
+ * <li><b>uploadThreadCount</b> (optional): Number of worker threads that compress and post rolled files (int). Must be
+ * greater than zero. Defaults to {@link S3Settings#DEFAULT_UPLOAD_THREAD_COUNT}</li>
+ * <li><b>uploadQueueSize</b> (optional): Maximum number of rolled files waiting for a worker thread (int). Must be
+ * greater than zero. Defaults to {@link S3Settings#DEFAULT_UPLOAD_QUEUE_SIZE}</li>
+ * <li><b>uploadSaturationPolicy</b> (optional): What to do with a rolled file when the upload queue is full (String).
+ * One of <i>CALLER_RUNS</i>, <i>BLOCK</i> or <i>DISCARD</i>. See {@link S3UploadExecutor.SaturationPolicy}. Defaults
+ * to <i>CALLER_RUNS</i>.</li>
+ * <li><b>shutdownTimeout</b> (optional): Milliseconds that JVM shutdown waits for the active file and any queued
+ * rollovers to be posted (int). They are posted in parallel, and whatever misses the deadline is posted from the
+ * spool on the next start. Defaults to {@link S3Settings#DEFAULT_SHUTDOWN_TIMEOUT}</li>
+ * <li><b>coalesceSize</b> (optional): If set, rolled files are collected and posted as one object of about this size
+ * (String, using the same size syntax as <i>maxFileSize</i>, e.g. <i>64MB</i>), with a manifest of the files next to
+ * it. See {@link UploadCoalescer}. Doesn't apply to .zip file name patterns, and takes the place of
+ * <i>streamingUpload</i>. Defaults to zero, which posts every rolled file as its own object.</li>
+ * <li><b>periodManifest</b> (optional): If true, every object posted for a rollover period is listed, with its size,
+ * event count, time range, compression and MD5, in a manifest object at a predictable key, so that jobs can find a
+ * period's objects without listing the bucket (boolean). The manifest is posted when the period ends and at
+ * shutdown. See {@link PeriodManifest}. Defaults to false.</li>
+ * <li><b>manifestKeyTemplate</b> (optional): Template for the manifest keys (String), using the <i>%d</i>,
+ * <i>%app</i> and <i>%host</i> words of <i>keyTemplate</i>. Defaults to
+ * <i>%app/manifests/%host/%d{period}.manifest</i>, where <i>period</i> is the fileNamePattern's date pattern.</li>
+ * <li><b>coalesceAge</b> (optional): Longest time in milliseconds that a rolled file waits for its batch to fill up
+ * (int). Defaults to {@link S3Settings#DEFAULT_COALESCE_AGE}</li>
+ * <li><b>asyncBufferSize</b> (optional): If set, events are handed to a writer thread through a lock-free ring
+ * buffer with this many slots (int, rounded up to a power of two, at most {@link #MAX_ASYNC_BUFFER_SIZE}), so that
+ * logging threads never wait on a write or a rollover. Caller data isn't available to the encoder. See
+ * {@link AsyncFrontEnd}. Defaults to zero, which writes on the logging thread.</li>
+ * <li><b>asyncWaitStrategy</b> (optional): How the writer thread waits for events (String). One of
+ * <i>BLOCKING</i>, <i>SLEEPING</i>, <i>YIELDING</i> or <i>BUSY_SPIN</i>. See {@link AsyncFrontEnd.WaitStrategy}.
+ * Defaults to <i>BLOCKING</i>.</li>
+ * <li><b>asyncOverflowPolicy</b> (optional): What a logging thread does when the ring buffer is full (String). One of
+ * <i>BLOCK</i>, <i>DROP</i> or <i>SAMPLE</i>. See {@link AsyncFrontEnd.OverflowPolicy}. Defaults to
+ * <i>BLOCK</i>.</li>
+ * <li><b>asyncSampleRate</b> (optional): Under the <i>SAMPLE</i> policy, one in this many TRACE, DEBUG and INFO
+ * events is kept while the ring buffer is full (int). Defaults to {@link #DEFAULT_ASYNC_SAMPLE_RATE}</li>
+ * <li><b>writeBufferSize</b> (optional): If set, the active file is written through a FileChannel from a direct
+ * buffer of this size (String, using the same size syntax as <i>maxFileSize</i>, e.g. <i>256KB</i>), instead of
+ * with a write per event. See {@link ChannelFileOutputStream}. The file's length, and so a <i>maxFileSize</i>
+ * trigger, lags by up to one buffer. Ignored in prudent mode. Defaults to zero, which writes every event as it is
+ * logged.</li>
+ * <li><b>writeFlushInterval</b> (optional): Longest time in milliseconds that events wait in the write buffer before
+ * they are written to the file (int). Defaults to {@link #DEFAULT_WRITE_FLUSH_INTERVAL}</li>
+ * <li><b>jmxEnabled</b> (optional): If true, upload queue depth, bytes and objects shipped, latency histograms,
+ * compression ratio, retry and failure counts, rollover duration and the age of the oldest unshipped file are
+ * published as an MXBean (boolean). See {@link S3AppenderStatsMXBean}. Defaults to true.</li>
+ * <li><b>metricsListener</b> (optional): Class name of an {@link UploadMetricsListener} that receives every rollover,
+ * compression, upload and failure, given as <i>&lt;metricsListener class="..."/&gt;</i>. May be repeated.</li>
+ * <li><b>writeStats</b> (optional): If true, a summary of the events in each rolled file, with the number of events
+ * of each level and the earliest and latest event times, is posted next to its object with a <i>.stats</i> suffix
+ * (boolean). See {@link EventStats}. Defaults to false.</li>
+ * <li><b>statsField</b> (optional): A numeric field extracted from event messages with a regular expression, whose
+ * count, sum, minimum and maximum are added to the summary. Turns on <i>writeStats</i>. See {@link StatsField}. May
+ * be repeated.</li>
+ * <li><b>destination</b> (optional): Another bucket, with its own credentials, region, key template and retry
+ * settings, that every rolled file is also posted to. Each file is compressed once and posted to every destination
+ * concurrently, and a destination that falls behind doesn't hold back the others. See {@link S3Destination}. May be
+ * repeated.</li>
  * </ul>
  * 
  * @author Matt Weagle (mweagle@gmail.com)
@@ -43,16 +163,67 @@ public class S3RollingFileAppender<E> extends RollingFileAppender<E>
 {
 	private S3Settings s3Settings = new S3Settings();
 
+	private S3UploadExecutor uploadExecutor;
+
+	public final static int DEFAULT_ASYNC_SAMPLE_RATE = 10;
+
+	public final static int MAX_ASYNC_BUFFER_SIZE = 1 << 30;
+
+	private int asyncBufferSize;
+
+	private AsyncFrontEnd.WaitStrategy asyncWaitStrategy = AsyncFrontEnd.WaitStrategy.BLOCKING;
+
+	private AsyncFrontEnd.OverflowPolicy asyncOverflowPolicy = AsyncFrontEnd.OverflowPolicy.BLOCK;
+
+	private int asyncSampleRate = DEFAULT_ASYNC_SAMPLE_RATE;
+
+	private volatile AsyncFrontEnd<E> asyncFrontEnd;
+
+	public final static int DEFAULT_WRITE_FLUSH_INTERVAL = 1000;
+
+	private long writeBufferSize;
+
+	private int writeFlushInterval = DEFAULT_WRITE_FLUSH_INTERVAL;
+
+	private ScheduledExecutorService flushTimer;
+
+	private boolean jmxEnabled = true;
+
+	private ObjectName statsName;
+
+	private boolean writeStats;
+
+	private final List<StatsField> statsFields = new ArrayList<StatsField>();
+
+	private EventStats eventStats;
+
+	private ColumnarWriter columnarWriter;
+
+	private TokenBloomFilter tokenBloomFilter;
+
 	@Override
 	public void start()
 	{
+		if (null != getRollingPolicy() && !getRollingPolicy().isStarted())
+		{
+			// The policy has already reported why
+			writeErrorMessage("Rolling policy did not start.  Logs will not be written.");
+			return;
+		}
 		try
 		{
 			final ArrayList<String> errors = s3Settings.getPostSettingsErrors();
 			if (errors.isEmpty())
 			{
 				final S3TimeBasedRollingPolicy<?> s3Policy = (S3TimeBasedRollingPolicy<?>) (super.getRollingPolicy());
+				uploadExecutor = new S3UploadExecutor(String.valueOf(super.getName()), s3Settings.uploadThreadCount,
+						s3Settings.uploadQueueSize, s3Settings.uploadSaturationPolicy);
+				s3Policy.setUploadExecutor(uploadExecutor);
 				s3Policy.setS3Settings(s3Settings);
+				s3Policy.setAppender(this);
+				columnarWriter = s3Policy.getColumnarWriter();
+				tokenBloomFilter = s3Policy.getTokenBloomFilter();
+				s3Policy.startSpool();
 			}
 			else
 			{
@@ -67,7 +238,225 @@ public class S3RollingFileAppender<E> extends RollingFileAppender<E>
 			writeErrorMessage("S3TimeBasedRollingPolicy not provided to S3RollingFileAppender");
 			writeErrorMessage("Logs will not be forwarded to S3");
 		}
+		if (writeBufferSize > Integer.MAX_VALUE || writeFlushInterval < 1)
+		{
+			writeErrorMessage("writeBufferSize must be less than 2GB and writeFlushInterval at least 1ms");
+			writeBufferSize = 0;
+		}
+		else if (writeBufferSize > 0 && isPrudent())
+		{
+			addWarn("writeBufferSize is ignored in prudent mode");
+		}
+		if (asyncBufferSize > MAX_ASYNC_BUFFER_SIZE)
+		{
+			writeErrorMessage(String.format("asyncBufferSize must be between [0, %d]", MAX_ASYNC_BUFFER_SIZE));
+			asyncBufferSize = 0;
+		}
+		if (writeStats || !statsFields.isEmpty())
+		{
+			startStats();
+		}
+		else if (s3Settings.periodManifest)
+		{
+			// Counted for the manifest, but not posted
+			eventStats = new EventStats();
+		}
 		super.start();
+		if (isStarted() && asyncBufferSize > 0)
+		{
+			startAsyncFrontEnd();
+		}
+		if (isStarted() && getOutputStream() instanceof ChannelFileOutputStream)
+		{
+			startFlushTimer();
+		}
+		if (isStarted() && jmxEnabled && null != uploadExecutor)
+		{
+			registerStats();
+		}
+	}
+
+	/**
+	 * Record how long the appender is blocked while the active file is rolled over
+	 */
+	@Override
+	public void rollover()
+	{
+		final long startMillis = System.currentTimeMillis();
+		super.rollover();
+		s3Settings.getMetrics().recordRollover(getFile(), System.currentTimeMillis() - startMillis);
+	}
+
+	/**
+	 * Open the active file through a {@link ChannelFileOutputStream} when <i>writeBufferSize</i> is set
+	 */
+	@Override
+	public void openFile(String fileName) throws IOException
+	{
+		if (writeBufferSize <= 0 || isPrudent())
+		{
+			super.openFile(fileName);
+			return;
+		}
+		synchronized (lock)
+		{
+			final File file = new File(fileName);
+			if (FileUtil.isParentDirectoryCreationRequired(file) && !FileUtil.createMissingParentDirectories(file))
+			{
+				addError("Failed to create parent directories for [" + file.getAbsolutePath() + "]");
+			}
+			setOutputStream(new ChannelFileOutputStream(file, isAppend(), (int) writeBufferSize, writeFlushInterval));
+		}
+	}
+
+	/**
+	 * Write out every event that has been logged, so that the active file is complete before it is posted at JVM
+	 * shutdown
+	 *
+	 * @param timeoutMillis
+	 *            Longest time to wait for queued events
+	 */
+	void flushForShutdown(long timeoutMillis)
+	{
+		final AsyncFrontEnd<E> frontEnd = asyncFrontEnd;
+		if (null != frontEnd)
+		{
+			frontEnd.flush(timeoutMillis);
+		}
+		drainWriteBuffer();
+	}
+
+	/**
+	 * Add the event to the active file's summary, columnar copy and Bloom filter.  Events are written, and the active
+	 * file is rolled over, while holding the lock, so they cover exactly the events in the file.
+	 */
+	@Override
+	protected void writeOut(E event) throws IOException
+	{
+		super.writeOut(event);
+		if (!(event instanceof ILoggingEvent))
+		{
+			return;
+		}
+		final ILoggingEvent loggingEvent = (ILoggingEvent) event;
+		if (null != eventStats)
+		{
+			eventStats.recordEvent(loggingEvent.getTimeStamp(), loggingEvent.getLevel().toString());
+			if (!statsFields.isEmpty())
+			{
+				final String message = loggingEvent.getFormattedMessage();
+				for (final StatsField eachField : statsFields)
+				{
+					eachField.extract(message, eventStats);
+				}
+			}
+		}
+		if (null != columnarWriter)
+		{
+			try
+			{
+				columnarWriter.write(loggingEvent);
+			}
+			catch (IOException ex)
+			{
+				// The writer skips the rest of the period, so this is reported once per file
+				addError("Failed to write the columnar copy of " + getFile(), ex);
+			}
+		}
+		if (null != tokenBloomFilter)
+		{
+			tokenBloomFilter.addTokens(loggingEvent.getFormattedMessage());
+		}
+	}
+
+	/**
+	 * Hand over the summary of the events written to the active file, and start a new one
+	 *
+	 * @return Summary of the active file, or null if neither <i>writeStats</i> nor <i>periodManifest</i> is on
+	 */
+	EventStats takeEventStats()
+	{
+		synchronized (lock)
+		{
+			if (null == eventStats)
+			{
+				return null;
+			}
+			final EventStats activeStats = eventStats;
+			eventStats = new EventStats();
+			return activeStats;
+		}
+	}
+
+	/**
+	 * Queue the event for the writer thread when the async front end is on
+	 */
+	@Override
+	protected void append(E eventObject)
+	{
+		// Read once, since stop() clears it while logging threads are still appending
+		final AsyncFrontEnd<E> frontEnd = asyncFrontEnd;
+		if (null == frontEnd)
+		{
+			super.append(eventObject);
+			return;
+		}
+		if (eventObject instanceof DeferredProcessingAware)
+		{
+			// Capture the message, thread name and MDC before the event changes threads
+			((DeferredProcessingAware) eventObject).prepareForDeferredProcessing();
+		}
+		frontEnd.publish(eventObject);
+	}
+
+	@Override
+	public void stop()
+	{
+		final AsyncFrontEnd<E> frontEnd = asyncFrontEnd;
+		if (null != frontEnd)
+		{
+			frontEnd.stop(s3Settings.shutdownTimeout);
+			asyncFrontEnd = null;
+		}
+		if (null != flushTimer)
+		{
+			flushTimer.shutdownNow();
+			flushTimer = null;
+		}
+		unregisterStats();
+		super.stop();
+		// Let queued rollovers finish, but don't accept new ones.  The shared client and the
+		// part upload and compression threads are released once the last of them completes.
+		if (null != uploadExecutor)
+		{
+			uploadExecutor.shutdown(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					releaseUploadResources();
+				}
+			});
+		}
+		else
+		{
+			releaseUploadResources();
+		}
+	}
+
+	private void releaseUploadResources()
+	{
+		if (getRollingPolicy() instanceof S3TimeBasedRollingPolicy)
+		{
+			((S3TimeBasedRollingPolicy<?>) getRollingPolicy()).shutdownCompressor();
+		}
+		s3Settings.shutdown();
+		final S3FanOut fanOut = s3Settings.getFanOut();
+		if (null != fanOut)
+		{
+			// Destinations finish the posts they have queued on their own threads
+			fanOut.shutdown();
+		}
 	}
 
 	public void setAccessKey(String accessKey)
@@ -120,6 +509,106 @@ public class S3RollingFileAppender<E> extends RollingFileAppender<E>
 		return s3Settings.retryCount;
 	}
 
+	public void setKeyTemplate(String keyTemplate)
+	{
+		s3Settings.keyTemplate = keyTemplate;
+	}
+
+	public String getKeyTemplate()
+	{
+		return s3Settings.keyTemplate;
+	}
+
+	public void setAppName(String appName)
+	{
+		s3Settings.appName = appName;
+	}
+
+	public String getAppName()
+	{
+		return s3Settings.appName;
+	}
+
+	public void setRetryBaseDelay(int retryBaseDelay)
+	{
+		s3Settings.retryBaseDelay = retryBaseDelay;
+	}
+
+	public int getRetryBaseDelay()
+	{
+		return s3Settings.retryBaseDelay;
+	}
+
+	public void setRetryMaxDelay(int retryMaxDelay)
+	{
+		s3Settings.retryMaxDelay = retryMaxDelay;
+	}
+
+	public int getRetryMaxDelay()
+	{
+		return s3Settings.retryMaxDelay;
+	}
+
+	public void setRetryBudget(int retryBudget)
+	{
+		s3Settings.retryBudget = retryBudget;
+	}
+
+	public int getRetryBudget()
+	{
+		return s3Settings.retryBudget;
+	}
+
+	public void setMaxUploadBandwidth(String maxUploadBandwidth)
+	{
+		s3Settings.maxUploadBandwidth = FileSize.valueOf(maxUploadBandwidth).getSize();
+	}
+
+	public String getMaxUploadBandwidth()
+	{
+		return String.valueOf(s3Settings.maxUploadBandwidth);
+	}
+
+	public void setCoalesceSize(String coalesceSize)
+	{
+		s3Settings.coalesceSize = FileSize.valueOf(coalesceSize).getSize();
+	}
+
+	public String getCoalesceSize()
+	{
+		return String.valueOf(s3Settings.coalesceSize);
+	}
+
+	public void setCoalesceAge(int coalesceAge)
+	{
+		s3Settings.coalesceAge = coalesceAge;
+	}
+
+	public int getCoalesceAge()
+	{
+		return s3Settings.coalesceAge;
+	}
+
+	public void setPeriodManifest(boolean periodManifest)
+	{
+		s3Settings.periodManifest = periodManifest;
+	}
+
+	public boolean isPeriodManifest()
+	{
+		return s3Settings.periodManifest;
+	}
+
+	public void setManifestKeyTemplate(String manifestKeyTemplate)
+	{
+		s3Settings.manifestKeyTemplate = manifestKeyTemplate;
+	}
+
+	public String getManifestKeyTemplate()
+	{
+		return s3Settings.manifestKeyTemplate;
+	}
+
 	public void setMockPut(boolean mockPost)
 	{
 		s3Settings.mockPut = mockPost;
@@ -130,6 +619,350 @@ public class S3RollingFileAppender<E> extends RollingFileAppender<E>
 		return s3Settings.mockPut;
 	}
 
+	public void setMaxConnections(int maxConnections)
+	{
+		s3Settings.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnections()
+	{
+		return s3Settings.maxConnections;
+	}
+
+	public void setSocketTimeout(int socketTimeout)
+	{
+		s3Settings.socketTimeout = socketTimeout;
+	}
+
+	public int getSocketTimeout()
+	{
+		return s3Settings.socketTimeout;
+	}
+
+	public void setConnectionTimeout(int connectionTimeout)
+	{
+		s3Settings.connectionTimeout = connectionTimeout;
+	}
+
+	public int getConnectionTimeout()
+	{
+		return s3Settings.connectionTimeout;
+	}
+
+	public void setMultipartThreshold(String multipartThreshold)
+	{
+		s3Settings.multipartThreshold = FileSize.valueOf(multipartThreshold).getSize();
+	}
+
+	public String getMultipartThreshold()
+	{
+		return String.valueOf(s3Settings.multipartThreshold);
+	}
+
+	public void setMultipartPartSize(String multipartPartSize)
+	{
+		s3Settings.multipartPartSize = FileSize.valueOf(multipartPartSize).getSize();
+	}
+
+	public String getMultipartPartSize()
+	{
+		return String.valueOf(s3Settings.multipartPartSize);
+	}
+
+	public void setMultipartThreadCount(int multipartThreadCount)
+	{
+		s3Settings.multipartThreadCount = multipartThreadCount;
+	}
+
+	public int getMultipartThreadCount()
+	{
+		return s3Settings.multipartThreadCount;
+	}
+
+	public void setStreamingUpload(boolean streamingUpload)
+	{
+		s3Settings.streamingUpload = streamingUpload;
+	}
+
+	public boolean getStreamingUpload()
+	{
+		return s3Settings.streamingUpload;
+	}
+
+	public void setSpoolDirectory(String spoolDirectory)
+	{
+		s3Settings.spoolDirectory = spoolDirectory;
+	}
+
+	public String getSpoolDirectory()
+	{
+		return s3Settings.spoolDirectory;
+	}
+
+	public void setUploadThreadCount(int uploadThreadCount)
+	{
+		s3Settings.uploadThreadCount = uploadThreadCount;
+	}
+
+	public int getUploadThreadCount()
+	{
+		return s3Settings.uploadThreadCount;
+	}
+
+	public void setShutdownTimeout(int shutdownTimeout)
+	{
+		s3Settings.shutdownTimeout = shutdownTimeout;
+	}
+
+	public int getShutdownTimeout()
+	{
+		return s3Settings.shutdownTimeout;
+	}
+
+	public void setUploadQueueSize(int uploadQueueSize)
+	{
+		s3Settings.uploadQueueSize = uploadQueueSize;
+	}
+
+	public int getUploadQueueSize()
+	{
+		return s3Settings.uploadQueueSize;
+	}
+
+	public void setUploadSaturationPolicy(String uploadSaturationPolicy)
+	{
+		s3Settings.uploadSaturationPolicy = S3UploadExecutor.SaturationPolicy.valueOf(uploadSaturationPolicy.trim()
+				.toUpperCase());
+	}
+
+	public String getUploadSaturationPolicy()
+	{
+		return s3Settings.uploadSaturationPolicy.toString();
+	}
+
+	public void setAsyncBufferSize(int asyncBufferSize)
+	{
+		this.asyncBufferSize = asyncBufferSize;
+	}
+
+	public int getAsyncBufferSize()
+	{
+		return asyncBufferSize;
+	}
+
+	public void setAsyncWaitStrategy(String asyncWaitStrategy)
+	{
+		this.asyncWaitStrategy = AsyncFrontEnd.WaitStrategy.valueOf(asyncWaitStrategy.trim().toUpperCase());
+	}
+
+	public String getAsyncWaitStrategy()
+	{
+		return asyncWaitStrategy.toString();
+	}
+
+	public void setAsyncOverflowPolicy(String asyncOverflowPolicy)
+	{
+		this.asyncOverflowPolicy = AsyncFrontEnd.OverflowPolicy.valueOf(asyncOverflowPolicy.trim().toUpperCase());
+	}
+
+	public String getAsyncOverflowPolicy()
+	{
+		return asyncOverflowPolicy.toString();
+	}
+
+	public void setAsyncSampleRate(int asyncSampleRate)
+	{
+		this.asyncSampleRate = asyncSampleRate;
+	}
+
+	public int getAsyncSampleRate()
+	{
+		return asyncSampleRate;
+	}
+
+	public void setWriteBufferSize(String writeBufferSize)
+	{
+		this.writeBufferSize = FileSize.valueOf(writeBufferSize).getSize();
+	}
+
+	public String getWriteBufferSize()
+	{
+		return String.valueOf(writeBufferSize);
+	}
+
+	public void setWriteFlushInterval(int writeFlushInterval)
+	{
+		this.writeFlushInterval = writeFlushInterval;
+	}
+
+	public int getWriteFlushInterval()
+	{
+		return writeFlushInterval;
+	}
+
+	public void setJmxEnabled(boolean jmxEnabled)
+	{
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	public boolean getJmxEnabled()
+	{
+		return jmxEnabled;
+	}
+
+	public void setWriteStats(boolean writeStats)
+	{
+		this.writeStats = writeStats;
+	}
+
+	public boolean getWriteStats()
+	{
+		return writeStats;
+	}
+
+	@DefaultClass(StatsField.class)
+	public void addStatsField(StatsField statsField)
+	{
+		statsFields.add(statsField);
+	}
+
+	@DefaultClass(S3Destination.class)
+	public void addDestination(S3Destination destination)
+	{
+		s3Settings.addDestination(destination);
+	}
+
+	public void addMetricsListener(UploadMetricsListener metricsListener)
+	{
+		s3Settings.getMetrics().addListener(metricsListener);
+	}
+
+	/**
+	 * @return Counters and latency histograms for the appender's uploads
+	 */
+	public UploadMetrics getMetrics()
+	{
+		return s3Settings.getMetrics();
+	}
+
+	private void startAsyncFrontEnd()
+	{
+		int capacity = Integer.highestOneBit(asyncBufferSize);
+		if (capacity != asyncBufferSize)
+		{
+			capacity <<= 1;
+			addInfo(String.format("Rounded asyncBufferSize up to %d", capacity));
+		}
+		if (asyncSampleRate < 1)
+		{
+			addWarn("asyncSampleRate must be at least 1.  Using " + DEFAULT_ASYNC_SAMPLE_RATE);
+			asyncSampleRate = DEFAULT_ASYNC_SAMPLE_RATE;
+		}
+		final AsyncFrontEnd<E> frontEnd = new AsyncFrontEnd<E>(String.valueOf(getName()), capacity, asyncWaitStrategy,
+				asyncOverflowPolicy, asyncSampleRate, new AsyncFrontEnd.EventHandler<E>()
+				{
+					@Override
+					public void handle(E event)
+					{
+						writeQueued(event);
+					}
+				});
+		frontEnd.setContext(getContext());
+		frontEnd.start();
+		asyncFrontEnd = frontEnd;
+	}
+
+	private void startFlushTimer()
+	{
+		// Writes only reach the file on a busy log, so an idle one is drained on a timer
+		flushTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("logpig-s3-flush-"));
+		flushTimer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drainWriteBuffer();
+			}
+		}, writeFlushInterval, writeFlushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private void drainWriteBuffer()
+	{
+		synchronized (lock)
+		{
+			final OutputStream outputStream = getOutputStream();
+			if (outputStream instanceof ChannelFileOutputStream)
+			{
+				try
+				{
+					((ChannelFileOutputStream) outputStream).drain();
+				}
+				catch (IOException ex)
+				{
+					addError("Failed to write buffered events to " + getFile(), ex);
+				}
+			}
+		}
+	}
+
+	private void startStats()
+	{
+		for (final StatsField eachField : new ArrayList<StatsField>(statsFields))
+		{
+			if (!eachField.isStarted())
+			{
+				addWarn(String.format("statsField %s will not be extracted", eachField.getName()));
+				statsFields.remove(eachField);
+			}
+		}
+		eventStats = new EventStats();
+		s3Settings.addSidecarSuffix(EventStats.SUFFIX);
+	}
+
+	private void registerStats()
+	{
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			final ObjectName name = new ObjectName("com.logpig.mweagle:type=S3RollingFileAppender,name="
+					+ ObjectName.quote(String.valueOf(getName())));
+			if (server.isRegistered(name))
+			{
+				// Left behind by an earlier configuration of the same appender
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new S3AppenderStats(s3Settings, uploadExecutor,
+					(S3TimeBasedRollingPolicy<?>) getRollingPolicy()), name);
+			statsName = name;
+		}
+		catch (JMException ex)
+		{
+			addWarn("Failed to register S3RollingFileAppender MXBean", ex);
+		}
+	}
+
+	private void unregisterStats()
+	{
+		if (null == statsName)
+		{
+			return;
+		}
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+		}
+		catch (JMException ex)
+		{
+			addWarn("Failed to unregister S3RollingFileAppender MXBean", ex);
+		}
+		statsName = null;
+	}
+
+	private void writeQueued(E event)
+	{
+		super.append(event);
+	}
+
 	private void writeErrorMessage(String message)
 	{
 		System.err.println("[ERROR] S3RollingFileAppender - " + message);
@@ -16,11 +16,24 @@
 package com.logpig.mweagle.rolling;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.Region;
+import com.logpig.mweagle.aws.DirectBufferPool;
+import com.logpig.mweagle.aws.RetryScheduler;
+import com.logpig.mweagle.aws.UploadThrottle;
 /**
- * POJO to store Amazon S3 settings 
+ * POJO to store Amazon S3 settings.  Also owns the long-lived AmazonS3Client that is
+ * shared by every upload made with these settings, so that HTTP connections are pooled
+ * and reused across rolled files, the executor that uploads multipart upload parts, and the
+ * bandwidth throttle and retry scheduler that every upload made with these settings shares.
  *
  * @author Matt Weagle (mweagle@gmail.com)
  */
@@ -29,6 +42,56 @@ public class S3Settings {
 
 	public final static Region DEFAULT_REGION_NAME = Region.US_Standard;
 
+	public final static int DEFAULT_UPLOAD_THREAD_COUNT = 2;
+
+	public final static int DEFAULT_UPLOAD_QUEUE_SIZE = 64;
+
+	public final static S3UploadExecutor.SaturationPolicy DEFAULT_UPLOAD_SATURATION_POLICY = S3UploadExecutor.SaturationPolicy.CALLER_RUNS;
+
+	public final static int DEFAULT_MAX_CONNECTIONS = 50;
+
+	public final static int DEFAULT_SOCKET_TIMEOUT = 50 * 1000;
+
+	public final static int DEFAULT_CONNECTION_TIMEOUT = 50 * 1000;
+
+	/**
+	 * S3 rejects multipart upload parts, other than the last one, that are smaller than 5MB
+	 */
+	public final static long MIN_MULTIPART_PART_SIZE = 5 * 1024 * 1024;
+
+	public final static long DEFAULT_MULTIPART_PART_SIZE = 8 * 1024 * 1024;
+
+	public final static long DEFAULT_MULTIPART_THRESHOLD = 32 * 1024 * 1024;
+
+	public final static int DEFAULT_MULTIPART_THREAD_COUNT = 4;
+
+	/**
+	 * One buffer filling while a full set of parts is uploading
+	 */
+	public final static int DEFAULT_DIRECT_BUFFER_COUNT = DEFAULT_MULTIPART_THREAD_COUNT + 1;
+
+	public final static String DEFAULT_SPOOL_DIRECTORY_NAME = ".logpig-spool";
+
+	/**
+	 * Zero means uploads are not throttled
+	 */
+	public final static long DEFAULT_MAX_UPLOAD_BANDWIDTH = 0;
+
+	public final static int DEFAULT_RETRY_BASE_DELAY = 500;
+
+	public final static int DEFAULT_RETRY_MAX_DELAY = 30 * 1000;
+
+	public final static int DEFAULT_RETRY_BUDGET = 20;
+
+	public final static int DEFAULT_SHUTDOWN_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Zero means every rolled file is posted as its own object
+	 */
+	public final static long DEFAULT_COALESCE_SIZE = 0;
+
+	public final static int DEFAULT_COALESCE_AGE = 5 * 60 * 1000;
+
 	public String accessKey;
 
 	public String secretKey;
@@ -41,10 +104,275 @@ public class S3Settings {
 
 	public int retryCount = S3Settings.DEFAULT_RETRY_COUNT;
 
+	public int uploadThreadCount = S3Settings.DEFAULT_UPLOAD_THREAD_COUNT;
+
+	public int uploadQueueSize = S3Settings.DEFAULT_UPLOAD_QUEUE_SIZE;
+
+	public S3UploadExecutor.SaturationPolicy uploadSaturationPolicy = S3Settings.DEFAULT_UPLOAD_SATURATION_POLICY;
+
+	public int maxConnections = S3Settings.DEFAULT_MAX_CONNECTIONS;
+
+	public int socketTimeout = S3Settings.DEFAULT_SOCKET_TIMEOUT;
+
+	public int connectionTimeout = S3Settings.DEFAULT_CONNECTION_TIMEOUT;
+
+	public long multipartThreshold = S3Settings.DEFAULT_MULTIPART_THRESHOLD;
+
+	public long multipartPartSize = S3Settings.DEFAULT_MULTIPART_PART_SIZE;
+
+	public int multipartThreadCount = S3Settings.DEFAULT_MULTIPART_THREAD_COUNT;
+
+	public boolean streamingUpload = false;
+
+	public int directBufferCount = S3Settings.DEFAULT_DIRECT_BUFFER_COUNT;
+
+	public String spoolDirectory;
+
+	public long maxUploadBandwidth = S3Settings.DEFAULT_MAX_UPLOAD_BANDWIDTH;
+
+	public int retryBaseDelay = S3Settings.DEFAULT_RETRY_BASE_DELAY;
+
+	public int retryMaxDelay = S3Settings.DEFAULT_RETRY_MAX_DELAY;
+
+	public int retryBudget = S3Settings.DEFAULT_RETRY_BUDGET;
+
+	public int shutdownTimeout = S3Settings.DEFAULT_SHUTDOWN_TIMEOUT;
+
+	public String keyTemplate;
+
+	public String appName;
+
+	public long coalesceSize = S3Settings.DEFAULT_COALESCE_SIZE;
+
+	public int coalesceAge = S3Settings.DEFAULT_COALESCE_AGE;
+
+	public boolean periodManifest = false;
+
+	public String manifestKeyTemplate;
+
+	private AmazonS3Client s3Client;
+
+	private S3UploadExecutor partExecutor;
+
+	private UploadThrottle uploadThrottle;
+
+	private RetryScheduler retryScheduler;
+
+	private DirectBufferPool directBufferPool;
+
+	private S3KeyTemplate compiledKeyTemplate;
+
+	private PeriodManifest manifest;
+
+	private S3FanOut fanOut;
+
+	private final List<S3Destination> destinations = new ArrayList<S3Destination>();
+
+	private final List<String> sidecarSuffixes = new CopyOnWriteArrayList<String>();
+
+	private final UploadMetrics metrics = new UploadMetrics();
+
 	public BasicAWSCredentials getAWSCredentials() {
 		return new BasicAWSCredentials(accessKey, secretKey);
 	}
 
+	public ClientConfiguration getClientConfiguration() {
+		final ClientConfiguration configuration = new ClientConfiguration();
+		configuration.setMaxConnections(maxConnections);
+		configuration.setSocketTimeout(socketTimeout);
+		configuration.setConnectionTimeout(connectionTimeout);
+		return configuration;
+	}
+
+	/**
+	 * Returns the shared client, creating it on first use.  The client's connection pool
+	 * keeps connections to S3 open between uploads.
+	 * 
+	 * @return	Shared AmazonS3Client instance
+	 */
+	public synchronized AmazonS3Client getS3Client() {
+		if (null == s3Client)
+		{
+			s3Client = new AmazonS3Client(getAWSCredentials(), getClientConfiguration());
+		}
+		return s3Client;
+	}
+
+	/**
+	 * Returns the executor that uploads multipart upload parts, creating it on first use.
+	 * When the queue is full, the thread uploading the file sends the part itself.
+	 * 
+	 * @return	Shared part upload executor
+	 */
+	public synchronized S3UploadExecutor getPartExecutor() {
+		if (null == partExecutor)
+		{
+			partExecutor = new S3UploadExecutor("parts", multipartThreadCount, multipartThreadCount * 16,
+					S3UploadExecutor.SaturationPolicy.CALLER_RUNS);
+		}
+		return partExecutor;
+	}
+
+	/**
+	 * Returns the token bucket that caps the upload rate, creating it on first use.
+	 * 
+	 * @return	Shared upload throttle, or null if <i>maxUploadBandwidth</i> is zero
+	 */
+	public synchronized UploadThrottle getUploadThrottle() {
+		if (null == uploadThrottle && maxUploadBandwidth > 0)
+		{
+			uploadThrottle = new UploadThrottle(maxUploadBandwidth);
+		}
+		return uploadThrottle;
+	}
+
+	/**
+	 * Returns the scheduler that spaces out retries and enforces the retry budget, 
+	 * creating it on first use.
+	 * 
+	 * @return	Shared retry scheduler
+	 */
+	public synchronized RetryScheduler getRetryScheduler() {
+		if (null == retryScheduler)
+		{
+			retryScheduler = new RetryScheduler(retryBaseDelay, retryMaxDelay, retryBudget);
+		}
+		return retryScheduler;
+	}
+
+	/**
+	 * Returns the pool of off-heap part buffers, creating it on first use.  Each buffer
+	 * holds one <i>multipartPartSize</i> part.
+	 * 
+	 * @return	Shared direct buffer pool
+	 */
+	public synchronized DirectBufferPool getDirectBufferPool() {
+		if (null == directBufferPool)
+		{
+			directBufferPool = new DirectBufferPool((int) multipartPartSize, directBufferCount);
+		}
+		return directBufferPool;
+	}
+
+	public synchronized void setCompiledKeyTemplate(S3KeyTemplate compiledKeyTemplate) {
+		this.compiledKeyTemplate = compiledKeyTemplate;
+	}
+
+	/**
+	 * Returns the object key for a rolled file.  Without a <i>keyTemplate</i>, every
+	 * object gets a random UUID.
+	 * 
+	 * @param fileName	Path of the rolled file
+	 * @return	Object key
+	 */
+	public synchronized String getKeyName(String fileName) {
+		if (null == compiledKeyTemplate)
+		{
+			return UUID.randomUUID().toString();
+		}
+		return compiledKeyTemplate.getKeyName(fileName);
+	}
+
+	public synchronized void setManifest(PeriodManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Returns the manifest that lists each posted object under its rollover period.
+	 * 
+	 * @return	Period manifest, or null if <i>periodManifest</i> is off
+	 */
+	public synchronized PeriodManifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Add a bucket that every rolled file is also posted to.
+	 * 
+	 * @param destination	Extra destination
+	 * @see S3FanOut
+	 */
+	public void addDestination(S3Destination destination) {
+		destinations.add(destination);
+	}
+
+	/**
+	 * Returns the buckets that every rolled file is also posted to, besides this one.
+	 * 
+	 * @return	Extra destinations
+	 */
+	public List<S3Destination> getDestinations() {
+		return destinations;
+	}
+
+	/**
+	 * Returns the name that distinguishes uploads made with these settings from the
+	 * other destinations' uploads of the same file.
+	 * 
+	 * @return	Destination name, or null for the appender's own bucket
+	 */
+	public String getDestinationName() {
+		return null;
+	}
+
+	public synchronized void setFanOut(S3FanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Returns the poster that sends each rolled file to every destination.
+	 * 
+	 * @return	Fan out poster, or null if there are no extra destinations
+	 */
+	public synchronized S3FanOut getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * Register a kind of sidecar file that is posted next to each rolled file.
+	 * 
+	 * @param suffix	Suffix that is appended to the rolled file's name and object key
+	 * @see com.logpig.mweagle.aws.S3SidecarPoster
+	 */
+	public void addSidecarSuffix(String suffix) {
+		if (!sidecarSuffixes.contains(suffix))
+		{
+			sidecarSuffixes.add(suffix);
+		}
+	}
+
+	public List<String> getSidecarSuffixes() {
+		return sidecarSuffixes;
+	}
+
+	/**
+	 * Returns the counters and latency histograms for every rollover, compression and
+	 * upload made with these settings.
+	 * 
+	 * @return	Shared metrics
+	 */
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Releases the shared client's pooled connections and the part upload threads.  
+	 * A later call to {@link #getS3Client()} or {@link #getPartExecutor()} creates 
+	 * new instances.
+	 */
+	public synchronized void shutdown() {
+		if (null != s3Client)
+		{
+			s3Client.shutdown();
+			s3Client = null;
+		}
+		if (null != partExecutor)
+		{
+			partExecutor.shutdown();
+			partExecutor = null;
+		}
+	}
+
 	public ArrayList<String> getPostSettingsErrors() {
 		ArrayList<String>	errors = new ArrayList<String>();
 		
@@ -53,6 +381,13 @@ public class S3Settings {
 		getSettingError("bucketName", bucketName, errors);
 		getBucketNameErrors(errors);
 		getRetryValueErrors(errors);
+		getUploadExecutorErrors(errors);
+		getClientConfigurationErrors(errors);
+		getMultipartErrors(errors);
+		getThrottleErrors(errors);
+		getKeyTemplateErrors(errors);
+		getCoalesceErrors(errors);
+		getDestinationErrors(errors);
 		return errors;
 	}
 
@@ -69,7 +404,144 @@ public class S3Settings {
 		{
 			errors.add("Retry count must be between [1, Integer.MAX_VALUE]");
 		}
+		if (retryBaseDelay < 0)
+		{
+			errors.add("Retry base delay must be between [0, Integer.MAX_VALUE]");
+		}
+		if (retryMaxDelay < retryBaseDelay)
+		{
+			errors.add("Retry max delay must be between [retryBaseDelay, Integer.MAX_VALUE]");
+		}
+		if (retryBudget < 0)
+		{
+			errors.add("Retry budget must be between [0, Integer.MAX_VALUE]");
+		}
+	}
+
+	private void getThrottleErrors(ArrayList<String> errors)
+	{
+		if (maxUploadBandwidth < 0)
+		{
+			errors.add("Max upload bandwidth must be between [0, Long.MAX_VALUE]");
+		}
+	}
+
+	private void getUploadExecutorErrors(ArrayList<String> errors)
+	{
+		if (uploadThreadCount <= 0)
+		{
+			errors.add("Upload thread count must be between [1, Integer.MAX_VALUE]");
+		}
+		if (shutdownTimeout <= 0)
+		{
+			errors.add("Shutdown timeout must be between [1, Integer.MAX_VALUE]");
+		}
+		if (uploadQueueSize <= 0)
+		{
+			errors.add("Upload queue size must be between [1, Integer.MAX_VALUE]");
+		}
+		if (null == uploadSaturationPolicy)
+		{
+			errors.add("uploadSaturationPolicy property cannot be null");
+		}
+	}
+
+	private void getClientConfigurationErrors(ArrayList<String> errors)
+	{
+		if (maxConnections <= 0)
+		{
+			errors.add("Max connections must be between [1, Integer.MAX_VALUE]");
+		}
+		if (socketTimeout < 0)
+		{
+			errors.add("Socket timeout must be between [0, Integer.MAX_VALUE]");
+		}
+		if (connectionTimeout < 0)
+		{
+			errors.add("Connection timeout must be between [0, Integer.MAX_VALUE]");
+		}
+	}
+
+	private void getMultipartErrors(ArrayList<String> errors)
+	{
+		if (multipartPartSize < MIN_MULTIPART_PART_SIZE)
+		{
+			errors.add("Multipart part size must be at least 5MB");
+		}
+		if (multipartThreshold <= 0)
+		{
+			errors.add("Multipart threshold must be between [1, Long.MAX_VALUE]");
+		}
+		if (multipartThreadCount <= 0)
+		{
+			errors.add("Multipart thread count must be between [1, Integer.MAX_VALUE]");
+		}
+		if (multipartPartSize > Integer.MAX_VALUE)
+		{
+			errors.add("Multipart part size must be less than 2GB");
+		}
+		if (directBufferCount <= 0)
+		{
+			errors.add("Direct buffer count must be between [1, Integer.MAX_VALUE]");
+		}
+	}
+
+	private void getCoalesceErrors(ArrayList<String> errors)
+	{
+		if (coalesceSize < 0)
+		{
+			errors.add("Coalesce size must be between [0, Long.MAX_VALUE]");
+		}
+		if (coalesceAge <= 0)
+		{
+			errors.add("Coalesce age must be between [1, Integer.MAX_VALUE]");
+		}
+	}
+
+	private void getDestinationErrors(ArrayList<String> errors)
+	{
+		final Set<String> names = new HashSet<String>();
+		for (final S3Destination eachDestination : destinations)
+		{
+			if (null != eachDestination.getName() && !names.add(eachDestination.getName()))
+			{
+				errors.add(String.format("Destination name %s is used more than once", eachDestination.getName()));
+			}
+			errors.addAll(eachDestination.getPostSettingsErrors());
+		}
 	}
+
+	private void getKeyTemplateErrors(ArrayList<String> errors)
+	{
+		if (null != keyTemplate)
+		{
+			if (keyTemplate.trim().isEmpty())
+			{
+				errors.add("Key template cannot be empty");
+			}
+			if (keyTemplate.startsWith("/"))
+			{
+				errors.add("Key template should not start with a slash");
+			}
+		}
+		if (null != manifestKeyTemplate)
+		{
+			if (manifestKeyTemplate.trim().isEmpty())
+			{
+				errors.add("Manifest key template cannot be empty");
+			}
+			if (manifestKeyTemplate.startsWith("/"))
+			{
+				errors.add("Manifest key template should not start with a slash");
+			}
+			if (manifestKeyTemplate.contains("%uuid") || manifestKeyTemplate.contains("%i")
+					|| manifestKeyTemplate.contains("%file"))
+			{
+				errors.add("Manifest key template can only use %d, %app and %host");
+			}
+		}
+	}
+
 	private void getBucketNameErrors(ArrayList<String> errors)
 	{
 		/**
@@ -15,10 +15,17 @@
  */
 package com.logpig.mweagle.rolling;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.Deflater;
 
 import ch.qos.logback.core.rolling.RolloverFailure;
 import ch.qos.logback.core.rolling.TimeBasedFileNamingAndTriggeringPolicy;
@@ -26,9 +33,17 @@ import ch.qos.logback.core.rolling.helper.ArchiveRemover;
 import ch.qos.logback.core.rolling.helper.CompressionMode;
 import ch.qos.logback.core.rolling.helper.FileFilterUtil;
 import ch.qos.logback.core.rolling.helper.RenameUtil;
+import ch.qos.logback.core.util.FileSize;
 
-import com.logpig.mweagle.aws.S3FilePutRunnable;
+import com.logpig.mweagle.rolling.columnar.ColumnarWriter;
+import com.logpig.mweagle.rolling.codec.CompressionCodec;
+import com.logpig.mweagle.rolling.codec.CompressionCodecs;
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+import com.logpig.mweagle.rolling.helper.ParallelGzipOutputStream;
 import com.logpig.mweagle.rolling.helper.S3Compressor;
+import com.logpig.mweagle.rolling.helper.TokenBloomFilter;
+import com.logpig.mweagle.rolling.stats.EventStats;
 
 /**
  * TimeBasedRollingPolicy subclass that supports forwarding rolled over files
@@ -37,6 +52,45 @@ import com.logpig.mweagle.rolling.helper.S3Compressor;
  * 
  * This class duplicates a bit of parent class functionality to gain access to 
  * values which otherwise are package private.
+ * 
+ * Supports the following optional logback.xml properties in addition to those of
+ * TimeBasedRollingPolicy:
+ * <ul>
+ * <li><b>compressionThreadCount</b>: Number of threads used to gzip a rolled file (int).  Values
+ * greater than one compress blocks of the file in parallel and still produce a single standard
+ * gzip stream.  Only applies to .gz file name patterns.  Defaults to 
+ * {@link S3Compressor#DEFAULT_THREAD_COUNT}</li>
+ * <li><b>compressionBlockSize</b>: Size of each block compressed in parallel (String, using the
+ * same syntax as <i>maxFileSize</i>).  Must be at least 32KB.  Defaults to 
+ * {@link S3Compressor#DEFAULT_BLOCK_SIZE}</li>
+ * <li><b>compressionLevel</b>: Compression level (int).  0-9 for .gz and .zip, 0-17 for .lz4 and 1-22
+ * for .zst.  Defaults to -1, which is each codec's own default.</li>
+ * <li><b>splittableGzip</b>: If true, .gz files are written as a series of independent gzip
+ * members of at most <i>compressionBlockSize</i> each, split on line boundaries, so that one file
+ * can be split across several readers (boolean).  A member index is posted next to each object
+ * with an <i>.idx</i> suffix.  See {@link BlockGzipOutputStream}.  Defaults to false.</li>
+ * <li><b>columnarEncoding</b>: If true, the timestamp, level, logger and message of each event are also 
+ * written in a columnar, dictionary encoded form that is posted next to each object with a <i>.cols</i> 
+ * suffix, so that analytics jobs can read just the columns they need without parsing text (boolean).  
+ * See {@link ColumnarWriter}.  Doesn't apply when the appender's <i>coalesceSize</i> is set.  Defaults 
+ * to false.</li>
+ * <li><b>bloomFilter</b>: If true, a Bloom filter of the tokens in each file's messages is posted next 
+ * to its object with a <i>.bloom</i> suffix, so that a search for an ID only fetches the objects that may 
+ * contain it (boolean).  See {@link TokenBloomFilter} and {@link com.logpig.mweagle.aws.S3TokenSearch}.  
+ * Defaults to false.</li>
+ * <li><b>bloomTokenPattern</b>: Regular expression that finds the tokens in a message (String).  If it has 
+ * a capturing group, the group is the token, e.g. <i>requestId=(\S+)</i>.  Defaults to 
+ * {@link TokenBloomFilter#DEFAULT_TOKEN_PATTERN}, which adds every word.</li>
+ * <li><b>bloomFalsePositiveRate</b>: Target rate at which an object that doesn't contain a token is 
+ * reported as a possible match (double).  Defaults to {@link TokenBloomFilter#DEFAULT_FALSE_POSITIVE_RATE}</li>
+ * <li><b>bloomFilterSize</b>: Largest filter size, which is also the memory it takes while a file is 
+ * written (String, using the same syntax as <i>maxFileSize</i>).  The posted filter is folded down to fit 
+ * the file's tokens.  Defaults to {@link TokenBloomFilter#DEFAULT_MAX_SIZE}</li>
+ * </ul>
+ * 
+ * In addition to logback's .gz and .zip, a fileNamePattern ending in .lz4, .sz (Snappy) or .zst 
+ * (Zstandard) compresses rolled files with that {@link CompressionCodec}, provided the codec's library 
+ * is on the classpath.
  *
  * @author Matt Weagle (mweagle@gmail.com)
  */
@@ -44,17 +98,62 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 {
 	static final int NO_DELETE_HISTORY = 0;
 
+	/**
+	 * Directory within the spool directory that holds the local copies of the period manifests
+	 */
+	static final String MANIFEST_DIRECTORY_NAME = "manifests";
+
 	private S3Compressor compressor;
 
 	private RenameUtil renameUtil = new RenameUtil();
 
 	private S3Settings s3Settings;
 
+	private S3UploadExecutor uploadExecutor;
+
+	private UploadSpool spool;
+
+	private UploadCoalescer coalescer;
+
+	private PeriodManifest manifest;
+
+	private S3RollingFileAppender<?> appender;
+
+	private Thread shutdownHook;
+
+	private Thread spoolDrainThread;
+
 	@SuppressWarnings("unused")
 	private Future<?> future;
 
 	private ArchiveRemover archiveRemover;
 
+	private int compressionThreadCount = S3Compressor.DEFAULT_THREAD_COUNT;
+
+	private int compressionBlockSize = S3Compressor.DEFAULT_BLOCK_SIZE;
+
+	private int compressionLevel = CompressionCodec.DEFAULT_LEVEL;
+
+	private boolean splittableGzip;
+
+	private boolean columnarEncoding;
+
+	private ColumnarWriter columnarWriter;
+
+	private boolean bloomFilter;
+
+	private String bloomTokenPattern = TokenBloomFilter.DEFAULT_TOKEN_PATTERN;
+
+	private double bloomFalsePositiveRate = TokenBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+
+	private long bloomFilterSize = TokenBloomFilter.DEFAULT_MAX_SIZE;
+
+	private TokenBloomFilter tokenBloomFilter;
+
+	private CompressionCodec codec;
+
+	private String codecFileNamePattern;
+
 	public void start()
 	{
 		/**
@@ -62,10 +161,56 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		 * setting is initialized as part of the superclass start, and we need that to initialize our own
 		 * S3Compressor
 		 */
+		codec = (null != fileNamePatternStr) ? CompressionCodecs.forFileName(fileNamePatternStr, this) : null;
+		if (null != codec && !CompressionCodecs.isAvailable(codec, this))
+		{
+			// Otherwise the files would be rolled uncompressed under the codec's suffix
+			return;
+		}
 		super.start();
+		if (null != codec)
+		{
+			// Archived files keep the codec suffix
+			fileNamePatternStr = codecFileNamePattern;
+		}
 		// Setup the compressor
 		compressor = new S3Compressor(super.getCompressionMode());
 		compressor.setContext(context);
+		compressor.setCodec(codec);
+		final int maxLevel = (null != codec) ? codec.getMaxLevel() : Deflater.BEST_COMPRESSION;
+		if (compressionLevel < CompressionCodec.DEFAULT_LEVEL || compressionLevel > maxLevel)
+		{
+			addWarn(String.format("compressionLevel must be between -1 and %d.  Using the default.", maxLevel));
+			compressionLevel = CompressionCodec.DEFAULT_LEVEL;
+		}
+		compressor.setLevel(compressionLevel);
+		if (splittableGzip && CompressionMode.GZ != compressionMode)
+		{
+			addWarn("splittableGzip only applies to .gz file name patterns");
+			splittableGzip = false;
+		}
+		compressor.setSplittable(splittableGzip);
+		if (compressionThreadCount < 1)
+		{
+			addWarn("compressionThreadCount must be at least 1.  Using " + S3Compressor.DEFAULT_THREAD_COUNT);
+			compressionThreadCount = S3Compressor.DEFAULT_THREAD_COUNT;
+		}
+		if (compressionBlockSize < ParallelGzipOutputStream.DICTIONARY_SIZE)
+		{
+			addWarn("compressionBlockSize must be at least 32KB.  Using " + S3Compressor.DEFAULT_BLOCK_SIZE);
+			compressionBlockSize = S3Compressor.DEFAULT_BLOCK_SIZE;
+		}
+		compressor.setThreadCount(compressionThreadCount);
+		compressor.setBlockSize(compressionBlockSize);
+
+		if (columnarEncoding)
+		{
+			columnarWriter = new ColumnarWriter(getActiveFileName());
+		}
+		if (bloomFilter)
+		{
+			startBloomFilter();
+		}
 
 		// The rename util
 		renameUtil.setContext(super.getContext());
@@ -80,18 +225,107 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		}
 	}
 
+	private void startBloomFilter()
+	{
+		if (bloomFalsePositiveRate <= 0 || bloomFalsePositiveRate >= 1)
+		{
+			addWarn("bloomFalsePositiveRate must be between 0 and 1.  Using "
+					+ TokenBloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+			bloomFalsePositiveRate = TokenBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+		}
+		if (bloomFilterSize < 64 || bloomFilterSize > 256 * 1024 * 1024)
+		{
+			addWarn("bloomFilterSize must be between 64 bytes and 256MB.  Using " + TokenBloomFilter.DEFAULT_MAX_SIZE);
+			bloomFilterSize = TokenBloomFilter.DEFAULT_MAX_SIZE;
+		}
+		try
+		{
+			tokenBloomFilter = new TokenBloomFilter(Pattern.compile(bloomTokenPattern), bloomFalsePositiveRate,
+					(int) bloomFilterSize);
+		}
+		catch (PatternSyntaxException ex)
+		{
+			addError("bloomTokenPattern is not valid.  No Bloom filters will be posted.", ex);
+		}
+	}
+
+	/**
+	 * Adds the {@link CompressionCodec} suffixes to logback's .gz and .zip detection. For a codec, the
+	 * suffix is removed while the parent class derives the active file pattern from it, and the mode stays NONE so
+	 * that the parent's own compressor is never used.
+	 */
+	@Override
+	protected void determineCompressionMode()
+	{
+		if (null == codec)
+		{
+			super.determineCompressionMode();
+			return;
+		}
+		addInfo("Will use " + codec.getName() + " compression");
+		codecFileNamePattern = fileNamePatternStr;
+		fileNamePatternStr = fileNamePatternStr.substring(0,
+				fileNamePatternStr.length() - codec.getFileSuffix().length());
+		compressionMode = CompressionMode.NONE;
+	}
+
+	@Override
+	public void stop()
+	{
+		if (null != coalescer)
+		{
+			coalescer.stop();
+		}
+		if (null != columnarWriter)
+		{
+			columnarWriter.close();
+		}
+		if (null != shutdownHook)
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException ex)
+			{
+				// Stopped by another shutdown hook. The drain runs anyway.
+			}
+			shutdownHook = null;
+		}
+		super.stop();
+	}
+
+	/**
+	 * Release the compression threads.  The appender calls this once its upload executor has run every queued
+	 * rollover, since a rollover that is still compressing holds on to the pool.
+	 */
+	void shutdownCompressor()
+	{
+		if (null != compressor)
+		{
+			compressor.shutdown();
+		}
+	}
+
 	public void rollover() throws RolloverFailure
 	{
 		String elapsedPeriodsFileName = super.getTimeBasedFileNamingAndTriggeringPolicy().getElapsedPeriodsFileName();
 
 		String elapsedPeriodStem = FileFilterUtil.afterLastSlash(elapsedPeriodsFileName);
 
-		if (compressionMode == CompressionMode.NONE)
+		if (null != manifest)
+		{
+			// Before the elapsed file is queued, so that its upload posts the manifest if the period has ended
+			manifest.startPeriod(super.getTimeBasedFileNamingAndTriggeringPolicy()
+					.getCurrentPeriodsFileNameWithoutCompressionSuffix());
+		}
+		if (!compressor.isCompressing())
 		{
 			if (getParentsRawFileProperty() != null)
 			{
 				renameUtil.rename(getParentsRawFileProperty(), elapsedPeriodsFileName);
-				future = this.futureUncompressedPost(elapsedPeriodsFileName);
+				this.writeRolloverSidecars(elapsedPeriodsFileName);
+				future = this.futureUncompressedPost(elapsedPeriodsFileName, null);
 			} // else { nothing to do if CompressionMode == NONE and parentsRawFileProperty == null }
 		}
 		else
@@ -111,6 +345,10 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		}
 	}
 
+	/**
+	 * Close out the active file and post it to S3 on the calling thread. The file is added to the spool first, so if
+	 * the JVM exits before the post completes it is posted on the next start.
+	 */
 	public void rolloverOnJVMShutdown() throws RolloverFailure
 	{
 		// when rollover is called the elapsed period's file has
@@ -122,54 +360,233 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		final String elapsedPeriodStem = FileFilterUtil.afterLastSlash(periodFileName);
 		final String activeFile = this.getActiveFileName();
 
-		String extension = "";
-		if (CompressionMode.GZ == super.getCompressionMode())
+		if (!compressor.isCompressing())
 		{
-			extension = ".gz";
+			if (null != parentsRawFilename)
+			{
+				renameUtil.rename(parentsRawFilename, periodFileName);
+				this.writeRolloverSidecars(periodFileName);
+				final UploadSpool.Entry spoolEntry = this.addToSpool(periodFileName, periodFileName, null);
+				new PostUncompressedRunnable(periodFileName, this.s3Settings, spoolEntry).run();
+			}
 		}
-		else if (CompressionMode.ZIP == super.getCompressionMode())
+		else
 		{
-			extension = ".zip";
+			String nameOfFile2Compress = activeFile;
+			if (null != parentsRawFilename)
+			{
+				// Compress a renamed copy, so that a spooled retry never touches the next run's active file
+				nameOfFile2Compress = parentsRawFilename + System.nanoTime() + ".tmp";
+				renameUtil.rename(parentsRawFilename, nameOfFile2Compress);
+			}
+			final CompressionContext context = new CompressionContext(this.compressor, nameOfFile2Compress,
+					periodFileName, elapsedPeriodStem, this.s3Settings.getMetrics());
+			this.writeRolloverSidecars(context.getCompressedName());
+			final UploadSpool.Entry spoolEntry = this.addToSpool(nameOfFile2Compress, context.getCompressedName(),
+					elapsedPeriodStem);
+			this.createCompressAndPostRunnable(context, spoolEntry).run();
 		}
-		final String rolloverFilename = String.format("%s%s", periodFileName, extension);
+	}
 
-		String rolloverName = null;
-		if (CompressionMode.NONE == super.getCompressionMode())
+	/**
+	 * Post the active file and every queued rollover, all in parallel, and give up once
+	 * {@link S3Settings#shutdownTimeout} elapses. Uploads that miss the deadline are interrupted and left in the spool,
+	 * so they're posted on the next start.
+	 */
+	void drainOnJVMShutdown()
+	{
+		final long deadline = System.currentTimeMillis() + this.s3Settings.shutdownTimeout;
+		final S3FanOut fanOut = this.s3Settings.getFanOut();
+		final Thread finalRollover = new DaemonThreadFactory("logpig-s3-shutdown-").newThread(new Runnable()
 		{
-			if (null != parentsRawFilename)
+			@Override
+			public void run()
 			{
-				final RenameUtil renameUtil = new RenameUtil();
-				renameUtil.setContext(super.getContext());
-				renameUtil.rename(parentsRawFilename, rolloverFilename);
-				rolloverName = rolloverFilename;
+				try
+				{
+					if (null != appender)
+					{
+						// Write out the events that are still queued or buffered before the active file is closed out
+						appender.flushForShutdown(Math.max(0, deadline - System.currentTimeMillis()));
+					}
+					rolloverOnJVMShutdown();
+				}
+				catch (RolloverFailure ex)
+				{
+					ex.printStackTrace();
+				}
+			}
+		});
+		finalRollover.start();
+		boolean drained = false;
+		try
+		{
+			boolean uploadsDrained = true;
+			if (null != this.coalescer)
+			{
+				// Queue the partial batch, and post files that are still being compressed on their own
+				this.coalescer.stop();
+			}
+			if (null != this.uploadExecutor)
+			{
+				// The workers keep draining the queue in parallel with the final rollover
+				this.uploadExecutor.shutdown();
+				uploadsDrained = this.uploadExecutor.awaitTermination(
+						Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			finalRollover.join(Math.max(1, deadline - System.currentTimeMillis()));
+			drained = uploadsDrained && !finalRollover.isAlive();
+			if (null != fanOut)
+			{
+				// Nothing else is queued for the destinations once the appender's own uploads are done
+				fanOut.shutdown();
+				drained &= fanOut.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
 			}
 		}
-		else
+		catch (InterruptedException ex)
 		{
-			if (null != parentsRawFilename)
+			Thread.currentThread().interrupt();
+		}
+		if (null != this.manifest)
+		{
+			// Lists whatever made it, and the rest is added as the spool posts it
+			this.manifest.flush();
+		}
+		if (!drained)
+		{
+			if (null != this.uploadExecutor)
 			{
-				compressor.compress(activeFile, rolloverFilename, elapsedPeriodStem);
-				rolloverName = rolloverFilename;
+				this.uploadExecutor.shutdownNow();
 			}
-			else
+			if (null != fanOut)
+			{
+				fanOut.shutdownNow();
+			}
+			finalRollover.interrupt();
+			final int pendingCount = (null != this.spool) ? this.spool.getPendingCount() : 0;
+			addWarn(String.format("Shutdown timeout of %dms elapsed with %d files not posted.  They will be posted "
+					+ "from the spool on the next start.", this.s3Settings.shutdownTimeout, pendingCount));
+		}
+	}
+
+	/**
+	 * Open the upload spool and post, in the background, every rolled file that a previous run didn't ship. That
+	 * includes the pending journal entries and any <i>.tmp</i> files left behind by
+	 * {@link #renamedRawAndAsyncFutureCompressAndPost(String, String)}. Files are posted one at a time so that a
+	 * restart with a large backlog doesn't flood S3 or the upload executor.
+	 * <p>
+	 * Posting starts with the first logging event, since the loggers used by the upload classes don't work until
+	 * logback has finished configuring.
+	 */
+	public void startSpool()
+	{
+		final File activeFile = new File(this.getActiveFileName()).getAbsoluteFile();
+		final File spoolDirectory = (null != this.s3Settings.spoolDirectory) ? new File(this.s3Settings.spoolDirectory)
+				: new File(activeFile.getParentFile(), S3Settings.DEFAULT_SPOOL_DIRECTORY_NAME);
+		this.spool = new UploadSpool(spoolDirectory);
+		if (null != this.s3Settings.getFanOut())
+		{
+			this.spool.setDestinationNames(this.s3Settings.getFanOut().getNames());
+		}
+		final List<UploadSpool.Entry> pending = this.spool.open();
+		this.addOrphanedTmpFiles(pending);
+		final TimeBasedFileNamingAndTriggeringPolicy<E> triggerPolicy = super
+				.getTimeBasedFileNamingAndTriggeringPolicy();
+		if (triggerPolicy instanceof AdaptiveSizeAndTimeBasedFNATP)
+		{
+			((AdaptiveSizeAndTimeBasedFNATP<E>) triggerPolicy).setPipeline(this.s3Settings, this.spool);
+		}
+		if (this.s3Settings.periodManifest)
+		{
+			this.startManifest(new File(spoolDirectory, MANIFEST_DIRECTORY_NAME));
+		}
+		if (!pending.isEmpty())
+		{
+			addInfo(String.format("Posting %d rolled files left over from a previous run", pending.size()));
+			this.spoolDrainThread = new DaemonThreadFactory("logpig-s3-spool-").newThread(new SpoolDrainRunnable(
+					pending));
+		}
+	}
+
+	private void startManifest(File directory)
+	{
+		String manifestKeyTemplate = this.s3Settings.manifestKeyTemplate;
+		if (null == manifestKeyTemplate)
+		{
+			manifestKeyTemplate = "%app/manifests/%host/%d{"
+					+ fileNamePattern.getDateTokenConverter().getDatePattern() + "}" + PeriodManifest.SUFFIX;
+		}
+		final String appName = (null != this.s3Settings.appName) ? this.s3Settings.appName : getContext().getName();
+		final String fileSuffix = this.compressor.getFileSuffix();
+		this.manifest = new PeriodManifest(this.s3Settings, new S3KeyTemplate(manifestKeyTemplate, appName,
+				fileNamePattern), directory, fileSuffix.isEmpty() ? "none" : fileSuffix.substring(1),
+				this.uploadExecutor);
+		this.manifest.startPeriod(super.getTimeBasedFileNamingAndTriggeringPolicy()
+				.getCurrentPeriodsFileNameWithoutCompressionSuffix());
+		this.s3Settings.setManifest(this.manifest);
+	}
+
+	@Override
+	public boolean isTriggeringEvent(File activeFile, E event)
+	{
+		if (null != this.spoolDrainThread)
+		{
+			final Thread drainThread = this.spoolDrainThread;
+			this.spoolDrainThread = null;
+			drainThread.start();
+		}
+		return super.isTriggeringEvent(activeFile, event);
+	}
+
+	/**
+	 * A .tmp file that isn't in the journal was renamed just before a crash and never compressed
+	 */
+	private void addOrphanedTmpFiles(List<UploadSpool.Entry> pending)
+	{
+		final String parentsRawFile = getParentsRawFileProperty();
+		if (null == parentsRawFile || !compressor.isCompressing())
+		{
+			return;
+		}
+		final Set<String> journaled = new HashSet<String>();
+		for (final UploadSpool.Entry eachEntry : pending)
+		{
+			journaled.add(new File(eachEntry.getSourceName()).getAbsolutePath());
+		}
+		final File rawFile = new File(parentsRawFile).getAbsoluteFile();
+		final Pattern tmpPattern = Pattern.compile(Pattern.quote(rawFile.getName()) + "\\d+\\.tmp");
+		final File[] candidates = rawFile.getParentFile().listFiles();
+		if (null == candidates)
+		{
+			return;
+		}
+		for (final File eachFile : candidates)
+		{
+			if (tmpPattern.matcher(eachFile.getName()).matches() && !journaled.contains(eachFile.getAbsolutePath()))
 			{
-				compressor.compress(activeFile, activeFile, elapsedPeriodStem);
-				rolloverName = activeFile;
+				final String sourceName = eachFile.getPath();
+				final String targetName = sourceName.substring(0, sourceName.length() - ".tmp".length())
+						+ compressor.getFileSuffix();
+				pending.add(this.spool.add(sourceName, targetName,
+						FileFilterUtil.afterLastSlash(FileFilterUtil.slashify(targetName))));
 			}
 		}
-		// Post it...
-		final S3FilePutRunnable s3Poster = new S3FilePutRunnable(rolloverName, this.getS3Settings());
-		s3Poster.run();
 	}
 
 	@SuppressWarnings("rawtypes")
-	Future futureUncompressedPost(String fileName)
+	Future futureUncompressedPost(String fileName, UploadSpool.Entry spoolEntry)
 	{
-		ExecutorService executor = Executors.newScheduledThreadPool(1);
-		final PostUncompressedRunnable postRunnable = new PostUncompressedRunnable(fileName, this.s3Settings);
-		Future<?> future = executor.submit(postRunnable);
-		executor.shutdown();
-		return future;
+		if (null == spoolEntry)
+		{
+			spoolEntry = this.addToSpool(fileName, fileName, null);
+		}
+		if (null != this.coalescer)
+		{
+			return this.submitUpload(new CoalesceRunnable(null, fileName, this.coalescer, spoolEntry), fileName);
+		}
+		final PostUncompressedRunnable postRunnable = new PostUncompressedRunnable(fileName, this.s3Settings,
+				spoolEntry);
+		return this.submitUpload(postRunnable, fileName);
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -177,13 +594,90 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 			throws RolloverFailure
 	{
 		final CompressionContext context = new CompressionContext(this.compressor, nameOfFile2Compress,
-				nameOfCompressedFile, innerEntryName);
-		final CompressAndPostRunnable compressAndPost = new CompressAndPostRunnable(context, this.s3Settings);
+				nameOfCompressedFile, innerEntryName, this.s3Settings.getMetrics());
+		this.writeRolloverSidecars(context.getCompressedName());
+		final UploadSpool.Entry spoolEntry = this.addToSpool(nameOfFile2Compress, context.getCompressedName(),
+				innerEntryName);
+		if (null != this.coalescer)
+		{
+			return this.submitUpload(new CoalesceRunnable(context, context.getCompressedName(), this.coalescer,
+					spoolEntry), nameOfFile2Compress);
+		}
+		return this.submitUpload(this.createCompressAndPostRunnable(context, spoolEntry), nameOfFile2Compress);
+	}
 
-		ExecutorService executor = Executors.newScheduledThreadPool(1);
-		Future<?> future = executor.submit(compressAndPost);
-		executor.shutdown();
-		return future;
+	private Runnable createCompressAndPostRunnable(CompressionContext context, UploadSpool.Entry spoolEntry)
+	{
+		if (null != this.s3Settings && this.s3Settings.streamingUpload && null == this.s3Settings.getFanOut())
+		{
+			// Only keep a local compressed copy if the archive remover needs one
+			final boolean keepLocalCopy = super.getMaxHistory() != NO_DELETE_HISTORY;
+			return new StreamCompressAndPostRunnable(context, this.s3Settings, keepLocalCopy, spoolEntry);
+		}
+		return new CompressAndPostRunnable(context, this.s3Settings, spoolEntry);
+	}
+
+	/**
+	 * Write the summary, columnar copy and Bloom filter of the file that was just closed out next to the name it is
+	 * posted under, before it is added to the spool, so that a spooled file is posted with them. Its event counts are
+	 * kept for the period manifest.
+	 */
+	private void writeRolloverSidecars(String fileName)
+	{
+		final EventStats eventStats = (null != this.appender) ? this.appender.takeEventStats() : null;
+		if (null != this.manifest)
+		{
+			this.manifest.addRolledFile(fileName, eventStats);
+		}
+		if (null != eventStats && null != this.s3Settings
+				&& this.s3Settings.getSidecarSuffixes().contains(EventStats.SUFFIX))
+		{
+			try
+			{
+				eventStats.write(new File(fileName + EventStats.SUFFIX));
+			}
+			catch (IOException ex)
+			{
+				addError(String.format("Failed to write the event summary of %s", fileName), ex);
+			}
+		}
+		if (null != this.columnarWriter)
+		{
+			try
+			{
+				this.columnarWriter.finish(new File(fileName + ColumnarWriter.SUFFIX));
+			}
+			catch (IOException ex)
+			{
+				addError(String.format("Failed to write the columnar copy of %s", fileName), ex);
+			}
+		}
+		if (null != this.tokenBloomFilter)
+		{
+			try
+			{
+				this.tokenBloomFilter.finish(new File(fileName + TokenBloomFilter.SUFFIX));
+			}
+			catch (IOException ex)
+			{
+				addError(String.format("Failed to write the Bloom filter of %s", fileName), ex);
+			}
+		}
+	}
+
+	private UploadSpool.Entry addToSpool(String sourceName, String targetName, String innerEntryName)
+	{
+		return (null != this.spool) ? this.spool.add(sourceName, targetName, innerEntryName) : null;
+	}
+
+	private Future<?> submitUpload(Runnable task, String fileName)
+	{
+		if (null == this.uploadExecutor)
+		{
+			addWarn(String.format("No S3 upload executor available.  %s will not be posted to S3", fileName));
+			return null;
+		}
+		return this.uploadExecutor.submit(task);
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -196,6 +690,132 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		return futureAsyncCompressAndPost(tmpTarget, nameOfCompressedFile, innerEntryName);
 	}
 
+	public int getCompressionThreadCount()
+	{
+		return compressionThreadCount;
+	}
+
+	public void setCompressionThreadCount(int compressionThreadCount)
+	{
+		this.compressionThreadCount = compressionThreadCount;
+	}
+
+	public String getCompressionBlockSize()
+	{
+		return String.valueOf(compressionBlockSize);
+	}
+
+	public void setCompressionBlockSize(String compressionBlockSize)
+	{
+		this.compressionBlockSize = (int) FileSize.valueOf(compressionBlockSize).getSize();
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
+	public boolean isSplittableGzip()
+	{
+		return splittableGzip;
+	}
+
+	public void setSplittableGzip(boolean splittableGzip)
+	{
+		this.splittableGzip = splittableGzip;
+	}
+
+	public boolean isColumnarEncoding()
+	{
+		return columnarEncoding;
+	}
+
+	public void setColumnarEncoding(boolean columnarEncoding)
+	{
+		this.columnarEncoding = columnarEncoding;
+	}
+
+	/**
+	 * @return Writer that the appender adds each event to, or null if <i>columnarEncoding</i> is off
+	 */
+	ColumnarWriter getColumnarWriter()
+	{
+		return columnarWriter;
+	}
+
+	public boolean isBloomFilter()
+	{
+		return bloomFilter;
+	}
+
+	public void setBloomFilter(boolean bloomFilter)
+	{
+		this.bloomFilter = bloomFilter;
+	}
+
+	public String getBloomTokenPattern()
+	{
+		return bloomTokenPattern;
+	}
+
+	public void setBloomTokenPattern(String bloomTokenPattern)
+	{
+		this.bloomTokenPattern = bloomTokenPattern;
+	}
+
+	public double getBloomFalsePositiveRate()
+	{
+		return bloomFalsePositiveRate;
+	}
+
+	public void setBloomFalsePositiveRate(double bloomFalsePositiveRate)
+	{
+		this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+	}
+
+	public String getBloomFilterSize()
+	{
+		return String.valueOf(bloomFilterSize);
+	}
+
+	public void setBloomFilterSize(String bloomFilterSize)
+	{
+		this.bloomFilterSize = FileSize.valueOf(bloomFilterSize).getSize();
+	}
+
+	/**
+	 * @return Filter that the appender adds each message's tokens to, or null if <i>bloomFilter</i> is off
+	 */
+	TokenBloomFilter getTokenBloomFilter()
+	{
+		return tokenBloomFilter;
+	}
+
+	void setAppender(S3RollingFileAppender<?> appender)
+	{
+		this.appender = appender;
+	}
+
+	public UploadSpool getSpool()
+	{
+		return spool;
+	}
+
+	public S3UploadExecutor getUploadExecutor()
+	{
+		return uploadExecutor;
+	}
+
+	public void setUploadExecutor(S3UploadExecutor uploadExecutor)
+	{
+		this.uploadExecutor = uploadExecutor;
+	}
+
 	public S3Settings getS3Settings()
 	{
 		return s3Settings;
@@ -204,7 +824,87 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 	public void setS3Settings(S3Settings s3Settings)
 	{
 		this.s3Settings = s3Settings;
-		Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHookRunnable(this)));
+		if (splittableGzip)
+		{
+			s3Settings.addSidecarSuffix(BlockGzipOutputStream.INDEX_SUFFIX);
+		}
+		if (!s3Settings.getDestinations().isEmpty())
+		{
+			if (s3Settings.streamingUpload)
+			{
+				addWarn("streamingUpload doesn't apply when destinations are set");
+			}
+			if (s3Settings.coalesceSize > 0)
+			{
+				addWarn("coalesceSize doesn't apply when destinations are set");
+			}
+		}
+		else if (s3Settings.coalesceSize > 0)
+		{
+			if (CompressionMode.ZIP == compressionMode)
+			{
+				addWarn("coalesceSize doesn't apply to .zip file name patterns.  Files will be posted one at a time.");
+			}
+			else
+			{
+				if (s3Settings.streamingUpload)
+				{
+					addWarn("streamingUpload doesn't apply when coalesceSize is set");
+				}
+				if (null != columnarWriter)
+				{
+					addWarn("columnarEncoding doesn't apply when coalesceSize is set");
+					columnarWriter.close();
+					columnarWriter = null;
+				}
+				coalescer = new UploadCoalescer(s3Settings, uploadExecutor);
+				s3Settings.addSidecarSuffix(UploadCoalescer.MANIFEST_SUFFIX);
+			}
+		}
+		if (null != columnarWriter)
+		{
+			s3Settings.addSidecarSuffix(ColumnarWriter.SUFFIX);
+		}
+		if (null != tokenBloomFilter)
+		{
+			s3Settings.addSidecarSuffix(TokenBloomFilter.SUFFIX);
+		}
+		if (null != s3Settings.keyTemplate)
+		{
+			final String appName = (null != s3Settings.appName) ? s3Settings.appName : getContext().getName();
+			final S3KeyTemplate compiledKeyTemplate = new S3KeyTemplate(s3Settings.keyTemplate, appName,
+					fileNamePattern);
+			if (!compiledKeyTemplate.isUnique())
+			{
+				addWarn("keyTemplate has no %uuid.  Objects rolled again with the same period and index after a "
+						+ "restart will replace the ones posted before it.");
+			}
+			s3Settings.setCompiledKeyTemplate(compiledKeyTemplate);
+		}
+		for (final S3Destination eachDestination : s3Settings.getDestinations())
+		{
+			eachDestination.inherit(s3Settings);
+			if (null != eachDestination.keyTemplate)
+			{
+				final String appName = (null != eachDestination.appName) ? eachDestination.appName : getContext()
+						.getName();
+				final S3KeyTemplate compiledKeyTemplate = new S3KeyTemplate(eachDestination.keyTemplate, appName,
+						fileNamePattern);
+				if (!compiledKeyTemplate.isUnique())
+				{
+					addWarn(String.format("keyTemplate of destination %s has no %%uuid.  Objects rolled again with "
+							+ "the same period and index after a restart will replace the ones posted before it.",
+							eachDestination.getName()));
+				}
+				eachDestination.setCompiledKeyTemplate(compiledKeyTemplate);
+			}
+		}
+		if (!s3Settings.getDestinations().isEmpty())
+		{
+			s3Settings.setFanOut(new S3FanOut(s3Settings));
+		}
+		shutdownHook = new Thread(new ShutdownHookRunnable(this));
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
 
 	/**
@@ -216,29 +916,114 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 	{
 		private final String filePath;
 		private final S3Settings awsSettings;
+		private final UploadSpool.Entry spoolEntry;
 
 		/**
 		 * Ctor
 		 * @param filePath		Path to file that should be posted
 		 * @param settings		S3Settings instance 
+		 * @param spoolEntry	Spool entry to complete once the file is posted.  May be null.
 		 */
-		public PostUncompressedRunnable(String filePath, S3Settings settings)
+		public PostUncompressedRunnable(String filePath, S3Settings settings, UploadSpool.Entry spoolEntry)
 		{
 			this.filePath = filePath;
 			this.awsSettings = settings;
+			this.spoolEntry = spoolEntry;
 		}
 
 		@Override
 		public void run()
 		{
-			final S3FilePutRunnable postFile = new S3FilePutRunnable(this.filePath, this.awsSettings);
-			postFile.run();
+			S3FanOut.post(this.filePath, null, this.awsSettings, this.spoolEntry);
 		}
 	}
+
+	/**
+	 * Runnable that compresses a rolled file, if necessary, and adds it to the current batch
+	 */
+	private static class CoalesceRunnable implements Runnable
+	{
+		private final CompressionContext context;
+		private final String fileName;
+		private final UploadCoalescer coalescer;
+		private final UploadSpool.Entry spoolEntry;
+
+		/**
+		 * Ctor
+		 * @param context		CompressionContext that compresses the file.  Null if it is already in its final form.
+		 * @param fileName		Path to the file that should be added
+		 * @param coalescer		UploadCoalescer that collects the batch
+		 * @param spoolEntry	Spool entry to complete once the file is posted.  May be null.
+		 */
+		public CoalesceRunnable(CompressionContext context, String fileName, UploadCoalescer coalescer,
+				UploadSpool.Entry spoolEntry)
+		{
+			this.context = context;
+			this.fileName = fileName;
+			this.coalescer = coalescer;
+			this.spoolEntry = spoolEntry;
+		}
+
+		@Override
+		public void run()
+		{
+			if (null != this.context)
+			{
+				this.context.compress();
+			}
+			this.coalescer.add(this.fileName, this.spoolEntry);
+		}
+	}
+
+	/**
+	 * Runnable that posts the files a previous run left in the spool, one at a time
+	 */
+	private class SpoolDrainRunnable implements Runnable
+	{
+		private final List<UploadSpool.Entry> entries;
+
+		/**
+		 * Ctor
+		 * @param entries	Spool entries to post, oldest first
+		 */
+		public SpoolDrainRunnable(List<UploadSpool.Entry> entries)
+		{
+			this.entries = entries;
+		}
+
+		@Override
+		public void run()
+		{
+			for (final UploadSpool.Entry eachEntry : this.entries)
+			{
+				final File source = new File(eachEntry.getSourceName());
+				final File target = new File(eachEntry.getTargetName());
+				if (eachEntry.needsCompression() && source.exists())
+				{
+					// A target that exists alongside its source was only partly written
+					target.delete();
+					final CompressionContext context = new CompressionContext(compressor, eachEntry.getSourceName(),
+							eachEntry.getTargetName(), eachEntry.getInnerEntryName(), s3Settings.getMetrics());
+					new CompressAndPostRunnable(context, s3Settings, eachEntry).run();
+				}
+				else if (target.exists())
+				{
+					new PostUncompressedRunnable(eachEntry.getTargetName(), s3Settings, eachEntry).run();
+				}
+				else
+				{
+					addWarn(String.format("Spooled file %s no longer exists and will not be posted to S3", eachEntry));
+					eachEntry.discard();
+				}
+			}
+		}
+	}
+
 	/**
 	 * Runnable invoked as part of JVM shutdown that calls back into 
-	 * {@link S3TimeBasedRollingPolicy#rolloverOnJVMShutdown()} to close
-	 * the open file, compress it, and post it to S3.
+	 * {@link S3TimeBasedRollingPolicy#drainOnJVMShutdown()} to close
+	 * the open file, compress it, and post it to S3 along with any
+	 * queued rollovers.
 	 */
 	private static class ShutdownHookRunnable implements Runnable
 	{
@@ -257,14 +1042,7 @@ public class S3TimeBasedRollingPolicy<E> extends ch.qos.logback.core.rolling.Tim
 		@Override
 		public void run()
 		{
-			try
-			{
-				this.s3RollingPolicy.rolloverOnJVMShutdown();
-			}
-			catch (RolloverFailure e)
-			{
-				e.printStackTrace();
-			}
+			this.s3RollingPolicy.drainOnJVMShutdown();
 		}
 	}
 }
@@ -0,0 +1,239 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+
+/**
+ * Appender owned executor that runs the compress and post work for every rollover. The executor has a fixed number
+ * of named daemon worker threads and a bounded work queue. Once the queue is full, new work is handled according to
+ * the configured {@link SaturationPolicy}.
+ *
+ * @see S3RollingFileAppender
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class S3UploadExecutor
+{
+	/**
+	 * Behavior when the queue is full
+	 */
+	public enum SaturationPolicy
+	{
+		/**
+		 * The thread that triggered the rollover runs the work itself. Logging slows down until the backlog clears,
+		 * but no rolled file is skipped.
+		 */
+		CALLER_RUNS,
+		/**
+		 * The thread that triggered the rollover waits until there is room in the queue.
+		 */
+		BLOCK,
+		/**
+		 * The work is dropped and a warning is logged. The rolled file remains on local disk.
+		 */
+		DISCARD
+	}
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile Runnable terminationTask;
+
+	/**
+	 * Ctor
+	 *
+	 * @param name
+	 *            Name used as the worker thread name prefix
+	 * @param threadCount
+	 *            Number of worker threads
+	 * @param queueSize
+	 *            Maximum number of rollovers waiting for a worker
+	 * @param saturationPolicy
+	 *            Policy applied when the queue is full
+	 */
+	public S3UploadExecutor(String name, int threadCount, int queueSize, SaturationPolicy saturationPolicy)
+	{
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory(String.format(
+						"logpig-s3-upload-%s-", name)), this.createRejectedExecutionHandler(saturationPolicy))
+		{
+			@Override
+			protected void terminated()
+			{
+				super.terminated();
+				final Runnable task = S3UploadExecutor.this.terminationTask;
+				if (null != task)
+				{
+					task.run();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Submit a compress and/or post task
+	 *
+	 * @param task
+	 *            Task to run
+	 * @return Future for the task. If the task was discarded, the Future is cancelled.
+	 */
+	public Future<?> submit(Runnable task)
+	{
+		return this.executor.submit(task);
+	}
+
+	/**
+	 * Submit a task that returns a result
+	 *
+	 * @param task
+	 *            Task to run
+	 * @return Future for the task result. If the task was discarded, the Future is cancelled.
+	 */
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return this.executor.submit(task);
+	}
+
+	/**
+	 * @return Number of tasks waiting for a worker thread
+	 */
+	public int getQueueDepth()
+	{
+		return this.executor.getQueue().size();
+	}
+
+	/**
+	 * @return Approximate number of tasks that worker threads are running
+	 */
+	public int getActiveCount()
+	{
+		return this.executor.getActiveCount();
+	}
+
+	/**
+	 * Stop accepting new work. Previously submitted work continues to run.
+	 */
+	public void shutdown()
+	{
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Stop accepting new work and run a task once all previously submitted work has completed. The task runs when the
+	 * executor terminates, which may be on the calling thread or later on the last worker thread to exit, even if
+	 * there is no outstanding work. Don't assume it has run when this method returns; {@link #awaitTermination}
+	 * returns only after it has.
+	 *
+	 * @param task
+	 *            Task to run after the last upload completes
+	 */
+	public void shutdown(Runnable task)
+	{
+		this.terminationTask = task;
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Stop accepting new work, interrupt the uploads that are running and discard the ones that haven't started
+	 *
+	 * @return Number of queued tasks that never ran
+	 */
+	public int shutdownNow()
+	{
+		return this.executor.shutdownNow().size();
+	}
+
+	/**
+	 * Wait for submitted work to complete after {@link #shutdown()}
+	 *
+	 * @param timeout
+	 *            Maximum time to wait
+	 * @param unit
+	 *            Timeout unit
+	 * @return true if all work completed, false if the timeout elapsed first
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return this.executor.awaitTermination(timeout, unit);
+	}
+
+	private RejectedExecutionHandler createRejectedExecutionHandler(SaturationPolicy saturationPolicy)
+	{
+		switch (saturationPolicy)
+		{
+			case BLOCK:
+				return new BlockPolicy();
+			case DISCARD:
+				return new DiscardPolicy();
+			default:
+				return new ThreadPoolExecutor.CallerRunsPolicy();
+		}
+	}
+
+	/**
+	 * Waits for room in the queue rather than rejecting the task
+	 */
+	private static class BlockPolicy implements RejectedExecutionHandler
+	{
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+		{
+			if (executor.isShutdown())
+			{
+				throw new RejectedExecutionException("S3 upload executor has been shut down");
+			}
+			try
+			{
+				executor.getQueue().put(task);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for S3 upload queue", ex);
+			}
+		}
+	}
+
+	/**
+	 * Drops the task and cancels its Future so that nobody waits on it
+	 */
+	private static class DiscardPolicy implements RejectedExecutionHandler
+	{
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+		{
+			// The executor is created while logback is still configuring, so resolve the logger lazily
+			final Logger logger = LoggerFactory.getLogger(S3UploadExecutor.class);
+			logger.warn("S3 upload queue is full.  Discarding rollover task: {}", task);
+			if (task instanceof Future)
+			{
+				((Future<?>) task).cancel(false);
+			}
+		}
+	}
+}
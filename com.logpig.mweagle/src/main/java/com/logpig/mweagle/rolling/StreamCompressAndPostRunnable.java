@@ -0,0 +1,195 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logpig.mweagle.aws.S3FilePutRunnable;
+import com.logpig.mweagle.aws.S3MultipartOutputStream;
+import com.logpig.mweagle.aws.S3SidecarPoster;
+
+/**
+ * Runnable that compresses a local file straight into an S3 upload stream, so the compressed bytes are never read
+ * back from disk. A local compressed copy is written at the same time only if it is needed for <i>maxHistory</i>
+ * retention.
+ * <p>
+ * If the streaming upload fails, the file is compressed to local disk and posted by {@link S3FilePutRunnable} as
+ * {@link CompressAndPostRunnable} would have done.
+ *
+ * @see S3MultipartOutputStream
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class StreamCompressAndPostRunnable implements Runnable
+{
+	private final Logger logger = LoggerFactory.getLogger(StreamCompressAndPostRunnable.class);
+
+	private final CompressionContext context;
+
+	private final S3Settings s3Settings;
+
+	private final boolean keepLocalCopy;
+
+	private final UploadSpool.Entry spoolEntry;
+
+	/**
+	 * Ctor
+	 *
+	 * @param context
+	 *            CompressionContext instance that will compress the file
+	 * @param s3Settings
+	 *            S3Settings data
+	 * @param keepLocalCopy
+	 *            If true, the compressed file is also written to local disk
+	 * @param spoolEntry
+	 *            Spool entry to complete once the file is posted. May be null.
+	 */
+	public StreamCompressAndPostRunnable(CompressionContext context, S3Settings s3Settings, boolean keepLocalCopy,
+			UploadSpool.Entry spoolEntry)
+	{
+		this.context = context;
+		this.s3Settings = s3Settings;
+		this.keepLocalCopy = keepLocalCopy;
+		this.spoolEntry = spoolEntry;
+	}
+
+	@Override
+	public void run()
+	{
+		final String compressedName = this.context.getCompressedName();
+		final String keyName = this.s3Settings.getKeyName(compressedName);
+		final S3MultipartOutputStream s3Stream = new S3MultipartOutputStream(keyName, this.s3Settings);
+		OutputStream localCopy = null;
+		try
+		{
+			OutputStream target = s3Stream;
+			if (this.keepLocalCopy)
+			{
+				localCopy = new FileOutputStream(compressedName);
+				target = new TeeOutputStream(s3Stream, localCopy);
+			}
+			this.context.compress(target);
+			target.close();
+			new S3SidecarPoster(compressedName, keyName, this.s3Settings).post();
+			final PeriodManifest manifest = this.s3Settings.getManifest();
+			if (null != manifest)
+			{
+				// A multipart upload's ETag isn't an MD5, and the stream isn't digested
+				manifest.addObject(compressedName, keyName, s3Stream.getByteCount(), null);
+			}
+			this.complete();
+			if (!new File(this.context.getSourceName()).delete())
+			{
+				logger.warn("Could not delete {}", this.context.getSourceName());
+			}
+		}
+		catch (IOException ex)
+		{
+			logger.error(String.format("Failed to stream %s to AWS.  Posting from local disk instead.",
+					this.context.getSourceName()), ex);
+			s3Stream.abort();
+			closeQuietly(localCopy);
+			// Remove any partial local copy so the compressor can write a complete one
+			new File(compressedName).delete();
+			final String fileName = this.context.compress();
+			final S3FilePutRunnable s3Poster = new S3FilePutRunnable(fileName, this.context.getContentMD5(),
+					this.s3Settings);
+			if (s3Poster.upload())
+			{
+				this.complete();
+			}
+		}
+	}
+
+	private void complete()
+	{
+		if (null != this.spoolEntry)
+		{
+			this.spoolEntry.complete();
+		}
+	}
+
+	private static void closeQuietly(OutputStream stream)
+	{
+		if (null != stream)
+		{
+			try
+			{
+				stream.close();
+			}
+			catch (IOException ex)
+			{
+				// NOP
+			}
+		}
+	}
+
+	/**
+	 * Writes every byte to two streams
+	 */
+	private static class TeeOutputStream extends OutputStream
+	{
+		private final OutputStream first;
+
+		private final OutputStream second;
+
+		public TeeOutputStream(OutputStream first, OutputStream second)
+		{
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.first.write(b);
+			this.second.write(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			this.first.write(bytes, offset, length);
+			this.second.write(bytes, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.first.flush();
+			this.second.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// Close the local copy even if the upload fails
+			try
+			{
+				this.second.close();
+			}
+			finally
+			{
+				this.first.close();
+			}
+		}
+	}
+}
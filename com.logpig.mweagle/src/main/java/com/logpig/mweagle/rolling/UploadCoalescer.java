@@ -0,0 +1,537 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logpig.mweagle.aws.S3FilePutRunnable;
+import com.logpig.mweagle.aws.S3MultipartOutputStream;
+import com.logpig.mweagle.aws.S3SidecarPoster;
+import com.logpig.mweagle.rolling.helper.BlockGzipOutputStream;
+import com.logpig.mweagle.rolling.helper.DaemonThreadFactory;
+import com.logpig.mweagle.rolling.helper.TokenBloomFilter;
+import com.logpig.mweagle.rolling.stats.EventStats;
+
+/**
+ * Collects rolled files and posts them to S3 as a single object, so that a small <i>maxFileSize</i> doesn't turn
+ * into one PUT per rollover. A batch is posted once it holds {@link S3Settings#coalesceSize} bytes or its oldest file
+ * is {@link S3Settings#coalesceAge} milliseconds old.
+ * <p>
+ * The object is the files' bytes back to back. Gzip members, like the frames of the other codecs and plain text,
+ * can be concatenated and read as one stream, so the object decompresses to the lines of every file in order. The
+ * object key is derived from the first file of the batch. A manifest of the batch is posted next to it with a
+ * {@link #MANIFEST_SUFFIX} suffix; its tab delimited lines are
+ * <ul>
+ * <li><i>fileName compressedOffset compressedLength</i></li>
+ * </ul>
+ * If every file has a splittable gzip index, the indexes are merged into one for the object.  The files' event
+ * summaries are merged the same way, and their Bloom filters are posted back to back.
+ * <p>
+ * Each file's spool entry is completed once the batch and its sidecars are posted. A batch that can't be posted,
+ * or whose sidecars can't be written or posted, is left in the spool with the files' own sidecars, and its files are
+ * posted one at a time on the next start.
+ *
+ * @see UploadSpool
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class UploadCoalescer
+{
+	/**
+	 * Suffix of the manifest sidecar file
+	 */
+	public static final String MANIFEST_SUFFIX = ".manifest";
+
+	/**
+	 * Suffix of the local file that the batch's sidecars are named after
+	 */
+	private static final String BATCH_SUFFIX = ".batch";
+
+	private final S3Settings s3Settings;
+
+	private final S3UploadExecutor uploadExecutor;
+
+	private final ScheduledThreadPoolExecutor ageTimer = new ScheduledThreadPoolExecutor(1,
+			new DaemonThreadFactory("logpig-s3-coalesce-"));
+
+	private List<Member> batch = new ArrayList<Member>();
+
+	private long batchSize;
+
+	private boolean stopped;
+
+	/**
+	 * Ctor
+	 *
+	 * @param s3Settings
+	 *            S3Settings data, including the size and age thresholds
+	 * @param uploadExecutor
+	 *            Executor that posts batches flushed by age or by {@link #stop()}. May be null.
+	 */
+	public UploadCoalescer(S3Settings s3Settings, S3UploadExecutor uploadExecutor)
+	{
+		this.s3Settings = s3Settings;
+		this.uploadExecutor = uploadExecutor;
+	}
+
+	/**
+	 * Add a rolled file to the current batch. If that fills the batch, it is posted on the calling thread. Once the
+	 * coalescer is stopped, the file is posted on its own.
+	 *
+	 * @param fileName
+	 *            Rolled file, in its final compressed form
+	 * @param spoolEntry
+	 *            Spool entry to complete once the file is posted. May be null.
+	 */
+	public void add(String fileName, UploadSpool.Entry spoolEntry)
+	{
+		List<Member> fullBatch = null;
+		synchronized (this)
+		{
+			if (!this.stopped)
+			{
+				if (this.batch.isEmpty())
+				{
+					this.scheduleAgeFlush(this.batch);
+				}
+				this.batch.add(new Member(fileName, spoolEntry));
+				this.batchSize += new File(fileName).length();
+				if (this.batchSize >= this.s3Settings.coalesceSize)
+				{
+					fullBatch = this.takeBatch();
+				}
+			}
+		}
+		if (null != fullBatch)
+		{
+			this.post(fullBatch);
+		}
+		else if (this.isStopped())
+		{
+			final S3FilePutRunnable s3Poster = new S3FilePutRunnable(fileName, this.s3Settings);
+			if (s3Poster.upload() && null != spoolEntry)
+			{
+				spoolEntry.complete();
+			}
+		}
+	}
+
+	/**
+	 * Post the current batch, whatever its size, and post every file added from now on by itself
+	 */
+	public void stop()
+	{
+		final List<Member> lastBatch;
+		synchronized (this)
+		{
+			if (this.stopped)
+			{
+				return;
+			}
+			this.stopped = true;
+			lastBatch = this.takeBatch();
+		}
+		// Let an age flush that has already taken its batch hand it to the executor.  The policy stops the
+		// coalescer before the executor, so age flushes never run after the executor has terminated.
+		this.ageTimer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.ageTimer.shutdown();
+		try
+		{
+			this.ageTimer.awaitTermination(this.s3Settings.shutdownTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (!lastBatch.isEmpty())
+		{
+			this.submitPost(lastBatch);
+		}
+	}
+
+	/**
+	 * Post the batch on the upload executor, so that it counts against the upload threads and doesn't hold up the
+	 * age timer while it retries
+	 */
+	private void submitPost(final List<Member> postBatch)
+	{
+		final Runnable postRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				post(postBatch);
+			}
+		};
+		try
+		{
+			if (null == this.uploadExecutor)
+			{
+				postRunnable.run();
+			}
+			else
+			{
+				this.uploadExecutor.submit(postRunnable);
+			}
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// The executor is already shutting down
+			postRunnable.run();
+		}
+	}
+
+	private synchronized boolean isStopped()
+	{
+		return this.stopped;
+	}
+
+	private List<Member> takeBatch()
+	{
+		final List<Member> fullBatch = this.batch;
+		this.batch = new ArrayList<Member>();
+		this.batchSize = 0;
+		return fullBatch;
+	}
+
+	private void scheduleAgeFlush(final List<Member> pendingBatch)
+	{
+		this.ageTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				List<Member> agedBatch = null;
+				synchronized (UploadCoalescer.this)
+				{
+					// The batch may already have been posted for its size
+					if (pendingBatch == batch)
+					{
+						agedBatch = takeBatch();
+					}
+				}
+				if (null != agedBatch)
+				{
+					submitPost(agedBatch);
+				}
+			}
+		}, this.s3Settings.coalesceAge, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stream every file of the batch into one object, retrying the whole object up to {@link S3Settings#retryCount}
+	 * times
+	 */
+	private void post(List<Member> postBatch)
+	{
+		final List<Member> members = new ArrayList<Member>(postBatch.size());
+		for (final Member eachMember : postBatch)
+		{
+			if (new File(eachMember.fileName).exists())
+			{
+				members.add(eachMember);
+			}
+			else
+			{
+				getLogger().warn("Coalesced file {} no longer exists and will not be posted to S3", eachMember.fileName);
+				eachMember.complete();
+			}
+		}
+		if (members.isEmpty())
+		{
+			return;
+		}
+		final String firstFileName = members.get(0).fileName;
+		final String batchName = firstFileName + BATCH_SUFFIX;
+		final String keyName = this.s3Settings.getKeyName(firstFileName);
+		int attempt = 0;
+		while (true)
+		{
+			final S3MultipartOutputStream s3Stream = new S3MultipartOutputStream(keyName, this.s3Settings);
+			try
+			{
+				for (final Member eachMember : members)
+				{
+					copy(eachMember.fileName, s3Stream);
+				}
+				s3Stream.close();
+				this.s3Settings.getRetryScheduler().recordSuccess();
+				break;
+			}
+			catch (IOException ex)
+			{
+				s3Stream.abort();
+				attempt += 1;
+				if (attempt >= this.s3Settings.retryCount || !this.s3Settings.getRetryScheduler().awaitRetry(attempt))
+				{
+					getLogger().error(String.format("Failed to post a batch of %d files starting with %s to AWS.  "
+							+ "They will be posted from the spool.", members.size(), firstFileName), ex);
+					return;
+				}
+				getLogger().warn(String.format("Failed to post a batch starting with %s to AWS.  Retrying.",
+						firstFileName), ex);
+			}
+		}
+		try
+		{
+			this.writeManifest(members, batchName + MANIFEST_SUFFIX);
+			this.writeMergedIndex(members, batchName + BlockGzipOutputStream.INDEX_SUFFIX);
+			this.writeMergedStats(members, batchName + EventStats.SUFFIX);
+			this.writeBatchBloomFilter(members, batchName + TokenBloomFilter.SUFFIX);
+		}
+		catch (IOException ex)
+		{
+			getLogger().error(String.format("Failed to write the sidecars of the batch starting with %s.  "
+					+ "Its files will be posted from the spool.", firstFileName), ex);
+			this.deleteBatchSidecars(batchName);
+			return;
+		}
+		if (!new S3SidecarPoster(batchName, keyName, this.s3Settings).post())
+		{
+			getLogger().error("Failed to post the sidecars of the batch starting with {}.  Its files will be posted "
+					+ "from the spool.", firstFileName);
+			this.deleteBatchSidecars(batchName);
+			return;
+		}
+		final PeriodManifest manifest = this.s3Settings.getManifest();
+		if (null != manifest)
+		{
+			final List<String> fileNames = new ArrayList<String>(members.size());
+			long bytes = 0;
+			for (final Member eachMember : members)
+			{
+				fileNames.add(eachMember.fileName);
+				bytes += new File(eachMember.fileName).length();
+			}
+			manifest.addObject(fileNames, keyName, bytes, null);
+		}
+		for (final Member eachMember : members)
+		{
+			if (!this.s3Settings.mockPut)
+			{
+				// The member's own sidecars were merged into the batch's
+				for (final String eachSuffix : this.s3Settings.getSidecarSuffixes())
+				{
+					new File(eachMember.fileName + eachSuffix).delete();
+				}
+			}
+			eachMember.complete();
+		}
+	}
+
+	/**
+	 * Nothing posts a batch's sidecars once the batch is given up on, and the files' own sidecars still hold their
+	 * data
+	 */
+	private void deleteBatchSidecars(String batchName)
+	{
+		for (final String eachSuffix : this.s3Settings.getSidecarSuffixes())
+		{
+			new File(batchName + eachSuffix).delete();
+		}
+	}
+
+	private void writeManifest(List<Member> members, String manifestName) throws IOException
+	{
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(manifestName), "UTF-8");
+		try
+		{
+			long offset = 0;
+			for (final Member eachMember : members)
+			{
+				final long length = new File(eachMember.fileName).length();
+				writer.write(String.format("%s\t%d\t%d\n", new File(eachMember.fileName).getName(), offset, length));
+				offset += length;
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Shift each member's index by the sizes of the members before it. The last line of every index holds that
+	 * file's totals.
+	 */
+	private void writeMergedIndex(List<Member> members, String indexName) throws IOException
+	{
+		for (final Member eachMember : members)
+		{
+			if (!new File(eachMember.fileName + BlockGzipOutputStream.INDEX_SUFFIX).exists())
+			{
+				return;
+			}
+		}
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(indexName), "UTF-8");
+		try
+		{
+			long uncompressedBase = 0;
+			long compressedBase = 0;
+			for (final Member eachMember : members)
+			{
+				final List<long[]> rows = readIndex(eachMember.fileName + BlockGzipOutputStream.INDEX_SUFFIX);
+				for (int i = 0; i < rows.size() - 1; ++i)
+				{
+					writer.write((uncompressedBase + rows.get(i)[0]) + "\t" + (compressedBase + rows.get(i)[1]) + "\n");
+				}
+				if (!rows.isEmpty())
+				{
+					uncompressedBase += rows.get(rows.size() - 1)[0];
+					compressedBase += rows.get(rows.size() - 1)[1];
+				}
+			}
+			writer.write(uncompressedBase + "\t" + compressedBase + "\n");
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private void writeMergedStats(List<Member> members, String statsName) throws IOException
+	{
+		EventStats mergedStats = null;
+		for (final Member eachMember : members)
+		{
+			final File memberStats = new File(eachMember.fileName + EventStats.SUFFIX);
+			if (memberStats.exists())
+			{
+				if (null == mergedStats)
+				{
+					mergedStats = new EventStats();
+				}
+				mergedStats.merge(EventStats.read(memberStats));
+			}
+		}
+		if (null != mergedStats)
+		{
+			mergedStats.write(new File(statsName));
+		}
+	}
+
+	private void writeBatchBloomFilter(List<Member> members, String filterName) throws IOException
+	{
+		for (final Member eachMember : members)
+		{
+			if (!new File(eachMember.fileName + TokenBloomFilter.SUFFIX).exists())
+			{
+				// A sidecar that's missing a file's tokens would hide them from searches
+				return;
+			}
+		}
+		final OutputStream output = new FileOutputStream(filterName);
+		try
+		{
+			for (final Member eachMember : members)
+			{
+				copy(eachMember.fileName + TokenBloomFilter.SUFFIX, output);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	private static List<long[]> readIndex(String indexName) throws IOException
+	{
+		final List<long[]> rows = new ArrayList<long[]>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexName),
+				"UTF-8"));
+		try
+		{
+			String line;
+			while (null != (line = reader.readLine()))
+			{
+				final String[] fields = line.split("\t");
+				rows.add(new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+			}
+		}
+		catch (NumberFormatException ex)
+		{
+			throw new IOException("Malformed index " + indexName, ex);
+		}
+		finally
+		{
+			reader.close();
+		}
+		return rows;
+	}
+
+	private static void copy(String fileName, OutputStream target) throws IOException
+	{
+		final InputStream input = new FileInputStream(fileName);
+		try
+		{
+			final byte[] buffer = new byte[64 * 1024];
+			int n;
+			while (-1 != (n = input.read(buffer)))
+			{
+				target.write(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(UploadCoalescer.class);
+	}
+
+	/**
+	 * A rolled file waiting in a batch
+	 */
+	private static class Member
+	{
+		private final String fileName;
+
+		private final UploadSpool.Entry spoolEntry;
+
+		Member(String fileName, UploadSpool.Entry spoolEntry)
+		{
+			this.fileName = fileName;
+			this.spoolEntry = spoolEntry;
+		}
+
+		void complete()
+		{
+			if (null != this.spoolEntry)
+			{
+				this.spoolEntry.complete();
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.logpig.mweagle.rolling.helper.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for the rollover, compression and upload pipeline of one {@link S3Settings}.
+ * Every event is also passed on to the registered {@link UploadMetricsListener}s.
+ *
+ * @see S3AppenderStatsMXBean
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class UploadMetrics
+{
+	private final List<UploadMetricsListener> listeners = new CopyOnWriteArrayList<UploadMetricsListener>();
+
+	private final AtomicLong objectsShipped = new AtomicLong();
+
+	private final AtomicLong bytesShipped = new AtomicLong();
+
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicLong> failureCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final LatencyHistogram uploadLatency = new LatencyHistogram();
+
+	private final LatencyHistogram compressionLatency = new LatencyHistogram();
+
+	private final LatencyHistogram rolloverDuration = new LatencyHistogram();
+
+	public void addListener(UploadMetricsListener listener)
+	{
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Record a rollover of the active file
+	 *
+	 * @param fileName
+	 *            Active file name
+	 * @param durationMillis
+	 *            Time the rollover took
+	 */
+	public void recordRollover(String fileName, long durationMillis)
+	{
+		this.rolloverDuration.record(durationMillis);
+		for (final UploadMetricsListener eachListener : this.listeners)
+		{
+			try
+			{
+				eachListener.onRollover(fileName, durationMillis);
+			}
+			catch (RuntimeException ex)
+			{
+				logListenerFailure(eachListener, ex);
+			}
+		}
+	}
+
+	/**
+	 * Record a compressed file
+	 *
+	 * @param fileName
+	 *            Compressed file name
+	 * @param uncompressed
+	 *            Size of the source file
+	 * @param compressed
+	 *            Size of the compressed file
+	 * @param durationMillis
+	 *            Time compression took
+	 */
+	public void recordCompression(String fileName, long uncompressed, long compressed, long durationMillis)
+	{
+		this.uncompressedBytes.addAndGet(uncompressed);
+		this.compressedBytes.addAndGet(compressed);
+		this.compressionLatency.record(durationMillis);
+		for (final UploadMetricsListener eachListener : this.listeners)
+		{
+			try
+			{
+				eachListener.onCompression(fileName, uncompressed, compressed, durationMillis);
+			}
+			catch (RuntimeException ex)
+			{
+				logListenerFailure(eachListener, ex);
+			}
+		}
+	}
+
+	/**
+	 * Record a log object that S3 now has
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param bytes
+	 *            Object size
+	 * @param durationMillis
+	 *            Time the upload took
+	 */
+	public void recordUpload(String keyName, long bytes, long durationMillis)
+	{
+		this.objectsShipped.incrementAndGet();
+		this.bytesShipped.addAndGet(bytes);
+		this.uploadLatency.record(durationMillis);
+		for (final UploadMetricsListener eachListener : this.listeners)
+		{
+			try
+			{
+				eachListener.onUpload(keyName, bytes, durationMillis);
+			}
+			catch (RuntimeException ex)
+			{
+				logListenerFailure(eachListener, ex);
+			}
+		}
+	}
+
+	/**
+	 * Record a failed S3 request
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param cause
+	 *            Exception the request failed with
+	 */
+	public void recordFailure(String keyName, Throwable cause)
+	{
+		final String errorCode = getErrorCode(cause);
+		AtomicLong counter = this.failureCounts.get(errorCode);
+		if (null == counter)
+		{
+			final AtomicLong newCounter = new AtomicLong();
+			counter = this.failureCounts.putIfAbsent(errorCode, newCounter);
+			if (null == counter)
+			{
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+		for (final UploadMetricsListener eachListener : this.listeners)
+		{
+			try
+			{
+				eachListener.onFailure(keyName, errorCode);
+			}
+			catch (RuntimeException ex)
+			{
+				logListenerFailure(eachListener, ex);
+			}
+		}
+	}
+
+	public long getObjectsShipped()
+	{
+		return this.objectsShipped.get();
+	}
+
+	public long getBytesShipped()
+	{
+		return this.bytesShipped.get();
+	}
+
+	/**
+	 * @return Uncompressed bytes divided by compressed bytes, over every file compressed so far. Zero if none were.
+	 */
+	public double getCompressionRatio()
+	{
+		final long compressed = this.compressedBytes.get();
+		return (0 == compressed) ? 0 : (double) this.uncompressedBytes.get() / compressed;
+	}
+
+	/**
+	 * @return Number of failed S3 requests by error code
+	 */
+	public Map<String, Long> getFailureCounts()
+	{
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> eachEntry : this.failureCounts.entrySet())
+		{
+			counts.put(eachEntry.getKey(), eachEntry.getValue().get());
+		}
+		return counts;
+	}
+
+	public LatencyHistogram getUploadLatency()
+	{
+		return this.uploadLatency;
+	}
+
+	public LatencyHistogram getCompressionLatency()
+	{
+		return this.compressionLatency;
+	}
+
+	public LatencyHistogram getRolloverDuration()
+	{
+		return this.rolloverDuration;
+	}
+
+	/**
+	 * @param cause
+	 *            Exception an S3 request failed with, possibly wrapped
+	 * @return S3 error code, or the exception's class name if S3 didn't send one
+	 */
+	public static String getErrorCode(Throwable cause)
+	{
+		for (Throwable each = cause; null != each; each = each.getCause())
+		{
+			if (each instanceof AmazonServiceException && null != ((AmazonServiceException) each).getErrorCode())
+			{
+				return ((AmazonServiceException) each).getErrorCode();
+			}
+		}
+		Throwable root = cause;
+		while (null != root.getCause() && root.getCause() != root)
+		{
+			root = root.getCause();
+		}
+		return root.getClass().getSimpleName();
+	}
+
+	private static void logListenerFailure(UploadMetricsListener listener, RuntimeException ex)
+	{
+		LoggerFactory.getLogger(UploadMetrics.class).warn(
+				String.format("Metrics listener %s failed", listener.getClass().getName()), ex);
+	}
+}
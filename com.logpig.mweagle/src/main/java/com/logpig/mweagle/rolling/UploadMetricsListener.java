@@ -0,0 +1,77 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+/**
+ * Receives an event for every rollover, compression and upload made with an {@link S3Settings}. Add one to an
+ * appender with a nested <i>metricsListener</i> element, e.g.
+ * <i>&lt;metricsListener class="com.example.StatsdListener"/&gt;</i>, to forward the pipeline's metrics to another
+ * system.
+ * <p>
+ * Events are delivered on the thread that did the work, which is often an upload worker, so implementations should
+ * return quickly and must be thread safe.
+ *
+ * @see UploadMetrics
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public interface UploadMetricsListener
+{
+	/**
+	 * The active file was rolled over
+	 *
+	 * @param fileName
+	 *            Active file name
+	 * @param durationMillis
+	 *            Time the appender was blocked closing, renaming and reopening the file
+	 */
+	void onRollover(String fileName, long durationMillis);
+
+	/**
+	 * A rolled file was compressed
+	 *
+	 * @param fileName
+	 *            Compressed file name
+	 * @param uncompressedBytes
+	 *            Size of the rolled file
+	 * @param compressedBytes
+	 *            Size of the compressed file
+	 * @param durationMillis
+	 *            Time spent compressing. For streaming uploads this includes the upload.
+	 */
+	void onCompression(String fileName, long uncompressedBytes, long compressedBytes, long durationMillis);
+
+	/**
+	 * A log object was posted to S3. Sidecar objects are not reported.
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param bytes
+	 *            Object size
+	 * @param durationMillis
+	 *            Time spent posting the object
+	 */
+	void onUpload(String keyName, long bytes, long durationMillis);
+
+	/**
+	 * An S3 request failed. It may still be retried.
+	 *
+	 * @param keyName
+	 *            Object key
+	 * @param errorCode
+	 *            S3 error code, e.g. <i>SlowDown</i>, or the exception's class name if S3 didn't send one
+	 */
+	void onFailure(String keyName, String errorCode);
+}
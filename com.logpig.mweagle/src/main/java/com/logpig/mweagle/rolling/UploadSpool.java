@@ -0,0 +1,492 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent record of rolled files that have not yet been posted to S3.
+ * <p>
+ * Every rollover is added to an append-only journal before its compress and post work is queued, and marked done
+ * once S3 has the object. Each journal write is synced to disk, so after a crash, an exhausted retry count or a long
+ * S3 outage the journal still lists every file that was never shipped. The journal is compacted to just the pending
+ * entries when it is opened.
+ * <p>
+ * When files are also posted to other destinations, each destination's post is recorded separately, and an entry
+ * stays pending until the appender's own bucket and every destination have the file.
+ * <p>
+ * Journal lines are tab delimited:
+ * <ul>
+ * <li><i>ADD id createdMillis sourceName targetName innerEntryName</i></li>
+ * <li><i>DONE id</i>: posted to the appender's own bucket</li>
+ * <li><i>SENT id destinationName</i>: posted to the named destination</li>
+ * </ul>
+ * For files that are posted as-is, the source and target names are the same.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class UploadSpool
+{
+	/**
+	 * Journal file name within the spool directory
+	 */
+	public static final String JOURNAL_NAME = "pending.journal";
+
+	private static final String ADD = "ADD";
+
+	private static final String DONE = "DONE";
+
+	private static final String SENT = "SENT";
+
+	private static final String NO_ENTRY_NAME = "-";
+
+	private final File journal;
+
+	private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+	private final Set<String> destinationNames = new HashSet<String>();
+
+	private long nextId = 1;
+
+	/**
+	 * Ctor
+	 *
+	 * @param directory
+	 *            Spool directory. Created if it doesn't exist.
+	 */
+	public UploadSpool(File directory)
+	{
+		directory.mkdirs();
+		this.journal = new File(directory, JOURNAL_NAME);
+	}
+
+	/**
+	 * Set the destinations, besides the appender's own bucket, that every file must be posted to. Must be called
+	 * before {@link #open()}.
+	 *
+	 * @param destinationNames
+	 *            Destination names
+	 */
+	public synchronized void setDestinationNames(Collection<String> destinationNames)
+	{
+		this.destinationNames.clear();
+		this.destinationNames.addAll(destinationNames);
+	}
+
+	/**
+	 * Replay the journal and rewrite it to contain only the pending entries
+	 *
+	 * @return Entries that were never completed, oldest first
+	 */
+	public synchronized List<Entry> open()
+	{
+		this.pending.clear();
+		if (this.journal.exists())
+		{
+			try
+			{
+				final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+						this.journal), "UTF-8"));
+				try
+				{
+					String line;
+					while (null != (line = reader.readLine()))
+					{
+						this.replay(line);
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			catch (IOException ex)
+			{
+				getLogger().error(String.format("Failed to read upload journal %s", this.journal), ex);
+			}
+		}
+		final Iterator<Entry> entries = this.pending.values().iterator();
+		while (entries.hasNext())
+		{
+			// Also drops the progress of destinations that are no longer configured
+			if (entries.next().isFinished())
+			{
+				entries.remove();
+			}
+		}
+		this.compact();
+		return new ArrayList<Entry>(this.pending.values());
+	}
+
+	/**
+	 * Record a rolled file that needs to be posted
+	 *
+	 * @param sourceName
+	 *            File to compress, or the file to post if it is already in its final form
+	 * @param targetName
+	 *            Compressed filename, or the same as sourceName
+	 * @param innerEntryName
+	 *            Inner entry name for .zip archives. May be null.
+	 * @return The journal entry
+	 */
+	public synchronized Entry add(String sourceName, String targetName, String innerEntryName)
+	{
+		final Entry entry = new Entry(this.nextId++, System.currentTimeMillis(), sourceName, targetName,
+				innerEntryName);
+		this.pending.put(entry.id, entry);
+		this.append(String.format("%s\t%d\t%d\t%s\t%s\t%s", ADD, entry.id, entry.createdMillis, sourceName,
+				targetName, (null != innerEntryName) ? innerEntryName : NO_ENTRY_NAME));
+		return entry;
+	}
+
+	/**
+	 * @return Number of entries that have not been posted
+	 */
+	public synchronized int getPendingCount()
+	{
+		return this.pending.size();
+	}
+
+	/**
+	 * @param destinationName
+	 *            Destination name
+	 * @return Number of entries that have not been posted to the named destination
+	 */
+	public synchronized int getPendingCount(String destinationName)
+	{
+		int count = 0;
+		for (final Entry eachEntry : this.pending.values())
+		{
+			if (!eachEntry.postedDestinations.contains(destinationName))
+			{
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return Time the oldest pending entry was rolled, or zero if there are none
+	 */
+	public synchronized long getOldestPendingMillis()
+	{
+		long oldest = 0;
+		for (final Entry eachEntry : this.pending.values())
+		{
+			if (0 == oldest || eachEntry.createdMillis < oldest)
+			{
+				oldest = eachEntry.createdMillis;
+			}
+		}
+		return oldest;
+	}
+
+	synchronized void complete(Entry entry)
+	{
+		if (this.pending.containsKey(entry.id) && !entry.posted)
+		{
+			entry.posted = true;
+			this.record(entry, String.format("%s\t%d", DONE, entry.id));
+		}
+	}
+
+	synchronized void completeDestination(Entry entry, String destinationName)
+	{
+		if (this.pending.containsKey(entry.id) && entry.postedDestinations.add(destinationName))
+		{
+			this.record(entry, String.format("%s\t%d\t%s", SENT, entry.id, destinationName));
+		}
+	}
+
+	synchronized void discard(Entry entry)
+	{
+		this.complete(entry);
+		for (final String eachName : this.destinationNames)
+		{
+			this.completeDestination(entry, eachName);
+		}
+	}
+
+	synchronized boolean isPosted(Entry entry)
+	{
+		return entry.posted;
+	}
+
+	synchronized boolean isPostedTo(Entry entry, String destinationName)
+	{
+		return entry.postedDestinations.contains(destinationName);
+	}
+
+	private void record(Entry entry, String line)
+	{
+		if (entry.isFinished())
+		{
+			this.pending.remove(entry.id);
+		}
+		if (this.pending.isEmpty())
+		{
+			// Nothing outstanding, so start over with an empty journal
+			this.compact();
+		}
+		else
+		{
+			this.append(line);
+		}
+	}
+
+	private void replay(String line)
+	{
+		final String[] fields = line.split("\t");
+		try
+		{
+			if (ADD.equals(fields[0]) && fields.length == 6)
+			{
+				final long id = Long.parseLong(fields[1]);
+				final String innerEntryName = NO_ENTRY_NAME.equals(fields[5]) ? null : fields[5];
+				this.pending.put(id, new Entry(id, Long.parseLong(fields[2]), fields[3], fields[4], innerEntryName));
+				this.nextId = Math.max(this.nextId, id + 1);
+			}
+			else if (DONE.equals(fields[0]) && fields.length == 2)
+			{
+				final Entry entry = this.pending.get(Long.parseLong(fields[1]));
+				if (null != entry)
+				{
+					entry.posted = true;
+				}
+			}
+			else if (SENT.equals(fields[0]) && fields.length == 3)
+			{
+				final Entry entry = this.pending.get(Long.parseLong(fields[1]));
+				if (null != entry)
+				{
+					entry.postedDestinations.add(fields[2]);
+				}
+			}
+			else
+			{
+				getLogger().warn("Ignoring malformed upload journal line: {}", line);
+			}
+		}
+		catch (NumberFormatException ex)
+		{
+			// Most likely a line torn by a crash
+			getLogger().warn("Ignoring malformed upload journal line: {}", line);
+		}
+	}
+
+	private void append(String line)
+	{
+		try
+		{
+			final FileOutputStream output = new FileOutputStream(this.journal, true);
+			try
+			{
+				output.write((line + "\n").getBytes("UTF-8"));
+				output.getFD().sync();
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			getLogger().error(String.format("Failed to write upload journal %s", this.journal), ex);
+		}
+	}
+
+	private void compact()
+	{
+		final File compacted = new File(this.journal.getPath() + ".tmp");
+		try
+		{
+			final FileOutputStream output = new FileOutputStream(compacted);
+			try
+			{
+				final Writer writer = new OutputStreamWriter(output, "UTF-8");
+				for (final Entry eachEntry : this.pending.values())
+				{
+					writer.write(String.format("%s\t%d\t%d\t%s\t%s\t%s\n", ADD, eachEntry.id, eachEntry.createdMillis,
+							eachEntry.sourceName, eachEntry.targetName,
+							(null != eachEntry.innerEntryName) ? eachEntry.innerEntryName : NO_ENTRY_NAME));
+					if (eachEntry.posted)
+					{
+						writer.write(String.format("%s\t%d\n", DONE, eachEntry.id));
+					}
+					for (final String eachName : eachEntry.postedDestinations)
+					{
+						writer.write(String.format("%s\t%d\t%s\n", SENT, eachEntry.id, eachName));
+					}
+				}
+				writer.flush();
+				output.getFD().sync();
+			}
+			finally
+			{
+				output.close();
+			}
+			if (!compacted.renameTo(this.journal))
+			{
+				// Windows won't rename over an existing file
+				this.journal.delete();
+				if (!compacted.renameTo(this.journal))
+				{
+					getLogger().error("Failed to replace upload journal {}", this.journal);
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			getLogger().error(String.format("Failed to compact upload journal %s", this.journal), ex);
+		}
+	}
+
+	private static Logger getLogger()
+	{
+		return LoggerFactory.getLogger(UploadSpool.class);
+	}
+
+	/**
+	 * A rolled file waiting to be posted
+	 */
+	public class Entry
+	{
+		private final long id;
+
+		private final long createdMillis;
+
+		private final String sourceName;
+
+		private final String targetName;
+
+		private final String innerEntryName;
+
+		private final Set<String> postedDestinations = new HashSet<String>();
+
+		private boolean posted;
+
+		Entry(long id, long createdMillis, String sourceName, String targetName, String innerEntryName)
+		{
+			this.id = id;
+			this.createdMillis = createdMillis;
+			this.sourceName = sourceName;
+			this.targetName = targetName;
+			this.innerEntryName = innerEntryName;
+		}
+
+		public long getCreatedMillis()
+		{
+			return this.createdMillis;
+		}
+
+		public String getSourceName()
+		{
+			return this.sourceName;
+		}
+
+		public String getTargetName()
+		{
+			return this.targetName;
+		}
+
+		public String getInnerEntryName()
+		{
+			return this.innerEntryName;
+		}
+
+		/**
+		 * @return true if the source still needs to be compressed into the target
+		 */
+		public boolean needsCompression()
+		{
+			return !this.sourceName.equals(this.targetName);
+		}
+
+		/**
+		 * Mark the file as posted to the appender's own bucket
+		 */
+		public void complete()
+		{
+			UploadSpool.this.complete(this);
+		}
+
+		/**
+		 * Mark the file as posted to the named destination
+		 *
+		 * @param destinationName
+		 *            Destination name
+		 */
+		public void completeDestination(String destinationName)
+		{
+			UploadSpool.this.completeDestination(this, destinationName);
+		}
+
+		/**
+		 * Drop the entry without posting it anywhere else, for a file that no longer exists
+		 */
+		public void discard()
+		{
+			UploadSpool.this.discard(this);
+		}
+
+		/**
+		 * @return true if the appender's own bucket has the file
+		 */
+		public boolean isPosted()
+		{
+			return UploadSpool.this.isPosted(this);
+		}
+
+		/**
+		 * @param destinationName
+		 *            Destination name
+		 * @return true if the named destination has the file
+		 */
+		public boolean isPostedTo(String destinationName)
+		{
+			return UploadSpool.this.isPostedTo(this, destinationName);
+		}
+
+		private boolean isFinished()
+		{
+			return this.posted && this.postedDestinations.containsAll(UploadSpool.this.destinationNames);
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.needsCompression() ? this.sourceName + " -> " + this.targetName : this.targetName;
+		}
+	}
+}
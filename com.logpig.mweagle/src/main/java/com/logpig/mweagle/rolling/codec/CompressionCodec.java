@@ -0,0 +1,69 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Service provider interface for the compression codecs that can be selected with a fileNamePattern suffix, in
+ * addition to logback's built-in <i>.gz</i> and <i>.zip</i>.
+ * <p>
+ * Implementations are discovered with {@link java.util.ServiceLoader} from
+ * <i>META-INF/services/com.logpig.mweagle.rolling.codec.CompressionCodec</i>, and must have a public no-arg
+ * constructor. The library classes are only referenced once a stream is created, so that a codec whose library
+ * isn't on the classpath still loads by its suffix, and is reported by
+ * {@link CompressionCodecs#isAvailable(CompressionCodec, ch.qos.logback.core.spi.ContextAware)}.
+ *
+ * @see CompressionCodecs
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public interface CompressionCodec
+{
+	/**
+	 * Compression level that selects the codec's own default
+	 */
+	public static final int DEFAULT_LEVEL = -1;
+
+	/**
+	 * @return Short name used in status messages, e.g. <i>lz4</i>
+	 */
+	public String getName();
+
+	/**
+	 * @return fileNamePattern suffix that selects this codec, including the leading period, e.g. <i>.lz4</i>
+	 */
+	public String getFileSuffix();
+
+	/**
+	 * @return Highest supported compression level
+	 */
+	public int getMaxLevel();
+
+	/**
+	 * Create a stream that compresses into the target. Closing the returned stream must write any trailer; the
+	 * target itself is never closed.
+	 *
+	 * @param target
+	 *            Stream that receives the compressed bytes
+	 * @param level
+	 *            Compression level between 0 and {@link #getMaxLevel()}, or {@link #DEFAULT_LEVEL}
+	 * @return Compressing stream
+	 * @throws IOException
+	 *             If the stream header can't be written
+	 */
+	public OutputStream createOutputStream(OutputStream target, int level) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Looks up the {@link CompressionCodec} for a fileNamePattern
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public final class CompressionCodecs
+{
+	private CompressionCodecs()
+	{
+	}
+
+	/**
+	 * @param fileNamePattern
+	 *            The rolling policy's fileNamePattern
+	 * @param statusTarget
+	 *            Receives a status message for each codec that couldn't be loaded
+	 * @return The codec whose suffix ends the pattern, or null if there is none
+	 */
+	public static CompressionCodec forFileName(String fileNamePattern, ContextAware statusTarget)
+	{
+		final Iterator<CompressionCodec> codecs = ServiceLoader.load(CompressionCodec.class,
+				CompressionCodecs.class.getClassLoader()).iterator();
+		while (codecs.hasNext())
+		{
+			try
+			{
+				final CompressionCodec eachCodec = codecs.next();
+				if (fileNamePattern.endsWith(eachCodec.getFileSuffix()))
+				{
+					return eachCodec;
+				}
+			}
+			catch (ServiceConfigurationError ex)
+			{
+				// Most likely the codec's optional library isn't on the classpath
+				statusTarget.addInfo("Compression codec not available: " + ex.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check that the codec's optional library can be loaded, by compressing nothing with it. The codec classes
+	 * themselves load without it, so a missing library otherwise only shows up at the first rollover.
+	 *
+	 * @param codec
+	 *            Codec returned by {@link #forFileName(String, ContextAware)}
+	 * @param statusTarget
+	 *            Receives an error if the codec can't be used
+	 * @return true if the codec can compress
+	 */
+	public static boolean isAvailable(CompressionCodec codec, ContextAware statusTarget)
+	{
+		Throwable failure;
+		try
+		{
+			codec.createOutputStream(new ByteArrayOutputStream(), CompressionCodec.DEFAULT_LEVEL).close();
+			return true;
+		}
+		catch (IOException ex)
+		{
+			failure = ex;
+		}
+		catch (RuntimeException ex)
+		{
+			failure = ex;
+		}
+		catch (LinkageError ex)
+		{
+			// A missing jar, or a native library that can't be loaded
+			failure = ex;
+		}
+		statusTarget.addError(String.format("fileNamePattern ends with %s, but the %s compression library can't be "
+				+ "loaded", codec.getFileSuffix(), codec.getName()), failure);
+		return false;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * LZ4 frame format codec, selected by a <i>.lz4</i> suffix. Output can be read by the <i>lz4</i> command line tool.
+ * Level 0 (the default) uses the fast compressor; levels 1 through 17 use the slower, denser LZ4 HC compressor.
+ * Requires <i>org.lz4:lz4-java</i>.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class Lz4Codec implements CompressionCodec
+{
+	@Override
+	public String getName()
+	{
+		return "lz4";
+	}
+
+	@Override
+	public String getFileSuffix()
+	{
+		return ".lz4";
+	}
+
+	@Override
+	public int getMaxLevel()
+	{
+		return 17;
+	}
+
+	@Override
+	public OutputStream createOutputStream(OutputStream target, int level) throws IOException
+	{
+		return Streams.create(target, level);
+	}
+
+	/**
+	 * The lz4-java classes, loaded when the first stream is created
+	 */
+	private static class Streams
+	{
+		static OutputStream create(OutputStream target, int level) throws IOException
+		{
+			final LZ4Factory factory = LZ4Factory.fastestInstance();
+			final LZ4Compressor compressor = (level > 0) ? factory.highCompressor(level) : factory.fastCompressor();
+			return new LZ4FrameOutputStream(target, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L, compressor,
+					XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+		}
+	}
+}
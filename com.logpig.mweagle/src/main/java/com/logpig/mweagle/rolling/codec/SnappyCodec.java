@@ -0,0 +1,65 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+/**
+ * Snappy framing format codec, selected by a <i>.sz</i> suffix. Snappy has no compression levels, so the level is
+ * ignored. Requires <i>org.xerial.snappy:snappy-java</i>.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class SnappyCodec implements CompressionCodec
+{
+	@Override
+	public String getName()
+	{
+		return "snappy";
+	}
+
+	@Override
+	public String getFileSuffix()
+	{
+		return ".sz";
+	}
+
+	@Override
+	public int getMaxLevel()
+	{
+		return 0;
+	}
+
+	@Override
+	public OutputStream createOutputStream(OutputStream target, int level) throws IOException
+	{
+		return Streams.create(target);
+	}
+
+	/**
+	 * The snappy-java classes, loaded when the first stream is created
+	 */
+	private static class Streams
+	{
+		static OutputStream create(OutputStream target) throws IOException
+		{
+			return new SnappyFramedOutputStream(target);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Zstandard codec, selected by a <i>.zst</i> suffix. Levels run from 1 to 22 and default to
+ * {@link #DEFAULT_ZSTD_LEVEL}; level 0 also means the zstd default. Requires <i>com.github.luben:zstd-jni</i>.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class ZstdCodec implements CompressionCodec
+{
+	public static final int DEFAULT_ZSTD_LEVEL = 3;
+
+	@Override
+	public String getName()
+	{
+		return "zstd";
+	}
+
+	@Override
+	public String getFileSuffix()
+	{
+		return ".zst";
+	}
+
+	@Override
+	public int getMaxLevel()
+	{
+		return 22;
+	}
+
+	@Override
+	public OutputStream createOutputStream(OutputStream target, int level) throws IOException
+	{
+		return Streams.create(target, level);
+	}
+
+	/**
+	 * The zstd-jni classes, loaded when the first stream is created
+	 */
+	private static class Streams
+	{
+		static OutputStream create(OutputStream target, int level) throws IOException
+		{
+			final ZstdOutputStream zstdStream = new ZstdOutputStream(target, (level > 0) ? level
+					: DEFAULT_ZSTD_LEVEL);
+			zstdStream.setChecksum(true);
+			return zstdStream;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.columnar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the columns of a file written by {@link ColumnarWriter}. Only the footer is read when the file is opened,
+ * and each column is read and inflated only when it is asked for, so a query that needs just the timestamps and
+ * levels never touches the messages.
+ *
+ * @see ColumnarWriter
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class ColumnarReader implements Closeable
+{
+	private final RandomAccessFile file;
+
+	private final long rowCount;
+
+	private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+	/**
+	 * Ctor
+	 *
+	 * @param file
+	 *            Columnar file
+	 * @throws IOException
+	 *             If the file can't be read or isn't a columnar file
+	 */
+	public ColumnarReader(File file) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "r");
+		try
+		{
+			final long length = this.file.length();
+			if (length < 16)
+			{
+				throw new IOException(file + " is not a columnar log file");
+			}
+			this.file.seek(length - 8);
+			final int footerLength = this.file.readInt();
+			if (ColumnarWriter.MAGIC != this.file.readInt() || footerLength < 0 || footerLength > length - 12)
+			{
+				throw new IOException(file + " is not a columnar log file");
+			}
+			final byte[] footer = new byte[footerLength];
+			this.file.seek(length - 8 - footerLength);
+			this.file.readFully(footer);
+			final DataInputStream footerInput = new DataInputStream(new ByteArrayInputStream(footer));
+			this.rowCount = footerInput.readLong();
+			final int columnCount = footerInput.readInt();
+			for (int i = 0; i < columnCount; ++i)
+			{
+				final String name = footerInput.readUTF();
+				this.columns.put(name, new Column(footerInput.readByte(), footerInput.readLong(), footerInput
+						.readLong()));
+			}
+		}
+		catch (IOException ex)
+		{
+			this.file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return Number of events in the file
+	 */
+	public int getRowCount()
+	{
+		return (int) this.rowCount;
+	}
+
+	/**
+	 * @return Names of the columns in the file, in file order
+	 */
+	public Set<String> getColumnNames()
+	{
+		return Collections.unmodifiableSet(this.columns.keySet());
+	}
+
+	/**
+	 * @return Event times in milliseconds
+	 * @throws IOException
+	 *             If the column can't be read
+	 */
+	public long[] readTimestamps() throws IOException
+	{
+		final InputStream input = this.openColumn(ColumnarWriter.TIMESTAMP, ColumnarWriter.DELTA_ENCODING);
+		try
+		{
+			final long[] timestamps = new long[this.getRowCount()];
+			long timestamp = 0;
+			for (int i = 0; i < timestamps.length; ++i)
+			{
+				final long zigzag = readVarLong(input);
+				timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+				timestamps[i] = timestamp;
+			}
+			return timestamps;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * @return Event level names
+	 * @throws IOException
+	 *             If the column can't be read
+	 */
+	public String[] readLevels() throws IOException
+	{
+		return this.readStrings(ColumnarWriter.LEVEL);
+	}
+
+	/**
+	 * @return Event logger names
+	 * @throws IOException
+	 *             If the column can't be read
+	 */
+	public String[] readLoggers() throws IOException
+	{
+		return this.readStrings(ColumnarWriter.LOGGER);
+	}
+
+	/**
+	 * @return Formatted event messages
+	 * @throws IOException
+	 *             If the column can't be read
+	 */
+	public String[] readMessages() throws IOException
+	{
+		return this.readStrings(ColumnarWriter.MESSAGE);
+	}
+
+	/**
+	 * Read a dictionary or string encoded column
+	 *
+	 * @param name
+	 *            Column name
+	 * @return A value per event
+	 * @throws IOException
+	 *             If the column can't be read
+	 */
+	public String[] readStrings(String name) throws IOException
+	{
+		final Column column = this.getColumn(name);
+		final InputStream input = this.openColumn(name, column.encoding);
+		try
+		{
+			final String[] values = new String[this.getRowCount()];
+			if (ColumnarWriter.DICTIONARY_ENCODING == column.encoding)
+			{
+				final String[] dictionary = new String[(int) readVarLong(input)];
+				for (int i = 0; i < dictionary.length; ++i)
+				{
+					dictionary[i] = readString(input);
+				}
+				for (int i = 0; i < values.length; ++i)
+				{
+					values[i] = dictionary[(int) readVarLong(input)];
+				}
+			}
+			else if (ColumnarWriter.STRING_ENCODING == column.encoding)
+			{
+				for (int i = 0; i < values.length; ++i)
+				{
+					values[i] = readString(input);
+				}
+			}
+			else
+			{
+				throw new IOException(String.format("Column %s is not a string column", name));
+			}
+			return values;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.file.close();
+	}
+
+	private Column getColumn(String name) throws IOException
+	{
+		final Column column = this.columns.get(name);
+		if (null == column)
+		{
+			throw new IOException(String.format("No %s column", name));
+		}
+		return column;
+	}
+
+	private InputStream openColumn(String name, byte encoding) throws IOException
+	{
+		final Column column = this.getColumn(name);
+		if (encoding != column.encoding)
+		{
+			throw new IOException(String.format("Column %s has an unexpected encoding", name));
+		}
+		final byte[] compressed = new byte[(int) column.length];
+		this.file.seek(column.offset);
+		this.file.readFully(compressed);
+		return new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)), 64 * 1024);
+	}
+
+	private static String readString(InputStream input) throws IOException
+	{
+		final byte[] bytes = new byte[(int) readVarLong(input)];
+		new DataInputStream(input).readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static long readVarLong(InputStream input) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final int b = input.read();
+			if (b < 0)
+			{
+				throw new EOFException("Column ended early");
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Location of a column in the file
+	 */
+	private static class Column
+	{
+		private final byte encoding;
+
+		private final long offset;
+
+		private final long length;
+
+		public Column(byte encoding, long offset, long length)
+		{
+			this.encoding = encoding;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import com.logpig.mweagle.rolling.helper.CloseShieldOutputStream;
+import com.logpig.mweagle.rolling.helper.CountingOutputStream;
+
+/**
+ * Writes the events of the active log file in a columnar, binary form, so that analytics jobs can read the columns
+ * they need without parsing text. The columns are written to temporary files as events are logged, and assembled
+ * into a single file when the active file is rolled over.
+ * <p>
+ * The file starts with the {@link #MAGIC} number, followed by each column, deflated on its own, and ends with a
+ * footer:
+ * <ul>
+ * <li><i>rowCount</i> (long), <i>columnCount</i> (int)</li>
+ * <li>for each column: <i>name</i> (UTF), <i>encoding</i> (byte), <i>offset</i> (long), <i>length</i> (long)</li>
+ * <li><i>footerLength</i> (int), {@link #MAGIC} (int)</li>
+ * </ul>
+ * so a reader, or a ranged S3 GET, can fetch the footer and then just the columns a query needs. The columns are
+ * <ul>
+ * <li><i>timestamp</i>: {@link #DELTA_ENCODING}, each event time in milliseconds as the zigzag varint difference
+ * from the previous one</li>
+ * <li><i>level</i> and <i>logger</i>: {@link #DICTIONARY_ENCODING}, a varint count of distinct values, each value as
+ * a varint length and UTF-8 bytes, then a varint dictionary index per event</li>
+ * <li><i>message</i>: {@link #STRING_ENCODING}, each formatted message as a varint length and UTF-8 bytes</li>
+ * </ul>
+ * Only the events written since the writer was created are included, so after a restart that appends to an
+ * existing active file, the earlier events are in the text file only.
+ *
+ * @see ColumnarReader
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class ColumnarWriter
+{
+	/**
+	 * Suffix of the columnar sidecar file
+	 */
+	public static final String SUFFIX = ".cols";
+
+	/**
+	 * "LPC1"
+	 */
+	public static final int MAGIC = 0x4c504331;
+
+	public static final byte DELTA_ENCODING = 1;
+
+	public static final byte DICTIONARY_ENCODING = 2;
+
+	public static final byte STRING_ENCODING = 3;
+
+	public static final String TIMESTAMP = "timestamp";
+
+	public static final String LEVEL = "level";
+
+	public static final String LOGGER = "logger";
+
+	public static final String MESSAGE = "message";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String tmpBaseName;
+
+	private final Map<String, Integer> levelDictionary = new LinkedHashMap<String, Integer>();
+
+	private final Map<String, Integer> loggerDictionary = new LinkedHashMap<String, Integer>();
+
+	private DataOutputStream timestamps;
+
+	private DataOutputStream levels;
+
+	private DataOutputStream loggers;
+
+	private DataOutputStream messages;
+
+	private long rowCount;
+
+	private long lastTimestamp;
+
+	private boolean failed;
+
+	/**
+	 * Ctor
+	 *
+	 * @param tmpBaseName
+	 *            Path that the temporary column file names are based on, e.g. the active file name
+	 */
+	public ColumnarWriter(String tmpBaseName)
+	{
+		this.tmpBaseName = tmpBaseName;
+	}
+
+	/**
+	 * Add an event to the columns
+	 *
+	 * @param event
+	 *            Event that was written to the active file
+	 * @throws IOException
+	 *             If a column can't be written
+	 */
+	public synchronized void write(ILoggingEvent event) throws IOException
+	{
+		if (this.failed)
+		{
+			// Already reported.  The columns would be missing events, so no file is written for this period.
+			return;
+		}
+		try
+		{
+			if (null == this.timestamps)
+			{
+				this.open();
+			}
+			final long timestamp = event.getTimeStamp();
+			writeVarLong(this.timestamps, zigzag(timestamp - this.lastTimestamp));
+			this.lastTimestamp = timestamp;
+			writeVarLong(this.levels, lookup(this.levelDictionary, event.getLevel().toString()));
+			writeVarLong(this.loggers, lookup(this.loggerDictionary, String.valueOf(event.getLoggerName())));
+			writeString(this.messages, event.getFormattedMessage());
+			this.rowCount += 1;
+		}
+		catch (IOException ex)
+		{
+			this.failed = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Assemble the events written so far into a columnar file, and start over with no events
+	 *
+	 * @param target
+	 *            Columnar file. Replaced if it exists.
+	 * @return false if no file was written because a column couldn't be written since the last call
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public synchronized boolean finish(File target) throws IOException
+	{
+		if (this.failed)
+		{
+			this.close();
+			return false;
+		}
+		if (null == this.timestamps)
+		{
+			this.open();
+		}
+		this.closeColumns();
+		final CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+				target), BUFFER_SIZE));
+		try
+		{
+			final DataOutputStream dataOutput = new DataOutputStream(output);
+			dataOutput.writeInt(MAGIC);
+			final long[] timestampColumn = this.writeColumn(output, null, TIMESTAMP);
+			final long[] levelColumn = this.writeColumn(output, this.levelDictionary, LEVEL);
+			final long[] loggerColumn = this.writeColumn(output, this.loggerDictionary, LOGGER);
+			final long[] messageColumn = this.writeColumn(output, null, MESSAGE);
+			final long footerStart = output.getCount();
+			dataOutput.writeLong(this.rowCount);
+			dataOutput.writeInt(4);
+			writeFooterEntry(dataOutput, TIMESTAMP, DELTA_ENCODING, timestampColumn);
+			writeFooterEntry(dataOutput, LEVEL, DICTIONARY_ENCODING, levelColumn);
+			writeFooterEntry(dataOutput, LOGGER, DICTIONARY_ENCODING, loggerColumn);
+			writeFooterEntry(dataOutput, MESSAGE, STRING_ENCODING, messageColumn);
+			dataOutput.writeInt((int) (output.getCount() - footerStart));
+			dataOutput.writeInt(MAGIC);
+			dataOutput.flush();
+		}
+		finally
+		{
+			output.close();
+			this.reset();
+		}
+		return true;
+	}
+
+	/**
+	 * Delete the temporary column files and start over with no events
+	 */
+	public synchronized void close()
+	{
+		try
+		{
+			this.closeColumns();
+		}
+		catch (IOException ex)
+		{
+			// NOP
+		}
+		this.reset();
+	}
+
+	private void open() throws IOException
+	{
+		this.timestamps = openColumn(TIMESTAMP);
+		this.levels = openColumn(LEVEL);
+		this.loggers = openColumn(LOGGER);
+		this.messages = openColumn(MESSAGE);
+	}
+
+	private DataOutputStream openColumn(String name) throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.getTmpFile(name)),
+				BUFFER_SIZE));
+	}
+
+	private void closeColumns() throws IOException
+	{
+		for (final OutputStream eachColumn : new OutputStream[] { this.timestamps, this.levels, this.loggers,
+				this.messages })
+		{
+			if (null != eachColumn)
+			{
+				eachColumn.close();
+			}
+		}
+		this.timestamps = null;
+		this.levels = null;
+		this.loggers = null;
+		this.messages = null;
+	}
+
+	private void reset()
+	{
+		for (final String eachName : new String[] { TIMESTAMP, LEVEL, LOGGER, MESSAGE })
+		{
+			this.getTmpFile(eachName).delete();
+		}
+		this.levelDictionary.clear();
+		this.loggerDictionary.clear();
+		this.rowCount = 0;
+		this.lastTimestamp = 0;
+		this.failed = false;
+	}
+
+	/**
+	 * Deflate a column, with its dictionary first if it has one
+	 *
+	 * @return The column's offset and length in the file
+	 */
+	private long[] writeColumn(CountingOutputStream output, Map<String, Integer> dictionary, String name)
+			throws IOException
+	{
+		final long offset = output.getCount();
+		final Deflater deflater = new Deflater();
+		try
+		{
+			final OutputStream deflaterStream = new DeflaterOutputStream(new CloseShieldOutputStream(output), deflater,
+					BUFFER_SIZE);
+			if (null != dictionary)
+			{
+				writeVarLong(deflaterStream, dictionary.size());
+				for (final String eachValue : dictionary.keySet())
+				{
+					writeString(deflaterStream, eachValue);
+				}
+			}
+			final InputStream column = new FileInputStream(this.getTmpFile(name));
+			try
+			{
+				final byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = column.read(buffer)) != -1)
+				{
+					deflaterStream.write(buffer, 0, n);
+				}
+			}
+			finally
+			{
+				column.close();
+			}
+			deflaterStream.close();
+		}
+		finally
+		{
+			deflater.end();
+		}
+		return new long[] { offset, output.getCount() - offset };
+	}
+
+	private File getTmpFile(String name)
+	{
+		return new File(this.tmpBaseName + "." + name + ".tmp");
+	}
+
+	private static void writeFooterEntry(DataOutputStream output, String name, byte encoding, long[] column)
+			throws IOException
+	{
+		output.writeUTF(name);
+		output.writeByte(encoding);
+		output.writeLong(column[0]);
+		output.writeLong(column[1]);
+	}
+
+	private static int lookup(Map<String, Integer> dictionary, String value)
+	{
+		Integer index = dictionary.get(value);
+		if (null == index)
+		{
+			index = dictionary.size();
+			dictionary.put(value, index);
+		}
+		return index;
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void writeString(OutputStream output, String value) throws IOException
+	{
+		final byte[] bytes = (null != value) ? value.getBytes("UTF-8") : new byte[0];
+		writeVarLong(output, bytes.length);
+		output.write(bytes);
+	}
+
+	private static void writeVarLong(OutputStream output, long value) throws IOException
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			output.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+}
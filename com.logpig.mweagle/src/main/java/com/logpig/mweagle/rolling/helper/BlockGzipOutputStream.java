@@ -0,0 +1,319 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * GZIP OutputStream that writes a series of independent gzip members, in the style of <a
+ * href="http://samtools.github.io/hts-specs/SAMv1.pdf">BGZF</a>, so that a large file can be split across several
+ * readers. Any gzip reader decompresses the whole file as usual, since concatenated members are part of the gzip
+ * format.
+ * <p>
+ * Each member holds at most one block of input, and ends on the last newline in the block when there is one, so that
+ * every member starts at the beginning of a log line. The offsets of the members are kept as an index that can be
+ * written to a sidecar file with {@link #writeIndex(OutputStream)}. Unlike BGZF, members are not limited to 64KB and
+ * their sizes are in the index rather than in a header field.
+ * <p>
+ * When an executor is provided, members are compressed in parallel.
+ *
+ * @see S3Compressor
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class BlockGzipOutputStream extends OutputStream
+{
+	/**
+	 * Suffix of the index sidecar file
+	 */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private final OutputStream out;
+
+	private final ExecutorService executor;
+
+	private final int blockSize;
+
+	private final int level;
+
+	private final int maxBlocksInFlight;
+
+	private final LinkedList<Future<byte[]>> pendingMembers = new LinkedList<Future<byte[]>>();
+
+	private final LinkedList<Long> pendingOffsets = new LinkedList<Long>();
+
+	private final List<long[]> index = new ArrayList<long[]>();
+
+	private byte[] block;
+
+	private int count;
+
+	private long uncompressedOffset;
+
+	private long compressedOffset;
+
+	private boolean finished;
+
+	/**
+	 * Ctor
+	 *
+	 * @param out
+	 *            Stream that receives the gzip members
+	 * @param executor
+	 *            Executor that compresses the members, or null to compress them on the writing thread
+	 * @param threadCount
+	 *            Number of executor threads. Up to twice this many blocks are buffered at once.
+	 * @param blockSize
+	 *            Maximum uncompressed size of each member
+	 * @param level
+	 *            Deflate compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public BlockGzipOutputStream(OutputStream out, ExecutorService executor, int threadCount, int blockSize,
+			int level)
+	{
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.maxBlocksInFlight = (null != executor) ? 2 * threadCount : 0;
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (this.finished)
+		{
+			throw new IOException("write beyond end of stream");
+		}
+		while (length > 0)
+		{
+			final int copied = Math.min(length, this.blockSize - this.count);
+			System.arraycopy(bytes, offset, this.block, this.count, copied);
+			this.count += copied;
+			offset += copied;
+			length -= copied;
+			if (this.count == this.blockSize)
+			{
+				this.submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compress the remaining input without closing the underlying stream
+	 *
+	 * @throws IOException
+	 *             If the compressed data can't be written
+	 */
+	public void finish() throws IOException
+	{
+		if (this.finished)
+		{
+			return;
+		}
+		// An empty file still gets one (empty) member, as GZIPOutputStream would write
+		if (this.count > 0 || (this.index.isEmpty() && this.pendingMembers.isEmpty()))
+		{
+			this.submitMember(this.count);
+		}
+		while (!this.pendingMembers.isEmpty())
+		{
+			this.writeOldestMember();
+		}
+		this.finished = true;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			this.finish();
+		}
+		finally
+		{
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Write the member index after {@link #finish()}. The index is tab delimited text with one line per member,
+	 * <i>uncompressedOffset compressedOffset</i>, followed by a final line with the total uncompressed and compressed
+	 * lengths.
+	 *
+	 * @param indexStream
+	 *            Stream that receives the index. It is not closed.
+	 * @throws IOException
+	 *             If the index can't be written
+	 */
+	public void writeIndex(OutputStream indexStream) throws IOException
+	{
+		final Writer writer = new OutputStreamWriter(indexStream, "UTF-8");
+		for (final long[] eachEntry : this.index)
+		{
+			writer.write(eachEntry[0] + "\t" + eachEntry[1] + "\n");
+		}
+		writer.write(this.uncompressedOffset + "\t" + this.compressedOffset + "\n");
+		writer.flush();
+	}
+
+	private void submitBlock() throws IOException
+	{
+		int memberLength = this.count;
+		for (int i = this.count - 1; i >= 0; --i)
+		{
+			if ('\n' == this.block[i])
+			{
+				memberLength = i + 1;
+				break;
+			}
+		}
+		this.submitMember(memberLength);
+	}
+
+	private void submitMember(int memberLength) throws IOException
+	{
+		final byte[] memberBlock = this.block;
+		final int remainder = this.count - memberLength;
+		this.block = new byte[this.blockSize];
+		if (remainder > 0)
+		{
+			// The partial line starts the next member
+			System.arraycopy(memberBlock, memberLength, this.block, 0, remainder);
+		}
+		this.count = remainder;
+		final GzipMemberCallable member = new GzipMemberCallable(memberBlock, memberLength, this.level);
+		this.pendingOffsets.add(this.uncompressedOffset);
+		this.uncompressedOffset += memberLength;
+		if (null == this.executor)
+		{
+			this.writeMember(member.call());
+			return;
+		}
+		this.pendingMembers.add(this.executor.submit(member));
+		while (this.pendingMembers.size() > this.maxBlocksInFlight)
+		{
+			this.writeOldestMember();
+		}
+	}
+
+	private void writeOldestMember() throws IOException
+	{
+		try
+		{
+			this.writeMember(this.pendingMembers.removeFirst().get());
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException("Failed to compress block", ex.getCause());
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for compressed block", ex);
+		}
+	}
+
+	private void writeMember(byte[] member) throws IOException
+	{
+		this.index.add(new long[] { this.pendingOffsets.removeFirst(), this.compressedOffset });
+		this.out.write(member);
+		this.compressedOffset += member.length;
+	}
+
+	/**
+	 * Compresses one block into a complete gzip member
+	 */
+	private static class GzipMemberCallable implements Callable<byte[]>
+	{
+		private static final byte[] GZIP_HEADER = new byte[] { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0,
+				0, 0, 0, 0 };
+
+		private final byte[] input;
+
+		private final int length;
+
+		private final int level;
+
+		public GzipMemberCallable(byte[] input, int length, int level)
+		{
+			this.input = input;
+			this.length = length;
+			this.level = level;
+		}
+
+		@Override
+		public byte[] call()
+		{
+			final Deflater deflater = new Deflater(this.level, true);
+			try
+			{
+				final ByteArrayOutputStream member = new ByteArrayOutputStream(this.length / 2 + 64);
+				member.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+				deflater.setInput(this.input, 0, this.length);
+				deflater.finish();
+				final byte[] buffer = new byte[64 * 1024];
+				while (!deflater.finished())
+				{
+					final int n = deflater.deflate(buffer);
+					member.write(buffer, 0, n);
+				}
+				final CRC32 crc = new CRC32();
+				crc.update(this.input, 0, this.length);
+				writeIntLE(member, (int) crc.getValue());
+				writeIntLE(member, this.length);
+				return member.toByteArray();
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+
+		private static void writeIntLE(ByteArrayOutputStream out, int value)
+		{
+			out.write(value & 0xff);
+			out.write((value >> 8) & 0xff);
+			out.write((value >> 16) & 0xff);
+			out.write((value >> 24) & 0xff);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File OutputStream that collects writes in a large direct buffer and writes them to a FileChannel as a group.
+ * <p>
+ * Encoders flush after every event, which on a plain FileOutputStream is a write syscall per event. Here a flush
+ * only writes the buffer to the channel if <i>flushInterval</i> milliseconds have passed since it was last written,
+ * so a burst of events costs one syscall per buffer. {@link #drain()} writes the buffer unconditionally; the owner
+ * calls it on a timer so that an idle log still reaches the file within the interval.
+ * <p>
+ * The file's length lags the bytes written by at most one buffer. On {@link #close()} the buffer is written and the
+ * file is truncated at the channel position, so the closed file holds exactly the bytes written to it.
+ * <p>
+ * Not thread safe; callers hold the appender's lock.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class ChannelFileOutputStream extends OutputStream
+{
+	private final FileOutputStream fileStream;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
+
+	private final long flushInterval;
+
+	private long lastDrainTime = System.currentTimeMillis();
+
+	/**
+	 * Ctor
+	 *
+	 * @param file
+	 *            File to write
+	 * @param append
+	 *            If true, writes are added to the end of an existing file. Otherwise it is truncated.
+	 * @param bufferSize
+	 *            Size of the direct write buffer in bytes
+	 * @param flushInterval
+	 *            Milliseconds that a flush may leave bytes in the buffer
+	 * @throws IOException
+	 *             If the file can't be opened
+	 */
+	public ChannelFileOutputStream(File file, boolean append, int bufferSize, long flushInterval) throws IOException
+	{
+		this.fileStream = new FileOutputStream(file, append);
+		this.channel = this.fileStream.getChannel();
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.flushInterval = flushInterval;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (!this.buffer.hasRemaining())
+		{
+			this.drain();
+		}
+		this.buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length > this.buffer.remaining())
+		{
+			this.drain();
+			if (length > this.buffer.capacity())
+			{
+				// Too big to buffer, so write it straight through
+				this.writeFully(ByteBuffer.wrap(bytes, offset, length));
+				return;
+			}
+		}
+		this.buffer.put(bytes, offset, length);
+	}
+
+	/**
+	 * Write the buffer to the channel if the flush interval has elapsed
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (System.currentTimeMillis() - this.lastDrainTime >= this.flushInterval)
+		{
+			this.drain();
+		}
+	}
+
+	/**
+	 * Write the buffer to the channel
+	 *
+	 * @throws IOException
+	 *             If the channel can't be written
+	 */
+	public void drain() throws IOException
+	{
+		this.lastDrainTime = System.currentTimeMillis();
+		if (0 == this.buffer.position())
+		{
+			return;
+		}
+		this.buffer.flip();
+		try
+		{
+			this.writeFully(this.buffer);
+		}
+		finally
+		{
+			this.buffer.clear();
+		}
+	}
+
+	/**
+	 * Write the buffer, truncate the file at the last byte written, and close it
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (!this.channel.isOpen())
+		{
+			return;
+		}
+		try
+		{
+			this.drain();
+			this.channel.truncate(this.channel.position());
+		}
+		finally
+		{
+			this.fileStream.close();
+		}
+	}
+
+	private void writeFully(ByteBuffer source) throws IOException
+	{
+		while (source.hasRemaining())
+		{
+			this.channel.write(source);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FilterOutputStream whose close only flushes, so that a compressing stream can write its trailer and be closed
+ * without closing the caller's stream
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class CloseShieldOutputStream extends FilterOutputStream
+{
+	/**
+	 * Ctor
+	 *
+	 * @param out
+	 *            Stream that is left open
+	 */
+	public CloseShieldOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		this.out.write(bytes, offset, length);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.out.flush();
+	}
+}
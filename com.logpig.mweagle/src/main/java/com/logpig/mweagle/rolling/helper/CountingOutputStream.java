@@ -0,0 +1,63 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FilterOutputStream that counts the bytes written through it
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class CountingOutputStream extends FilterOutputStream
+{
+	private long count;
+
+	/**
+	 * Ctor
+	 *
+	 * @param out
+	 *            Stream that receives the bytes
+	 */
+	public CountingOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.out.write(b);
+		this.count += 1;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		this.out.write(bytes, offset, length);
+		this.count += length;
+	}
+
+	/**
+	 * @return Number of bytes written so far
+	 */
+	public long getCount()
+	{
+		return this.count;
+	}
+}
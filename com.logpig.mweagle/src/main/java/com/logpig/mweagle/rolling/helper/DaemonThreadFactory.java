@@ -0,0 +1,50 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that background compression and upload work never keeps the JVM alive
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+	private final String namePrefix;
+
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	/**
+	 * Ctor
+	 *
+	 * @param namePrefix
+	 *            Thread name prefix. Each thread name is the prefix followed by a sequence number.
+	 */
+	public DaemonThreadFactory(String namePrefix)
+	{
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		final Thread thread = new Thread(runnable, this.namePrefix + this.threadNumber.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in milliseconds. Bucket <i>i</i> counts durations up to 2^i ms, and the last
+ * bucket counts everything longer, so percentiles are accurate to within a factor of two.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Number of buckets. The last bounded bucket holds durations up to 2^(BUCKET_COUNT - 2) ms, about two minutes.
+	 */
+	public static final int BUCKET_COUNT = 19;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Add a duration
+	 *
+	 * @param millis
+	 *            Duration in milliseconds
+	 */
+	public void record(long millis)
+	{
+		final long value = Math.max(0, millis);
+		this.buckets.incrementAndGet(getBucket(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value))
+		{
+			current = this.max.get();
+		}
+	}
+
+	/**
+	 * @return Number of durations recorded
+	 */
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	/**
+	 * @return Mean duration in milliseconds, or zero if nothing was recorded
+	 */
+	public double getMean()
+	{
+		final long n = this.count.get();
+		return (0 == n) ? 0 : (double) this.total.get() / n;
+	}
+
+	/**
+	 * @return Longest duration in milliseconds
+	 */
+	public long getMax()
+	{
+		return this.max.get();
+	}
+
+	/**
+	 * Upper bound of the bucket that holds the given percentile
+	 *
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Duration in milliseconds, or zero if nothing was recorded. Durations past the last bounded bucket
+	 *         report the longest duration seen.
+	 */
+	public long getPercentile(double percentile)
+	{
+		final long n = this.count.get();
+		if (0 == n)
+		{
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT - 1; i++)
+		{
+			seen += this.buckets.get(i);
+			if (seen >= rank)
+			{
+				return Math.min(1L << i, this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * @return Count in each bucket
+	 */
+	public long[] getBucketCounts()
+	{
+		final long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = this.buckets.get(i);
+		}
+		return counts;
+	}
+
+	private static int getBucket(long millis)
+	{
+		if (millis <= 1)
+		{
+			return 0;
+		}
+		// Smallest i such that millis <= 2^i
+		final int bucket = 64 - Long.numberOfLeadingZeros(millis - 1);
+		return Math.min(bucket, BUCKET_COUNT - 1);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer thread, backed by a ring of preallocated
+ * slots.
+ * <p>
+ * Each slot carries a sequence number that says whose turn it is. A producer claims the next slot by advancing the
+ * tail with a compare-and-set, writes the element, and then publishes it by moving the slot's sequence forward.
+ * The consumer takes published slots in order and hands each back to the producers one lap later. Neither side
+ * ever takes a lock, and a full ring is reported rather than waited on, so the caller decides what to do.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class MpscRingBuffer<E>
+{
+	private final Object[] slots;
+
+	private final AtomicLongArray sequences;
+
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Written only by the consumer
+	 */
+	private volatile long head;
+
+	/**
+	 * Ctor
+	 *
+	 * @param capacity
+	 *            Number of slots. Must be a power of two.
+	 */
+	public MpscRingBuffer(int capacity)
+	{
+		if (capacity < 1 || Integer.bitCount(capacity) != 1)
+		{
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+		}
+		this.slots = new Object[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; ++i)
+		{
+			this.sequences.set(i, i);
+		}
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Add an element. Safe to call from any thread.
+	 *
+	 * @param element
+	 *            Element to add. Must not be null.
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element)
+	{
+		while (true)
+		{
+			final long claim = this.tail.get();
+			final int index = (int) claim & this.mask;
+			final long available = this.sequences.get(index) - claim;
+			if (0 == available)
+			{
+				if (this.tail.compareAndSet(claim, claim + 1))
+				{
+					this.slots[index] = element;
+					// Publish the element to the consumer
+					this.sequences.lazySet(index, claim + 1);
+					return true;
+				}
+			}
+			else if (available < 0)
+			{
+				// The consumer hasn't freed this slot from the last lap yet
+				return false;
+			}
+			// Otherwise another producer claimed the slot first, so try the next one
+		}
+	}
+
+	/**
+	 * Take the oldest element. Must only be called from the consumer thread.
+	 *
+	 * @return The oldest element, or null if the ring is empty or the next element is not yet published
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll()
+	{
+		final long next = this.head;
+		final int index = (int) next & this.mask;
+		if (this.sequences.get(index) != next + 1)
+		{
+			return null;
+		}
+		final E element = (E) this.slots[index];
+		this.slots[index] = null;
+		// Hand the slot back to the producers for their next lap
+		this.sequences.lazySet(index, next + this.slots.length);
+		this.head = next + 1;
+		return element;
+	}
+
+	/**
+	 * @return Number of elements claimed by producers but not yet taken by the consumer
+	 */
+	public int size()
+	{
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/**
+	 * @return Number of elements ever claimed by producers
+	 */
+	public long getClaimedCount()
+	{
+		return this.tail.get();
+	}
+
+	/**
+	 * @return Number of elements ever taken by the consumer
+	 */
+	public long getConsumedCount()
+	{
+		return this.head;
+	}
+
+	public int getCapacity()
+	{
+		return this.slots.length;
+	}
+}
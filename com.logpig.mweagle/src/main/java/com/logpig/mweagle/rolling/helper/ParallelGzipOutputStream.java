@@ -0,0 +1,281 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * GZIP OutputStream that compresses fixed size blocks of input in parallel, in the style of <a
+ * href="http://zlib.net/pigz/">pigz</a>.
+ * <p>
+ * Each block is deflated independently, primed with the last 32KB of the previous block as a preset dictionary, and
+ * ended with a sync flush so that the blocks can be concatenated. The result is a single standard gzip member that
+ * any gzip reader can decompress. The CRC32 of the whole input is computed by the writing thread as blocks are
+ * submitted.
+ *
+ * @see S3Compressor
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class ParallelGzipOutputStream extends OutputStream
+{
+	/**
+	 * Deflate window size, and the amount of the previous block used as the dictionary for the next one
+	 */
+	public static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final byte[] GZIP_HEADER = new byte[] { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+			0, 0, 0 };
+
+	private final OutputStream out;
+
+	private final ExecutorService executor;
+
+	private final int blockSize;
+
+	private final int level;
+
+	private final int maxBlocksInFlight;
+
+	private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+	private final CRC32 crc = new CRC32();
+
+	private byte[] block;
+
+	private int count;
+
+	private byte[] dictionary;
+
+	private long totalIn;
+
+	private boolean finished;
+
+	/**
+	 * Ctor
+	 *
+	 * @param out
+	 *            Stream that receives the gzip data
+	 * @param executor
+	 *            Executor that deflates the blocks
+	 * @param threadCount
+	 *            Number of executor threads. Up to twice this many blocks are buffered at once.
+	 * @param blockSize
+	 *            Uncompressed block size in bytes. Must be at least {@link #DICTIONARY_SIZE}.
+	 * @param level
+	 *            Deflate compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @throws IOException
+	 *             If the gzip header can't be written
+	 */
+	public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threadCount, int blockSize,
+			int level) throws IOException
+	{
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.maxBlocksInFlight = 2 * threadCount;
+		this.block = new byte[blockSize];
+		this.out.write(GZIP_HEADER);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (this.finished)
+		{
+			throw new IOException("write beyond end of stream");
+		}
+		while (length > 0)
+		{
+			final int copied = Math.min(length, this.blockSize - this.count);
+			System.arraycopy(bytes, offset, this.block, this.count, copied);
+			this.count += copied;
+			offset += copied;
+			length -= copied;
+			if (this.count == this.blockSize)
+			{
+				this.submitBlock(false);
+			}
+		}
+	}
+
+	/**
+	 * Compress the remaining input and write the gzip trailer without closing the underlying stream
+	 *
+	 * @throws IOException
+	 *             If the compressed data can't be written
+	 */
+	public void finish() throws IOException
+	{
+		if (this.finished)
+		{
+			return;
+		}
+		this.submitBlock(true);
+		while (!this.pendingBlocks.isEmpty())
+		{
+			this.writeOldestBlock();
+		}
+		writeIntLE(this.out, (int) this.crc.getValue());
+		writeIntLE(this.out, (int) this.totalIn);
+		this.finished = true;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			this.finish();
+		}
+		finally
+		{
+			this.out.close();
+		}
+	}
+
+	private void submitBlock(boolean lastBlock) throws IOException
+	{
+		this.crc.update(this.block, 0, this.count);
+		this.totalIn += this.count;
+		this.pendingBlocks.add(this.executor.submit(new DeflateBlockCallable(this.block, this.count, this.dictionary,
+				lastBlock, this.level)));
+		if (!lastBlock)
+		{
+			// The tail of this block primes the next one
+			this.dictionary = new byte[DICTIONARY_SIZE];
+			System.arraycopy(this.block, this.count - DICTIONARY_SIZE, this.dictionary, 0, DICTIONARY_SIZE);
+			this.block = new byte[this.blockSize];
+			this.count = 0;
+		}
+		while (this.pendingBlocks.size() > this.maxBlocksInFlight)
+		{
+			this.writeOldestBlock();
+		}
+	}
+
+	private void writeOldestBlock() throws IOException
+	{
+		try
+		{
+			this.out.write(this.pendingBlocks.removeFirst().get());
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException("Failed to compress block", ex.getCause());
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for compressed block", ex);
+		}
+	}
+
+	private static void writeIntLE(OutputStream out, int value) throws IOException
+	{
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+
+	/**
+	 * Raw deflates a single block
+	 */
+	private static class DeflateBlockCallable implements Callable<byte[]>
+	{
+		private final byte[] input;
+
+		private final int length;
+
+		private final byte[] dictionary;
+
+		private final boolean lastBlock;
+
+		private final int level;
+
+		public DeflateBlockCallable(byte[] input, int length, byte[] dictionary, boolean lastBlock, int level)
+		{
+			this.input = input;
+			this.length = length;
+			this.dictionary = dictionary;
+			this.lastBlock = lastBlock;
+			this.level = level;
+		}
+
+		@Override
+		public byte[] call()
+		{
+			final Deflater deflater = new Deflater(this.level, true);
+			try
+			{
+				if (null != this.dictionary)
+				{
+					deflater.setDictionary(this.dictionary);
+				}
+				deflater.setInput(this.input, 0, this.length);
+				final ByteArrayOutputStream compressed = new ByteArrayOutputStream(this.length / 2 + 64);
+				final byte[] buffer = new byte[64 * 1024];
+				if (this.lastBlock)
+				{
+					deflater.finish();
+					while (!deflater.finished())
+					{
+						final int n = deflater.deflate(buffer);
+						compressed.write(buffer, 0, n);
+					}
+				}
+				else
+				{
+					// A sync flush ends the block on a byte boundary without marking it final
+					int n;
+					do
+					{
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						compressed.write(buffer, 0, n);
+					}
+					while (n == buffer.length);
+				}
+				return compressed.toByteArray();
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+	}
+}
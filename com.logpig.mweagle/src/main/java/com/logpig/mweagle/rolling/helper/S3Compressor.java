@@ -15,13 +15,58 @@
  */
 package com.logpig.mweagle.rolling.helper;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 import ch.qos.logback.core.rolling.helper.CompressionMode;
 import ch.qos.logback.core.rolling.helper.Compressor;
+import ch.qos.logback.core.status.ErrorStatus;
+import ch.qos.logback.core.status.WarnStatus;
+
+import com.logpig.mweagle.rolling.codec.CompressionCodec;
 
+/**
+ * Compressor that can also compress into a stream, and that can gzip large files on several threads using
+ * {@link ParallelGzipOutputStream}. Parallel compression is used in GZ mode when the thread count is greater than
+ * one; the output is still a single gzip member.
+ * <p>
+ * In GZ mode the output can instead be made splittable, as a series of independent gzip members written by
+ * {@link BlockGzipOutputStream}, with a member index written next to the compressed file.
+ * <p>
+ * A {@link CompressionCodec} takes the place of logback's GZ and ZIP modes when one is set, and the compression
+ * level applies to whichever of them is in use.
+ */
 public class S3Compressor extends Compressor
 {
+	public final static int DEFAULT_THREAD_COUNT = 1;
+
+	public final static int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
 	final private CompressionMode mode;
 
+	private int threadCount = DEFAULT_THREAD_COUNT;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private CompressionCodec codec;
+
+	private int level = CompressionCodec.DEFAULT_LEVEL;
+
+	private boolean splittable;
+
+	private ExecutorService executor;
+
 	public S3Compressor(CompressionMode compressionMode)
 	{
 		super(compressionMode);
@@ -32,4 +77,346 @@ public class S3Compressor extends Compressor
 	{
 		return mode;
 	}
+
+	public int getThreadCount()
+	{
+		return threadCount;
+	}
+
+	public void setThreadCount(int threadCount)
+	{
+		this.threadCount = threadCount;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public void setBlockSize(int blockSize)
+	{
+		this.blockSize = blockSize;
+	}
+
+	public CompressionCodec getCodec()
+	{
+		return codec;
+	}
+
+	public void setCodec(CompressionCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public void setLevel(int level)
+	{
+		this.level = level;
+	}
+
+	public boolean isSplittable()
+	{
+		return splittable;
+	}
+
+	public void setSplittable(boolean splittable)
+	{
+		this.splittable = splittable;
+	}
+
+	/**
+	 * @return true if a codec is set or the mode is GZ or ZIP
+	 */
+	public boolean isCompressing()
+	{
+		return null != codec || CompressionMode.NONE != mode;
+	}
+
+	/**
+	 * @return Suffix of compressed file names, including the leading period, or an empty string if nothing is
+	 *         compressed
+	 */
+	public String getFileSuffix()
+	{
+		if (null != codec)
+		{
+			return codec.getFileSuffix();
+		}
+		switch (mode)
+		{
+			case GZ:
+				return ".gz";
+			case ZIP:
+				return ".zip";
+			default:
+				return "";
+		}
+	}
+
+	/**
+	 * Same checks and naming as the logback implementation, for every codec and mode
+	 */
+	@Override
+	public void compress(String nameOfFile2Compress, String nameOfCompressedFile, String innerEntryName)
+	{
+		compressAndDigest(nameOfFile2Compress, nameOfCompressedFile, innerEntryName, null);
+	}
+
+	/**
+	 * Compress a file to local disk, as {@link #compress(String, String, String)} does, and update a digest with the
+	 * compressed bytes as they are written so that the file doesn't need to be read back to checksum it.
+	 * 
+	 * @param nameOfFile2Compress
+	 *            Source filename
+	 * @param nameOfCompressedFile
+	 *            Target filename.  The file suffix is appended if it's missing.
+	 * @param innerEntryName
+	 *            The name of the file within the zip file. Use for ZIP compression.
+	 * @param digest
+	 *            Digest that is updated with the compressed bytes.  May be null.
+	 * @return true if the compressed file was written, and the digest covers all of it
+	 */
+	public boolean compressAndDigest(String nameOfFile2Compress, String nameOfCompressedFile, String innerEntryName,
+			MessageDigest digest)
+	{
+		if (!isCompressing())
+		{
+			throw new UnsupportedOperationException("compress method called in NONE compression mode");
+		}
+		final File file2Compress = new File(nameOfFile2Compress);
+		if (!file2Compress.exists())
+		{
+			addStatus(new WarnStatus("The file to compress named [" + nameOfFile2Compress + "] does not exist.", this));
+			return false;
+		}
+		if (!nameOfCompressedFile.endsWith(getFileSuffix()))
+		{
+			nameOfCompressedFile = nameOfCompressedFile + getFileSuffix();
+		}
+		final File compressedFile = new File(nameOfCompressedFile);
+		if (compressedFile.exists())
+		{
+			addStatus(new WarnStatus("The target compressed file named [" + nameOfCompressedFile
+					+ "] exist already.", this));
+			return false;
+		}
+		try
+		{
+			OutputStream fos = new FileOutputStream(compressedFile);
+			if (null != digest)
+			{
+				fos = new DigestOutputStream(fos, digest);
+			}
+			try
+			{
+				compress(nameOfFile2Compress, fos, innerEntryName, nameOfCompressedFile);
+			}
+			finally
+			{
+				fos.close();
+			}
+			if (!file2Compress.delete())
+			{
+				addStatus(new WarnStatus("Could not delete [" + nameOfFile2Compress + "].", this));
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			addStatus(new ErrorStatus("Error occurred while compressing [" + nameOfFile2Compress + "] into ["
+					+ nameOfCompressedFile + "].", this, e));
+			return false;
+		}
+	}
+
+	/**
+	 * Release the compression threads.  They are recreated if needed.
+	 */
+	public synchronized void shutdown()
+	{
+		if (null != executor)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Compress a file into an arbitrary stream rather than a local file. The source file is left in place and the
+	 * target stream is left open so that the caller decides what to do with both.
+	 * 
+	 * @param nameOfFile2Compress
+	 *            Source filename
+	 * @param target
+	 *            Stream that receives the compressed bytes
+	 * @param innerEntryName
+	 *            The name of the file within the zip file. Use for ZIP compression.
+	 * @throws IOException
+	 *             If the source can't be read or the target can't be written
+	 */
+	public void compress(String nameOfFile2Compress, OutputStream target, String innerEntryName) throws IOException
+	{
+		compress(nameOfFile2Compress, target, innerEntryName, null);
+	}
+
+	/**
+	 * Compress a file into an arbitrary stream, and write any sidecar files, such as the splittable gzip index, next
+	 * to the named compressed file. The source file is left in place and the target stream is left open.
+	 * 
+	 * @param nameOfFile2Compress
+	 *            Source filename
+	 * @param target
+	 *            Stream that receives the compressed bytes
+	 * @param innerEntryName
+	 *            The name of the file within the zip file. Use for ZIP compression.
+	 * @param nameOfCompressedFile
+	 *            Name of the compressed file that sidecar names are based on, whether or not it exists locally.  May
+	 *            be null, in which case no sidecars are written.
+	 * @throws IOException
+	 *             If the source can't be read or the target or sidecars can't be written
+	 */
+	public void compress(String nameOfFile2Compress, OutputStream target, String innerEntryName,
+			String nameOfCompressedFile) throws IOException
+	{
+		if (null != codec || (CompressionMode.GZ == mode && !splittable))
+		{
+			if (null != codec)
+			{
+				addInfo(codec.getName() + " compressing [" + nameOfFile2Compress + "].");
+			}
+			else if (isParallel())
+			{
+				addInfo("GZ compressing [" + nameOfFile2Compress + "] on " + threadCount + " threads.");
+			}
+			else
+			{
+				addInfo("GZ compressing [" + nameOfFile2Compress + "].");
+			}
+			final OutputStream compressedStream = createOutputStream(target);
+			copy(nameOfFile2Compress, compressedStream);
+			// Writes the trailer
+			compressedStream.close();
+			return;
+		}
+		switch (mode)
+		{
+			case GZ:
+				addInfo("GZ compressing [" + nameOfFile2Compress + "] into splittable blocks.");
+				final ExecutorService blockExecutor = (threadCount > 1) ? getExecutor() : null;
+				final BlockGzipOutputStream blockStream = new BlockGzipOutputStream(target, blockExecutor,
+						threadCount, blockSize, level);
+				copy(nameOfFile2Compress, blockStream);
+				blockStream.finish();
+				if (null != nameOfCompressedFile)
+				{
+					writeIndex(blockStream, nameOfCompressedFile + BlockGzipOutputStream.INDEX_SUFFIX);
+				}
+				break;
+			case ZIP:
+				addInfo("ZIP compressing [" + nameOfFile2Compress + "].");
+				final ZipOutputStream zipStream = new ZipOutputStream(target);
+				zipStream.setLevel(level);
+				zipStream.putNextEntry(new ZipEntry(Compressor.computeFileNameStr_WCS(innerEntryName, mode)));
+				copy(nameOfFile2Compress, zipStream);
+				zipStream.finish();
+				break;
+			default:
+				throw new UnsupportedOperationException("compress method called in NONE compression mode");
+		}
+	}
+
+	/**
+	 * Wrap a stream so that whatever is written to it is compressed with the codec, or gzipped in GZ mode.  Closing
+	 * the returned stream writes the trailer and leaves the target open.  The splittable setting doesn't apply, since
+	 * there's no compressed file for the index to sit next to.
+	 * 
+	 * @param target
+	 *            Stream that receives the compressed bytes
+	 * @return Compressing stream
+	 * @throws IOException
+	 *             If the header can't be written
+	 */
+	public OutputStream createOutputStream(OutputStream target) throws IOException
+	{
+		final OutputStream shieldedTarget = new CloseShieldOutputStream(target);
+		if (null != codec)
+		{
+			return codec.createOutputStream(shieldedTarget, level);
+		}
+		if (CompressionMode.GZ != mode)
+		{
+			throw new UnsupportedOperationException("createOutputStream called in " + mode + " compression mode");
+		}
+		return isParallel() ? createParallelGzipStream(shieldedTarget) : new LevelGZIPOutputStream(shieldedTarget,
+				level);
+	}
+
+	private boolean isParallel()
+	{
+		return mode == CompressionMode.GZ && threadCount > 1;
+	}
+
+	private ParallelGzipOutputStream createParallelGzipStream(OutputStream target) throws IOException
+	{
+		return new ParallelGzipOutputStream(target, getExecutor(), threadCount, blockSize, level);
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (null == executor)
+		{
+			executor = Executors.newFixedThreadPool(threadCount, new DaemonThreadFactory("logpig-gzip-"));
+		}
+		return executor;
+	}
+
+	private static void writeIndex(BlockGzipOutputStream blockStream, String indexFileName) throws IOException
+	{
+		final OutputStream indexStream = new FileOutputStream(indexFileName);
+		try
+		{
+			blockStream.writeIndex(indexStream);
+		}
+		finally
+		{
+			indexStream.close();
+		}
+	}
+
+	/**
+	 * Copy the source file into the compressed stream
+	 */
+	private static void copy(String nameOfFile2Compress, OutputStream compressedStream) throws IOException
+	{
+		final InputStream source = new FileInputStream(nameOfFile2Compress);
+		try
+		{
+			final byte[] inbuf = new byte[8192];
+			int n;
+			while ((n = source.read(inbuf)) != -1)
+			{
+				compressedStream.write(inbuf, 0, n);
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/**
+	 * GZIPOutputStream with a configurable deflate level
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream
+	{
+		public LevelGZIPOutputStream(OutputStream out, int level) throws IOException
+		{
+			super(out, 8192);
+			this.def.setLevel(level);
+		}
+	}
 }
@@ -0,0 +1,358 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bloom filter of the tokens in the events written to one rolled file, posted next to its S3 object with a
+ * {@link #SUFFIX} suffix, so that a search for a request or user ID only downloads the objects that may contain it.
+ * Tokens are the matches of a pattern in each message, or the pattern's first capturing group if it has one.
+ * <p>
+ * The number of distinct tokens isn't known until the file is rolled, so the filter is built at its largest size
+ * and then folded in half, by OR-ing its halves together, as long as the false positive rate stays under the
+ * target. The size is a power of two, so a token's bits in the folded filter are its bits in the large one modulo
+ * the smaller size.
+ * <p>
+ * A filter is written as the {@link #MAGIC} number, the number of hash functions (int), the number of 64 bit words
+ * (int) and the words (longs). The sidecar of an object built from several files, such as a coalesced batch, holds
+ * each file's filter back to back, and a token may be in the object if any of them might contain it.
+ *
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class TokenBloomFilter
+{
+	/**
+	 * Suffix of the filter sidecar file
+	 */
+	public static final String SUFFIX = ".bloom";
+
+	/**
+	 * "LPB1"
+	 */
+	public static final int MAGIC = 0x4c504231;
+
+	/**
+	 * Default token pattern: runs of letters, digits, underscores and dashes, which keeps UUIDs whole
+	 */
+	public static final String DEFAULT_TOKEN_PATTERN = "[\\w\\-]+";
+
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	/**
+	 * Smallest folded size, in 64 bit words
+	 */
+	private static final int MIN_WORDS = 8;
+
+	private final Pattern tokenPattern;
+
+	private final double falsePositiveRate;
+
+	private final int hashCount;
+
+	private long[] words;
+
+	/**
+	 * Ctor
+	 *
+	 * @param tokenPattern
+	 *            Pattern that finds the tokens in a message
+	 * @param falsePositiveRate
+	 *            Target rate at which a token that isn't in the file is reported as possibly present
+	 * @param maxSize
+	 *            Size of the filter in bytes while the file is written, rounded down to a power of two. Filters with
+	 *            more distinct tokens than this size allows for have a higher false positive rate.
+	 */
+	public TokenBloomFilter(Pattern tokenPattern, double falsePositiveRate, int maxSize)
+	{
+		this.tokenPattern = tokenPattern;
+		this.falsePositiveRate = falsePositiveRate;
+		this.hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+		this.words = new long[Integer.highestOneBit(Math.max(MIN_WORDS * 8, maxSize) / 8)];
+	}
+
+	private TokenBloomFilter(int hashCount, long[] words)
+	{
+		this.tokenPattern = null;
+		this.falsePositiveRate = 0;
+		this.hashCount = hashCount;
+		this.words = words;
+	}
+
+	/**
+	 * Add the tokens found in a message
+	 *
+	 * @param message
+	 *            Formatted event message
+	 */
+	public synchronized void addTokens(String message)
+	{
+		if (null == message)
+		{
+			return;
+		}
+		final Matcher matcher = this.tokenPattern.matcher(message);
+		final boolean hasGroup = matcher.groupCount() > 0;
+		while (matcher.find())
+		{
+			final String token = hasGroup ? matcher.group(1) : matcher.group();
+			if (null != token && !token.isEmpty())
+			{
+				this.add(token);
+			}
+		}
+	}
+
+	/**
+	 * Add a single token
+	 *
+	 * @param token
+	 *            Token
+	 */
+	public synchronized void add(String token)
+	{
+		final long hash = hash(token);
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32) | 1;
+		final int mask = this.words.length * 64 - 1;
+		for (int i = 0; i < this.hashCount; ++i)
+		{
+			final int bit = (h1 + i * h2) & mask;
+			this.words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param token
+	 *            Token to look for
+	 * @return false if the token is certainly not in the file, true if it may be
+	 */
+	public synchronized boolean mightContain(String token)
+	{
+		final long hash = hash(token);
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32) | 1;
+		final int mask = this.words.length * 64 - 1;
+		for (int i = 0; i < this.hashCount; ++i)
+		{
+			final int bit = (h1 + i * h2) & mask;
+			if (0 == (this.words[bit >>> 6] & (1L << bit)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the tokens added so far, folded down to the smallest size that keeps to the false positive rate, and
+	 * start over with no tokens
+	 *
+	 * @param target
+	 *            Filter file. Replaced if it exists.
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public synchronized void finish(File target) throws IOException
+	{
+		long[] folded = this.words;
+		while (folded.length > MIN_WORDS)
+		{
+			final long[] half = fold(folded);
+			if (Math.pow(getFillRatio(half), this.hashCount) > this.falsePositiveRate)
+			{
+				break;
+			}
+			folded = half;
+		}
+		try
+		{
+			new TokenBloomFilter(this.hashCount, folded).write(target);
+		}
+		finally
+		{
+			Arrays.fill(this.words, 0);
+		}
+	}
+
+	/**
+	 * Write the filter as it is
+	 *
+	 * @param target
+	 *            Filter file. Replaced if it exists.
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public synchronized void write(File target) throws IOException
+	{
+		final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+		try
+		{
+			output.writeInt(MAGIC);
+			output.writeInt(this.hashCount);
+			output.writeInt(this.words.length);
+			for (final long eachWord : this.words)
+			{
+				output.writeLong(eachWord);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	/**
+	 * Read the filters in a sidecar file
+	 *
+	 * @param file
+	 *            Filter file
+	 * @return The filters, one per file the object was built from
+	 * @throws IOException
+	 *             If the file can't be read or isn't a filter
+	 */
+	public static List<TokenBloomFilter> readAll(File file) throws IOException
+	{
+		final InputStream input = new FileInputStream(file);
+		try
+		{
+			return readAll(input);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Read the filters in a sidecar, for instance straight from an S3 object's content. The stream is not closed.
+	 *
+	 * @param input
+	 *            Filter data
+	 * @return The filters, one per file the object was built from
+	 * @throws IOException
+	 *             If the stream can't be read or isn't a filter
+	 */
+	public static List<TokenBloomFilter> readAll(InputStream input) throws IOException
+	{
+		final List<TokenBloomFilter> filters = new ArrayList<TokenBloomFilter>();
+		final DataInputStream dataInput = new DataInputStream(new BufferedInputStream(input));
+		int magic;
+		while (-1 != (magic = readMagic(dataInput)))
+		{
+			if (MAGIC != magic)
+			{
+				throw new IOException("Not a token Bloom filter");
+			}
+			final int hashCount = dataInput.readInt();
+			final int wordCount = dataInput.readInt();
+			if (hashCount < 1 || wordCount < 1 || Integer.bitCount(wordCount) != 1)
+			{
+				throw new IOException("Malformed token Bloom filter");
+			}
+			final long[] words = new long[wordCount];
+			for (int i = 0; i < wordCount; ++i)
+			{
+				words[i] = dataInput.readLong();
+			}
+			filters.add(new TokenBloomFilter(hashCount, words));
+		}
+		return filters;
+	}
+
+	/**
+	 * @return The next filter's magic number, or -1 at the end of the stream
+	 */
+	private static int readMagic(DataInputStream input) throws IOException
+	{
+		final int first = input.read();
+		if (-1 == first)
+		{
+			return -1;
+		}
+		return (first << 24) | (input.readUnsignedByte() << 16) | (input.readUnsignedShort());
+	}
+
+	/**
+	 * @return Size of the filter in bytes
+	 */
+	public synchronized int getSize()
+	{
+		return this.words.length * 8;
+	}
+
+	/**
+	 * @return Fraction of the filter's bits that are set
+	 */
+	public synchronized double getFillRatio()
+	{
+		return getFillRatio(this.words);
+	}
+
+	private static double getFillRatio(long[] words)
+	{
+		long setBits = 0;
+		for (final long eachWord : words)
+		{
+			setBits += Long.bitCount(eachWord);
+		}
+		return (double) setBits / (words.length * 64.0);
+	}
+
+	private static long[] fold(long[] words)
+	{
+		final long[] half = new long[words.length / 2];
+		for (int i = 0; i < half.length; ++i)
+		{
+			half[i] = words[i] | words[i + half.length];
+		}
+		return half;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the token's chars, with a final mix so that both halves are usable hashes
+	 */
+	private static long hash(String token)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < token.length(); ++i)
+		{
+			hash ^= token.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
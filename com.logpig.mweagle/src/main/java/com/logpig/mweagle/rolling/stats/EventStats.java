@@ -0,0 +1,418 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.stats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of the events written to one rolled file, posted next to its S3 object with a {@link #SUFFIX} suffix.
+ * Aggregate queries, such as the totals and averages computed by <i>pig/pigTest.pig</i>, can read the summaries
+ * instead of every line of every object, and summaries of several objects can be combined with {@link #merge}.
+ * <p>
+ * Summary lines are tab delimited:
+ * <ul>
+ * <li><i>events count</i></li>
+ * <li><i>timestamps minMillis maxMillis</i></li>
+ * <li><i>level levelName count</i></li>
+ * <li><i>field fieldName count sum min max</i></li>
+ * <li><i>value fieldName value count</i></li>
+ * </ul>
+ * There is a <i>field</i> line for each {@link StatsField} that matched at least one event, and a <i>value</i> line
+ * for each distinct value of the fields that count their values.
+ *
+ * @see StatsField
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class EventStats
+{
+	/**
+	 * Suffix of the summary sidecar file
+	 */
+	public static final String SUFFIX = ".stats";
+
+	/**
+	 * Most distinct values counted per field. Values first seen after that are only included in the field's totals.
+	 */
+	public static final int MAX_DISTINCT_VALUES = 1024;
+
+	private static final String EVENTS = "events";
+
+	private static final String TIMESTAMPS = "timestamps";
+
+	private static final String LEVEL = "level";
+
+	private static final String FIELD = "field";
+
+	private static final String VALUE = "value";
+
+	private long eventCount;
+
+	private long minTimestamp = Long.MAX_VALUE;
+
+	private long maxTimestamp = Long.MIN_VALUE;
+
+	private final Map<String, Long> levelCounts = new TreeMap<String, Long>();
+
+	private final Map<String, FieldStats> fields = new LinkedHashMap<String, FieldStats>();
+
+	/**
+	 * Count an event
+	 *
+	 * @param timestamp
+	 *            Event time in milliseconds
+	 * @param level
+	 *            Event level name
+	 */
+	public void recordEvent(long timestamp, String level)
+	{
+		this.eventCount += 1;
+		this.minTimestamp = Math.min(this.minTimestamp, timestamp);
+		this.maxTimestamp = Math.max(this.maxTimestamp, timestamp);
+		addCount(this.levelCounts, level, 1);
+	}
+
+	/**
+	 * Add a value extracted from an event to a field's totals
+	 *
+	 * @param fieldName
+	 *            Field name
+	 * @param value
+	 *            Extracted value
+	 * @param countValue
+	 *            If true, the number of times the value was seen is counted as well
+	 */
+	public void recordValue(String fieldName, double value, boolean countValue)
+	{
+		final FieldStats field = this.getOrCreateField(fieldName);
+		field.add(1, value, value, value);
+		if (countValue)
+		{
+			field.addValueCount(value, 1);
+		}
+	}
+
+	/**
+	 * Add another summary's counts to this one
+	 *
+	 * @param other
+	 *            Summary to add
+	 */
+	public void merge(EventStats other)
+	{
+		this.eventCount += other.eventCount;
+		if (0 != other.eventCount)
+		{
+			// An empty summary is written with zero timestamps
+			this.minTimestamp = Math.min(this.minTimestamp, other.minTimestamp);
+			this.maxTimestamp = Math.max(this.maxTimestamp, other.maxTimestamp);
+		}
+		for (final Map.Entry<String, Long> eachLevel : other.levelCounts.entrySet())
+		{
+			addCount(this.levelCounts, eachLevel.getKey(), eachLevel.getValue());
+		}
+		for (final Map.Entry<String, FieldStats> eachField : other.fields.entrySet())
+		{
+			final FieldStats field = this.getOrCreateField(eachField.getKey());
+			final FieldStats otherField = eachField.getValue();
+			field.add(otherField.count, otherField.sum, otherField.min, otherField.max);
+			for (final Map.Entry<Double, Long> eachValue : otherField.valueCounts.entrySet())
+			{
+				field.addValueCount(eachValue.getKey(), eachValue.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return Number of events
+	 */
+	public long getEventCount()
+	{
+		return this.eventCount;
+	}
+
+	/**
+	 * @return Time of the earliest event, or zero if there are none
+	 */
+	public long getMinTimestamp()
+	{
+		return (0 == this.eventCount) ? 0 : this.minTimestamp;
+	}
+
+	/**
+	 * @return Time of the latest event, or zero if there are none
+	 */
+	public long getMaxTimestamp()
+	{
+		return (0 == this.eventCount) ? 0 : this.maxTimestamp;
+	}
+
+	/**
+	 * @return Number of events of each level, by level name
+	 */
+	public Map<String, Long> getLevelCounts()
+	{
+		return Collections.unmodifiableMap(this.levelCounts);
+	}
+
+	/**
+	 * @return Totals of each field that matched at least one event, by field name
+	 */
+	public Map<String, FieldStats> getFields()
+	{
+		return Collections.unmodifiableMap(this.fields);
+	}
+
+	/**
+	 * Write the summary
+	 *
+	 * @param file
+	 *            Summary file. Replaced if it exists.
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void write(File file) throws IOException
+	{
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			writer.write(String.format("%s\t%d\n", EVENTS, this.eventCount));
+			writer.write(String.format("%s\t%d\t%d\n", TIMESTAMPS, this.getMinTimestamp(), this.getMaxTimestamp()));
+			for (final Map.Entry<String, Long> eachLevel : this.levelCounts.entrySet())
+			{
+				writer.write(String.format("%s\t%s\t%d\n", LEVEL, eachLevel.getKey(), eachLevel.getValue()));
+			}
+			for (final FieldStats eachField : this.fields.values())
+			{
+				writer.write(String.format("%s\t%s\t%d\t%s\t%s\t%s\n", FIELD, eachField.name, eachField.count,
+						formatValue(eachField.sum), formatValue(eachField.min), formatValue(eachField.max)));
+				for (final Map.Entry<Double, Long> eachValue : eachField.valueCounts.entrySet())
+				{
+					writer.write(String.format("%s\t%s\t%s\t%d\n", VALUE, eachField.name,
+							formatValue(eachValue.getKey()), eachValue.getValue()));
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Read a summary file
+	 *
+	 * @param file
+	 *            Summary file
+	 * @return The summary
+	 * @throws IOException
+	 *             If the file can't be read or isn't a summary
+	 */
+	public static EventStats read(File file) throws IOException
+	{
+		final InputStream input = new FileInputStream(file);
+		try
+		{
+			return read(input);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Read a summary, for instance straight from an S3 object's content. The stream is not closed.
+	 *
+	 * @param input
+	 *            Summary data
+	 * @return The summary
+	 * @throws IOException
+	 *             If the stream can't be read or isn't a summary
+	 */
+	public static EventStats read(InputStream input) throws IOException
+	{
+		final EventStats stats = new EventStats();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		String line;
+		while (null != (line = reader.readLine()))
+		{
+			final String[] fields = line.split("\t");
+			try
+			{
+				if (EVENTS.equals(fields[0]) && fields.length == 2)
+				{
+					stats.eventCount = Long.parseLong(fields[1]);
+				}
+				else if (TIMESTAMPS.equals(fields[0]) && fields.length == 3)
+				{
+					stats.minTimestamp = Long.parseLong(fields[1]);
+					stats.maxTimestamp = Long.parseLong(fields[2]);
+				}
+				else if (LEVEL.equals(fields[0]) && fields.length == 3)
+				{
+					stats.levelCounts.put(fields[1], Long.parseLong(fields[2]));
+				}
+				else if (FIELD.equals(fields[0]) && fields.length == 6)
+				{
+					stats.getOrCreateField(fields[1]).add(Long.parseLong(fields[2]), Double.parseDouble(fields[3]),
+							Double.parseDouble(fields[4]), Double.parseDouble(fields[5]));
+				}
+				else if (VALUE.equals(fields[0]) && fields.length == 4)
+				{
+					stats.getOrCreateField(fields[1]).addValueCount(Double.parseDouble(fields[2]),
+							Long.parseLong(fields[3]));
+				}
+				else
+				{
+					throw new IOException("Malformed summary line: " + line);
+				}
+			}
+			catch (NumberFormatException ex)
+			{
+				throw new IOException("Malformed summary line: " + line, ex);
+			}
+		}
+		if (0 == stats.eventCount)
+		{
+			// Keep the empty range, so that merging into this summary takes the other's timestamps
+			stats.minTimestamp = Long.MAX_VALUE;
+			stats.maxTimestamp = Long.MIN_VALUE;
+		}
+		return stats;
+	}
+
+	private FieldStats getOrCreateField(String fieldName)
+	{
+		FieldStats field = this.fields.get(fieldName);
+		if (null == field)
+		{
+			field = new FieldStats(fieldName);
+			this.fields.put(fieldName, field);
+		}
+		return field;
+	}
+
+	private static <K> void addCount(Map<K, Long> counts, K key, long count)
+	{
+		final Long current = counts.get(key);
+		counts.put(key, (null != current) ? current + count : count);
+	}
+
+	/**
+	 * Whole numbers are written without a fraction, as they appeared in the log
+	 */
+	private static String formatValue(double value)
+	{
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * Totals of the values extracted by one {@link StatsField}
+	 */
+	public static class FieldStats
+	{
+		private final String name;
+
+		private final Map<Double, Long> valueCounts = new TreeMap<Double, Long>();
+
+		private long count;
+
+		private double sum;
+
+		private double min = Double.POSITIVE_INFINITY;
+
+		private double max = Double.NEGATIVE_INFINITY;
+
+		FieldStats(String name)
+		{
+			this.name = name;
+		}
+
+		public String getName()
+		{
+			return this.name;
+		}
+
+		/**
+		 * @return Number of events the field was extracted from
+		 */
+		public long getCount()
+		{
+			return this.count;
+		}
+
+		public double getSum()
+		{
+			return this.sum;
+		}
+
+		public double getMin()
+		{
+			return this.min;
+		}
+
+		public double getMax()
+		{
+			return this.max;
+		}
+
+		public double getMean()
+		{
+			return (0 == this.count) ? 0 : this.sum / this.count;
+		}
+
+		/**
+		 * @return Number of events each value was extracted from, in value order. Empty unless the field counts its
+		 *         values.
+		 */
+		public Map<Double, Long> getValueCounts()
+		{
+			return Collections.unmodifiableMap(this.valueCounts);
+		}
+
+		void add(long count, double sum, double min, double max)
+		{
+			this.count += count;
+			this.sum += sum;
+			this.min = Math.min(this.min, min);
+			this.max = Math.max(this.max, max);
+		}
+
+		void addValueCount(double value, long count)
+		{
+			if (this.valueCounts.size() < MAX_DISTINCT_VALUES || this.valueCounts.containsKey(value))
+			{
+				addCount(this.valueCounts, value, count);
+			}
+		}
+	}
+}
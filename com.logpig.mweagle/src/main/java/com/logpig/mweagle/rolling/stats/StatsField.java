@@ -0,0 +1,155 @@
+/*
+   Copyright 2012 Matt Weagle (mweagle@gmail.com)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.logpig.mweagle.rolling.stats;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.spi.LifeCycle;
+
+/**
+ * Extracts a numeric field from each event's message for the {@link EventStats} summary. The first capturing group
+ * of the pattern is the value, e.g. <i>magic number is: (\d+)$</i>. Messages that don't match, or whose value
+ * isn't a number, are skipped. Configured in logback.xml as:
+ * 
+ * <pre>
+ * &lt;statsField&gt;
+ *   &lt;name&gt;magicNumber&lt;/name&gt;
+ *   &lt;pattern&gt;magic number is: (\d+)$&lt;/pattern&gt;
+ *   &lt;countValues&gt;true&lt;/countValues&gt;
+ * &lt;/statsField&gt;
+ * </pre>
+ *
+ * @see EventStats
+ * @author Matt Weagle (mweagle@gmail.com)
+ */
+public class StatsField extends ContextAwareBase implements LifeCycle
+{
+	private String name;
+
+	private String pattern;
+
+	private boolean countValues;
+
+	private Pattern compiledPattern;
+
+	@Override
+	public void start()
+	{
+		if (null == name || name.isEmpty() || name.matches(".*\\s.*"))
+		{
+			addError("statsField name must be set and can't contain whitespace");
+			return;
+		}
+		if (null == pattern)
+		{
+			addError(String.format("statsField %s has no pattern", name));
+			return;
+		}
+		try
+		{
+			final Pattern compiled = Pattern.compile(pattern);
+			if (compiled.matcher("").groupCount() < 1)
+			{
+				addError(String.format("statsField %s pattern must have a capturing group", name));
+				return;
+			}
+			compiledPattern = compiled;
+		}
+		catch (PatternSyntaxException ex)
+		{
+			addError(String.format("statsField %s pattern is not valid", name), ex);
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		compiledPattern = null;
+	}
+
+	@Override
+	public boolean isStarted()
+	{
+		return null != compiledPattern;
+	}
+
+	/**
+	 * Add the field's value, if the message has one, to a summary
+	 *
+	 * @param message
+	 *            Formatted event message
+	 * @param stats
+	 *            Summary of the active file
+	 */
+	public void extract(String message, EventStats stats)
+	{
+		if (null == message)
+		{
+			return;
+		}
+		final Matcher matcher = compiledPattern.matcher(message);
+		if (!matcher.find() || null == matcher.group(1))
+		{
+			return;
+		}
+		try
+		{
+			stats.recordValue(name, Double.parseDouble(matcher.group(1)), countValues);
+		}
+		catch (NumberFormatException ex)
+		{
+			// Not a number, so not a value
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	public String getPattern()
+	{
+		return pattern;
+	}
+
+	public void setPattern(String pattern)
+	{
+		this.pattern = pattern;
+	}
+
+	public boolean isCountValues()
+	{
+		return countValues;
+	}
+
+	/**
+	 * @param countValues
+	 *            If true, the number of events with each distinct value is counted, up to
+	 *            {@link EventStats#MAX_DISTINCT_VALUES} values
+	 */
+	public void setCountValues(boolean countValues)
+	{
+		this.countValues = countValues;
+	}
+}